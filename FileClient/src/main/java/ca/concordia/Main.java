@@ -1,15 +1,25 @@
 package ca.concordia;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
 // then press Enter. You can now see whitespace characters in your code.
 public class Main {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
     public static void main(String[] args) {
         //Socket CLient
         System.out.println("Hello and welcome!");
@@ -22,10 +32,36 @@ public class Main {
             //read user input from console
             String userInput = scanner.nextLine();
             try (
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    InputStream reader = new BufferedInputStream(clientSocket.getInputStream());
                     PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
             ) {
+                boolean pipelined = false;
                 while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
+                    // "PIPE cmd1; cmd2; ..." sends every command at once and prints replies as they arrive
+                    if (userInput.toUpperCase().startsWith("PIPE ")) {
+                        if (!pipelined) {
+                            writer.println("PIPELINE");
+                            System.out.println("Response from server: " + readLine(reader));
+                            pipelined = true;
+                        }
+                        runPipelined(userInput.substring(5).split(";"), reader, writer);
+                        userInput = scanner.nextLine();
+                        continue;
+                    }
+
+                    // "PUT <local file> <name>" uploads and "GET <name> <local file>" downloads, a chunk at a time
+                    String[] words = userInput.trim().split(" ");
+                    if (words.length == 3 && words[0].equalsIgnoreCase("PUT")) {
+                        upload(words[1], words[2], clientSocket.getOutputStream(), reader, writer);
+                        userInput = scanner.nextLine();
+                        continue;
+                    }
+                    if (words.length == 3 && words[0].equalsIgnoreCase("GET")) {
+                        download(words[1], words[2], reader, writer);
+                        userInput = scanner.nextLine();
+                        continue;
+                    }
+
                     writer.println(userInput);
                     writer.flush();
                     System.out.println("Message sent to the server: " + userInput);
@@ -33,17 +69,25 @@ public class Main {
                     // Check command BEFORE reading response
                     String command = userInput.trim().toUpperCase().split(" ")[0];
                     
-                    if (command.equals("LIST")) {
+                    if (endMarker(command) != null) {
                         System.out.println("Response from server: ");
                         String line;
-                        while ((line = reader.readLine()) != null) {
-                            if (line.equals("END OF LIST")) {
+                        while ((line = readLine(reader)) != null) {
+                            if (line.equals(endMarker(command))) {
                                 break;
                             }
                             System.out.println(line);
                         }
+                    } else if (command.equals("READB")) {
+                        // "SUCCESS: <n> bytes" followed by n raw bytes
+                        String header = readLine(reader);
+                        System.out.println("Response from server: " + header);
+                        if (header != null && header.startsWith("SUCCESS: ")) {
+                            int length = Integer.parseInt(header.split(" ")[1]);
+                            System.out.println(new String(reader.readNBytes(length), StandardCharsets.UTF_8));
+                        }
                     } else {
-                        String response = reader.readLine();
+                        String response = readLine(reader);
                         System.out.println("Response from server: " + response);
                     }
                 
@@ -64,4 +108,126 @@ public class Main {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // Sends "UPLOAD <name> <length>" followed by the file's bytes
+    private static void upload(String localPath, String name, OutputStream out, InputStream reader, PrintWriter writer)
+            throws IOException {
+        File file = new File(localPath);
+        if (!file.isFile()) {
+            System.out.println("No such local file: " + localPath);
+            return;
+        }
+        long remaining = file.length();
+        writer.println("UPLOAD " + name + " " + remaining);
+        writer.flush();
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (remaining > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n == -1) {
+                    // The server still expects the rest, so the connection can't be used any more
+                    throw new IOException("Local file shrank while uploading.");
+                }
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+            out.flush();
+        }
+        System.out.println("Response from server: " + readLine(reader));
+    }
+
+    // Sends "READB <name>" and saves the reply's bytes to a local file
+    private static void download(String name, String localPath, InputStream reader, PrintWriter writer)
+            throws IOException {
+        writer.println("READB " + name);
+        writer.flush();
+        String header = readLine(reader);
+        System.out.println("Response from server: " + header);
+        if (header == null || !header.startsWith("SUCCESS: ")) {
+            return;
+        }
+
+        long remaining = Long.parseLong(header.split(" ")[1]);
+        try (OutputStream out = new FileOutputStream(localPath)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (remaining > 0) {
+                int n = reader.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n == -1) {
+                    throw new IOException("Connection closed mid-download.");
+                }
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+        System.out.println("Saved to " + localPath);
+    }
+
+    // Tags each command with its index, sends them in one write, then reads tagged replies in completion order
+    private static void runPipelined(String[] commands, InputStream reader, PrintWriter writer) throws IOException {
+        Map<String, String> outstanding = new HashMap<>();
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < commands.length; i++) {
+            String command = commands[i].trim();
+            if (command.isEmpty()) {
+                continue;
+            }
+            String tag = "#" + i;
+            outstanding.put(tag, command.split(" ")[0].toUpperCase());
+            batch.append(tag).append(' ').append(command).append('\n');
+        }
+        writer.print(batch);
+        writer.flush();
+
+        while (!outstanding.isEmpty()) {
+            String line = readLine(reader);
+            if (line == null) {
+                return;
+            }
+            int space = line.indexOf(' ');
+            String tag = space == -1 ? line : line.substring(0, space);
+            String reply = space == -1 ? "" : line.substring(space + 1);
+            String command = outstanding.get(tag);
+            System.out.println("Response from server: " + line);
+
+            if (command == null) {
+                continue;
+            }
+            if (endMarker(command) != null && !reply.equals(endMarker(command)) && !reply.startsWith("ERROR")) {
+                continue;
+            }
+            if (command.equals("READB") && reply.startsWith("SUCCESS: ")) {
+                int length = Integer.parseInt(reply.split(" ")[1]);
+                System.out.println(new String(reader.readNBytes(length), StandardCharsets.UTF_8));
+            }
+            outstanding.remove(tag);
+        }
+    }
+
+    // Last line of the reply to a command that answers with several lines, null for single-line replies
+    private static String endMarker(String command) {
+        switch (command) {
+            case "LIST":
+                return "END OF LIST";
+            case "STATS":
+                return "END OF STATS";
+            case "MREAD":
+                return "END OF MREAD";
+            default:
+                return null;
+        }
+    }
+
+    // Reads one '\n' terminated line as UTF-8, leaving any binary data after it in the stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8).replaceAll("\r$", "");
+    }
+}
@@ -3,12 +3,16 @@ package ca.concordia;
 import java.io.IOException;
 
 import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerConfig;
 
 public class Main {
     public static void main(String[] args) throws IOException {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        FileServer server = new FileServer(12345, "filesystem.dat", config.getImageSize(), config);
+        // Commit the journal on Ctrl-C / SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         // Start the file server
         server.start();
     }
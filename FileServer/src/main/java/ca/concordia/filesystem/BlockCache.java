@@ -0,0 +1,234 @@
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of disk blocks, kept off-heap in direct buffer slabs. Replacement is ARC (adaptive
+// replacement cache): T1 holds blocks seen once recently and T2 blocks seen at least twice, and
+// ghost lists B1/B2 remember what each recently evicted, to steer the target size p of T1. A long
+// sequential scan only ever churns T1, so it can't flush the frequently read blocks out of T2.
+//
+// Blocks are keyed by their disk block number. The file system invalidates blocks when they are
+// freed or rewritten.
+//
+// The cache is split into stripes by block number, each a separate ARC over its own share of the
+// slots with its own lock, so reads of different blocks don't queue behind one monitor. Adjacent
+// blocks land in different stripes, which spreads a sequential scan over all of them.
+public class BlockCache {
+
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+    private static final int STRIPES = 16; // a power of two
+
+    private final int blockSize;
+    private final int capacity; // in blocks
+    private final ByteBuffer[] slabs;
+    private final int slotsPerSlab;
+    private final Stripe[] stripes;
+    private final int stripeShift; // log2 of stripes.length
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacityBytes, int blockSize) {
+        this.blockSize = blockSize;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, capacityBytes / blockSize);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one block.");
+        }
+
+        this.slotsPerSlab = MAX_SLAB_BYTES / blockSize;
+        int slabCount = (capacity + slotsPerSlab - 1) / slotsPerSlab;
+        this.slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            int slotsInSlab = Math.min(slotsPerSlab, capacity - i * slotsPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(slotsInSlab * blockSize);
+        }
+
+        // Each stripe gets a contiguous range of the slots, the first ones one slot more when they
+        // don't divide evenly
+        this.stripes = new Stripe[Integer.highestOneBit(Math.min(STRIPES, capacity))];
+        this.stripeShift = Integer.numberOfTrailingZeros(stripes.length);
+        int firstSlot = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            int slots = capacity / stripes.length + (i < capacity % stripes.length ? 1 : 0);
+            stripes[i] = new Stripe(firstSlot, slots);
+            firstSlot += slots;
+        }
+    }
+
+    // Copies length bytes at offset within the block into dest. Returns false on a miss.
+    public boolean read(int block, int offset, byte[] dest, int destOffset, int length) {
+        return stripe(block).read(block >>> stripeShift, offset, dest, destOffset, length);
+    }
+
+    // Adds a block just read from disk; data holds the whole block at dataOffset
+    public void put(int block, byte[] data, int dataOffset) {
+        stripe(block).put(block >>> stripeShift, data, dataOffset);
+    }
+
+    // Drops blocks [start, start + length) so stale contents are never served. Takes each stripe's
+    // lock once, for every block of the range in it.
+    public void invalidate(int start, int length) {
+        for (int i = 0; i < Math.min(length, stripes.length); i++) {
+            int first = start + i;
+            int count = (length - i + stripes.length - 1) / stripes.length;
+            stripe(first).invalidate(first >>> stripeShift, count);
+        }
+    }
+
+    // Getters
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getCapacityBytes() { return (long) capacity * blockSize; }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Stripe stripe : stripes) {
+            used += stripe.getUsedBytes();
+        }
+        return used;
+    }
+
+    private Stripe stripe(int block) {
+        return stripes[block & (stripes.length - 1)];
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs[slot / slotsPerSlab];
+    }
+
+    private int slotOffset(int slot) {
+        return (slot % slotsPerSlab) * blockSize;
+    }
+
+    // --- ARC internals --- //
+
+    // One ARC over its own slots, guarded by its monitor. Slab accesses are absolute and stay within
+    // the stripe's slots, so stripes never touch the same bytes. Blocks are keyed by their number
+    // divided by the stripe count: the blocks of one stripe all leave the same remainder, and as keys
+    // would crowd into a fraction of the hash buckets.
+    private class Stripe {
+        private final int capacity; // in blocks
+        private final Map<Integer, Integer> slots = new HashMap<>(); // resident key -> slot
+        private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+        private final LinkedHashSet<Integer> t1 = new LinkedHashSet<>(); // least recently used first
+        private final LinkedHashSet<Integer> t2 = new LinkedHashSet<>();
+        private final LinkedHashSet<Integer> b1 = new LinkedHashSet<>();
+        private final LinkedHashSet<Integer> b2 = new LinkedHashSet<>();
+        private int p; // target size of t1
+
+        Stripe(int firstSlot, int capacity) {
+            this.capacity = capacity;
+            for (int slot = firstSlot; slot < firstSlot + capacity; slot++) {
+                freeSlots.add(slot);
+            }
+        }
+
+        synchronized boolean read(int key, int offset, byte[] dest, int destOffset, int length) {
+            Integer slot = slots.get(key);
+            if (slot == null) {
+                misses.increment();
+                return false;
+            }
+            hits.increment();
+
+            // Any hit promotes to the MRU end of T2
+            if (!t1.remove(key)) {
+                t2.remove(key);
+            }
+            t2.add(key);
+
+            slab(slot).get(slotOffset(slot) + offset, dest, destOffset, length);
+            return true;
+        }
+
+        synchronized void put(int key, byte[] data, int dataOffset) {
+            if (slots.containsKey(key)) {
+                return;
+            }
+
+            if (b1.contains(key)) {
+                // Recently evicted from T1: favour recency
+                p = Math.min(capacity, p + Math.max(b2.size() / b1.size(), 1));
+                b1.remove(key);
+                insert(key, t2, false);
+            } else if (b2.contains(key)) {
+                // Recently evicted from T2: favour frequency
+                p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+                b2.remove(key);
+                insert(key, t2, true);
+            } else {
+                if (t1.size() + b1.size() >= capacity) {
+                    if (t1.size() < capacity) {
+                        removeFirst(b1);
+                    } else {
+                        // T1 is the whole stripe: drop its LRU block outright
+                        free(removeFirst(t1));
+                        evictions.increment();
+                    }
+                } else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * capacity) {
+                    removeFirst(b2);
+                }
+                insert(key, t1, false);
+            }
+
+            int slot = slots.get(key);
+            slab(slot).put(slotOffset(slot), data, dataOffset, blockSize);
+        }
+
+        // Drops keys [from, from + count)
+        synchronized void invalidate(int from, int count) {
+            for (int key = from; key < from + count; key++) {
+                if (t1.remove(key) || t2.remove(key)) {
+                    freeSlots.add(slots.remove(key));
+                } else if (!b1.remove(key)) {
+                    b2.remove(key);
+                }
+            }
+        }
+
+        synchronized long getUsedBytes() {
+            return (long) slots.size() * blockSize;
+        }
+
+        private void insert(int key, LinkedHashSet<Integer> list, boolean inB2) {
+            if (freeSlots.isEmpty()) {
+                replace(inB2);
+            }
+            slots.put(key, freeSlots.poll());
+            list.add(key);
+        }
+
+        // Evicts the LRU key of T1 or T2, remembering it in the matching ghost list
+        private void replace(boolean inB2) {
+            if (!t1.isEmpty() && (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty())) {
+                int victim = removeFirst(t1);
+                free(victim);
+                b1.add(victim);
+            } else {
+                int victim = removeFirst(t2);
+                free(victim);
+                b2.add(victim);
+            }
+            evictions.increment();
+        }
+
+        private void free(int key) {
+            freeSlots.add(slots.remove(key));
+        }
+    }
+
+    private static int removeFirst(LinkedHashSet<Integer> list) {
+        Iterator<Integer> it = list.iterator();
+        int first = it.next();
+        it.remove();
+        return first;
+    }
+}
@@ -0,0 +1,77 @@
+package ca.concordia.filesystem;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// The disk image, accessed only with positional FileChannel reads and writes. There is no shared
+// file pointer, so any number of threads can read and write different offsets at once without a lock.
+//
+// Note that interrupting a thread blocked in channel I/O closes the channel for everyone, so threads
+// doing file system work must not be interrupted.
+class BlockDevice {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    BlockDevice(File image) throws IOException {
+        this.file = new RandomAccessFile(image, "rw");
+        this.channel = file.getChannel();
+    }
+
+    void read(long position, byte[] dest, int offset, int length) throws IOException {
+        read(position, ByteBuffer.wrap(dest, offset, length));
+    }
+
+    // Fills dest from its position to its limit
+    void read(long position, ByteBuffer dest) throws IOException {
+        while (dest.hasRemaining()) {
+            int n = channel.read(dest, position);
+            if (n < 0) {
+                throw new EOFException("Read past the end of the image at " + position + ".");
+            }
+            position += n;
+        }
+    }
+
+    void write(long position, byte[] src, int offset, int length) throws IOException {
+        write(position, ByteBuffer.wrap(src, offset, length));
+    }
+
+    // Writes src from its position to its limit
+    void write(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    // Sends up to count bytes at position to target, zero-copy where the OS supports it. A
+    // non-blocking target may take fewer, or none.
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    void setSize(long size) throws IOException {
+        file.setLength(size);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,97 @@
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Block-level deduplication state. Maps the SHA-256 fingerprint of full data blocks to the block holding
+// that content, and counts the extra references of blocks mapped by more than one file, so a block is
+// only freed with its last reference. Matching fingerprints are trusted without comparing the bytes.
+// Only full blocks are shared: copy-on-write never changes them in place, whereas the partly filled
+// last block of a file grows in place on append. Not thread-safe, the file system guards it with its
+// allocLock.
+class DedupIndex {
+
+    private final Map<ByteBuffer, Integer> blocksByFingerprint = new HashMap<>();
+    private final Map<Integer, ByteBuffer> fingerprints = new HashMap<>();
+    private final Map<Integer, Integer> extraRefs = new HashMap<>(); // blocks with more than one reference
+    private long sharedBlocks; // sum of extraRefs: blocks that would otherwise be separate copies
+    private long hits;
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    static ByteBuffer fingerprint(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    // Whether any block is indexed or shared; when not, every block has exactly one reference
+    boolean isEmpty() {
+        return fingerprints.isEmpty() && extraRefs.isEmpty();
+    }
+
+    // The block holding content with this fingerprint, or -1
+    int find(ByteBuffer fingerprint) {
+        Integer block = blocksByFingerprint.get(fingerprint);
+        return block == null ? -1 : block;
+    }
+
+    boolean isIndexed(int block) {
+        return fingerprints.containsKey(block);
+    }
+
+    // Records the content of a block in use, unless another block already holds it
+    void index(int block, ByteBuffer fingerprint) {
+        if (blocksByFingerprint.putIfAbsent(fingerprint, block) == null) {
+            fingerprints.put(block, fingerprint);
+        }
+    }
+
+    // Adds a reference to a block found by find, for a write that maps it instead of writing a copy
+    void pin(int block) {
+        addReferences(block, 1);
+        hits++;
+    }
+
+    // Adds references to a block already in use, for blocks found shared on mount
+    void addReferences(int block, int count) {
+        extraRefs.merge(block, count, Integer::sum);
+        sharedBlocks += count;
+    }
+
+    // Drops a reference to a block. Returns true if it was the last one, in which case the block is
+    // forgotten and the caller frees it.
+    boolean release(int block) {
+        Integer extra = extraRefs.get(block);
+        if (extra != null) {
+            if (extra == 1) {
+                extraRefs.remove(block);
+            } else {
+                extraRefs.put(block, extra - 1);
+            }
+            sharedBlocks--;
+            return false;
+        }
+        ByteBuffer fingerprint = fingerprints.remove(block);
+        if (fingerprint != null) {
+            blocksByFingerprint.remove(fingerprint);
+        }
+        return true;
+    }
+
+    long getSharedBlocks() {
+        return sharedBlocks;
+    }
+
+    long getHits() {
+        return hits;
+    }
+}
@@ -0,0 +1,104 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Epoch-based reclamation. Readers run lock-free between enter() and exit(). A writer that has
+// unpublished something readers might still be using retires it, and reclaim() only hands
+// it back once every reader that could have seen it has exited.
+//
+// The global epoch only advances when no reader is left in the epoch before the current one, so
+// live readers are always in the current or the previous epoch and can be counted by parity. An item
+// retired in epoch e was unpublished before any reader of e + 1 started, so it is free once the
+// epoch reaches e + 2.
+class Epochs<T> {
+
+    private static class Retired<T> {
+        private final long epoch;
+        private final T item;
+
+        Retired(long epoch, T item) {
+            this.epoch = epoch;
+            this.item = item;
+        }
+    }
+
+    private final AtomicLong epoch = new AtomicLong();
+    // Readers by epoch parity. Not LongAdders: their sum isn't a snapshot, so it could read zero while a
+    // reader is still in.
+    private final AtomicLong[] active = { new AtomicLong(), new AtomicLong() };
+    private final ReentrantLock advanceLock = new ReentrantLock();
+    private final ArrayDeque<Retired<T>> limbo = new ArrayDeque<>(); // oldest first, guarded by advanceLock
+    private volatile boolean waiting; // limbo isn't empty
+    private final Queue<T> reclaimable = new ConcurrentLinkedQueue<>();
+
+    // Returns the epoch to pass to exit()
+    long enter() {
+        while (true) {
+            long e = epoch.get();
+            active[(int) (e & 1)].incrementAndGet();
+            if (epoch.get() == e) {
+                return e;
+            }
+            // The epoch moved on meanwhile, count this reader in the new one instead
+            active[(int) (e & 1)].decrementAndGet();
+        }
+    }
+
+    void exit(long e) {
+        active[(int) (e & 1)].decrementAndGet();
+        if (waiting) {
+            tryAdvance();
+        }
+    }
+
+    // item must already be unreachable for readers that enter from now on
+    void retire(T item) {
+        advanceLock.lock();
+        try {
+            limbo.add(new Retired<>(epoch.get(), item));
+            waiting = true;
+        } finally {
+            advanceLock.unlock();
+        }
+        tryAdvance();
+    }
+
+    // Passes every item no reader can see any more to action
+    void reclaim(Consumer<T> action) {
+        if (waiting) {
+            tryAdvance();
+        }
+        T item;
+        while ((item = reclaimable.poll()) != null) {
+            action.accept(item);
+        }
+    }
+
+    // Advances the epoch as far as readers allow and moves what that frees to reclaimable. Never blocks:
+    // whoever holds the lock is already doing this.
+    private void tryAdvance() {
+        if (!advanceLock.tryLock()) {
+            return;
+        }
+        try {
+            while (!limbo.isEmpty()) {
+                long e = epoch.get();
+                while (!limbo.isEmpty() && limbo.peek().epoch <= e - 2) {
+                    reclaimable.add(limbo.poll().item);
+                }
+                if (limbo.isEmpty() || active[(int) ((e + 1) & 1)].get() != 0) {
+                    break; // readers of epoch e - 1 are still running
+                }
+                epoch.set(e + 1);
+            }
+            waiting = !limbo.isEmpty();
+        } finally {
+            advanceLock.unlock();
+        }
+    }
+}
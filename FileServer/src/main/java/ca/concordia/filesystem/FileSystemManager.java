@@ -1,399 +1,2569 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.DirectoryIndex;
+import ca.concordia.filesystem.datastructures.Extent;
+import ca.concordia.filesystem.datastructures.ExtentMap;
 import ca.concordia.filesystem.datastructures.FEntry;
-import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.FileContents;
+import ca.concordia.filesystem.datastructures.NameIndex;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.LatencyHistogram;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class FileSystemManager {
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-    private static FileSystemManager instance = null;
-    private final RandomAccessFile disk;
-    private final ReentrantLock globalLock = new ReentrantLock();
+    // When a mutation is acknowledged relative to its journal commit, see Journal
+    public enum Durability {
+        SYNC,    // every mutation is forced on its own before it returns
+        BATCHED, // mutations wait for a force shared with whatever committed alongside them
+        ASYNC    // mutations return right away, the journal is forced in the background
+    }
 
-    private static final int BLOCK_SIZE = 128;
-    private static final int FENTRY_SIZE = 15;
-    private static final int FNODE_SIZE = 4;
-    
-    private final int fileSysMetadataBlocks;
-    private final int firstDataBlock;
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final Set<String> openImages = new HashSet<>(); // canonical paths of the mounted images
+    private final String imagePath;
+    private final BlockDevice disk;
+    private Journal journal; // null while mounting, when metadata is written in place
+    private BlockCache cache; // null when disabled
+    private boolean deduplicate;
+    private ExecutorService ioExecutor; // runs the asynchronous API's operations
+
+    // Lock order: file stripe -> tableLock -> allocLock. Disk I/O is positional and needs no lock.
+    // Readers take no file lock at all: writes are copy-on-write and publish a new FileContents in one
+    // step, and blocks a write replaces are only reused once the readers that might see them are done.
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantLock[] fileLocks = new ReentrantLock[LOCK_STRIPES]; // writers of a file, striped by inode index
+    private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock(); // inodeTable slots, nameIndex, directories and freeInodes
+    private final ReentrantLock allocLock = new ReentrantLock(); // bitmap and the on-disk metadata
+
+    // How long each kind of lock was waited for, per acquisition
+    private final LatencyHistogram fileLockWaits = new LatencyHistogram();
+    private final LatencyHistogram tableLockWaits = new LatencyHistogram();
+    private final LatencyHistogram allocLockWaits = new LatencyHistogram();
+
+    // On-disk inode record: flags u8, name length u8, reserved u16, file size i64, extent count i32,
+    // INLINE_EXTENTS (start i32, length i32) pairs, first indirect block i32, parent directory inode
+    // i32 (-1 for the root), stored size i64, then at NAME_OFFSET the UTF-8 name, the last component
+    // of the path. A file with FLAG_COMPRESSED holds stored size bytes of deflate data.
+    // An indirect block holds the next indirect block i32, its extent count i32, then more pairs.
+    // A directory is an inode with FLAG_DIRECTORY and no data; its entries are the inodes naming it as
+    // their parent, indexed in memory by a DirectoryIndex built on mount.
+    private static final int INODE_SIZE = 128;
+    private static final int NAME_OFFSET = 64;
+    private static final int FLAG_IN_USE = 1;
+    private static final int FLAG_DIRECTORY = 2;
+    private static final int INLINE_EXTENTS = 4;
+    private static final int EXTENTS_OFFSET = 16;
+    private static final int INDIRECT_OFFSET = EXTENTS_OFFSET + INLINE_EXTENTS * 8;
+    private static final int PARENT_OFFSET = INDIRECT_OFFSET + 4;
+    private static final int STORED_SIZE_OFFSET = PARENT_OFFSET + 4;
+    private static final int FLAG_COMPRESSED = 4;
+    private static final int FNODE_SIZE = 4; // block map entry of version 1 and 2 images
+    private static final int CACHE_FILL_BLOCKS = 256; // most blocks one cache miss reads ahead
+    private static final int DEDUP_RUN_BYTES = 256 * 1024; // data a deduplicating upload fingerprints at a time
+    private static final int COMPRESS_CHUNK_BYTES = 64 * 1024; // deflate and inflate buffer size
+    private static final int TRANSFER_CHUNK_BYTES = 1024 * 1024; // most a Transfer sends per call
+
+    // Pre-superblock images: 5 entries of name[11], size i16, first block i16, then 10 next pointers, 128-byte blocks
+    private static final int LEGACY_MAXFILES = 5;
+    private static final int LEGACY_MAXBLOCKS = 10;
+    private static final int LEGACY_BLOCK_SIZE = 128;
+
+    // Geometry, read from the superblock
+    private Superblock superblock;
+    private int blockSize;
+    private int maxFiles;
+    private int maxBlocks;
+    private int firstDataBlock;
 
     private FEntry[] inodeTable;
-    private boolean[] freeBlockList;
-    private FNode[] blockList;
+    private NameIndex nameIndex; // path -> inode, so lookups don't scan inodeTable or walk directories
+    private DirectoryIndex rootDirectory; // entries of the root, other directories keep theirs in their FEntry
+    private int[] freeInodes; // stack of empty inodeTable slots, lowest on top
+    private int freeInodeCount;
+    private BlockBitmap bitmap;
+    private final BitSet dirtyInodes = new BitSet(); // inode records changed since the last flush, guarded by allocLock
+    private final List<Journal.Record> pendingRecords = new ArrayList<>(); // metadata writes of the open transaction
+    private final List<Extent> pendingFrees = new ArrayList<>(); // blocks the open transaction frees
+    private final Epochs<List<Extent>> epochs = new Epochs<>(); // committed frees, held back while readers may use them
+    private final Pins pins = new Pins(); // and then while transfers are still sending them
+    private final DedupIndex dedup = new DedupIndex(); // shared blocks and, when deduplicating, block fingerprints; guarded by allocLock
 
     // --- Constructor & File System Initialization --- //
     public FileSystemManager(String filename, int totalSize) throws IOException {
-        if (instance == null) {
-            File diskFile = new File(filename);
-            boolean existingFS = diskFile.exists();
+        this(filename, totalSize, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    // blockSize and maxFiles only apply when a new image is formatted; existing images keep their own geometry
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles) throws IOException {
+        this(filename, totalSize, blockSize, maxFiles, Durability.BATCHED);
+    }
+
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles, Durability durability)
+            throws IOException {
+        this(filename, totalSize, blockSize, maxFiles, durability, 0);
+    }
+
+    // cacheBytes sizes the off-heap block cache, 0 disables it
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles, Durability durability,
+                             long cacheBytes) throws IOException {
+        this(filename, totalSize, blockSize, maxFiles, durability, cacheBytes,
+                Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    // ioThreads sizes the executor behind the asynchronous API
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles, Durability durability,
+                             long cacheBytes, int ioThreads) throws IOException {
+        this(filename, totalSize, blockSize, maxFiles, durability, cacheBytes, ioThreads, false);
+    }
+
+    // deduplicate makes whole-file writes share full blocks whose contents are already on disk, see
+    // DedupIndex. Turning it on indexes the existing blocks on mount, which reads all of their data.
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles, Durability durability,
+                             long cacheBytes, int ioThreads, boolean deduplicate) throws IOException {
+        // Each image may be mounted once at a time, but any number of images may be open side by side
+        File diskFile = new File(filename);
+        String imagePath = diskFile.getCanonicalPath();
+        synchronized (FileSystemManager.class) {
+            if (!openImages.add(imagePath)) {
+                throw new IllegalStateException("Filesystem image " + filename + " is already open.");
+            }
+        }
+        this.imagePath = imagePath;
+
+        BlockDevice disk = null;
+        Journal journal = null;
+        try {
+            boolean existingFS = diskFile.exists() && diskFile.length() > 0;
 
-            this.disk = new RandomAccessFile(diskFile, "rw");
+            disk = new BlockDevice(diskFile);
+            this.disk = disk;
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                fileLocks[i] = new ReentrantLock();
+            }
 
-            // Calculate metadata size
-            int totalMetadataSize = (MAXFILES * FENTRY_SIZE) + (MAXBLOCKS * FNODE_SIZE);
-            this.fileSysMetadataBlocks = (int) Math.ceil((double) totalMetadataSize / BLOCK_SIZE);
-            this.firstDataBlock = fileSysMetadataBlocks;
+            // Replays whatever the last run committed before the image is read
+            journal = new Journal(diskFile, disk.channel(), durability, existingFS);
 
             if (existingFS) {
-                System.out.println("Loading existing filesystem...");
-                loadFileSystemMetadata();
+                Log.info("Loading existing filesystem " + filename + "...");
+                Superblock existing = readSuperblock();
+                if (existing != null) {
+                    mount(existing);
+                    loadFileSystemMetadata();
+                } else {
+                    migrateLegacyImage(Superblock.format(blockSize, INODE_SIZE, maxFiles, totalSize));
+                }
             } else {
-                System.out.println("Creating new filesystem...");
-                this.disk.setLength(totalSize);
+                Log.info("Creating new filesystem " + filename + "...");
+                format(Superblock.format(blockSize, INODE_SIZE, maxFiles, totalSize));
+            }
 
-                this.inodeTable = new FEntry[MAXFILES];
-                for (int i = 0; i < MAXFILES; i++) {
-                    this.inodeTable[i] = null;
-                }
+            if (deduplicate) {
+                indexExistingBlocks();
+            }
+            this.deduplicate = deduplicate;
 
-                this.blockList = new FNode[MAXBLOCKS];
-                for (int i = 0; i < MAXBLOCKS; i++) {
-                    this.blockList[i] = new FNode(i);
+            disk.force();
+            this.journal = journal;
+            if (cacheBytes >= this.blockSize) {
+                this.cache = new BlockCache(cacheBytes, this.blockSize);
+            }
+            AtomicInteger ioThreadCount = new AtomicInteger();
+            this.ioExecutor = Executors.newFixedThreadPool(ioThreads, runnable -> {
+                Thread thread = new Thread(runnable, "fs-io-" + ioThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } catch (IOException | RuntimeException e) {
+            // Nothing was written through the journal yet, so closing it only checkpoints what was replayed
+            try {
+                if (journal != null) {
+                    journal.close();
                 }
-
-                this.freeBlockList = new boolean[MAXBLOCKS];
-                for (int i = 0; i < MAXBLOCKS; i++) {
-                    this.freeBlockList[i] = true;
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            try {
+                if (disk != null) {
+                    disk.close();
                 }
-
-                writeFileSystemMetadata();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            synchronized (FileSystemManager.class) {
+                openImages.remove(imagePath);
             }
+            throw e;
+        }
+    }
 
-            instance = this;
-        } else {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
+    // Commits and checkpoints the journal and releases the image, after which it may be mounted again
+    public void close() throws IOException {
+        try {
+            // Let operations already submitted to the asynchronous API finish first
+            ioExecutor.shutdown();
+            try {
+                ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journal.close();
+        } finally {
+            disk.close();
+            synchronized (FileSystemManager.class) {
+                openImages.remove(imagePath);
+            }
         }
     }
 
+    // Null when the block cache is disabled
+    public BlockCache getBlockCache() {
+        return cache;
+    }
+
     // --- Methods --- //
 
+    // Names are paths: "dir/sub/name", each component at most FEntry.MAX_NAME_BYTES bytes. A leading
+    // or trailing '/' is ignored. The directories on the path must already exist.
     public void createFile(String fileName) throws Exception {
-        int indexAvailableNode = -1;
+        journal.awaitDurable(create(fileName, false));
+    }
+
+    public void makeDirectory(String path) throws Exception {
+        journal.awaitDurable(create(path, true));
+    }
+    
+    public void writeFile(String filename, String[] contents) throws Exception {
+        writeFile(filename, joinContents(contents));
+    }
+
+    // Replaces the whole file with arbitrary bytes. The new contents go to fresh blocks and replace the
+    // old ones in one step, so if the write fails the file keeps its old data.
+    public void writeFile(String filename, byte[] data) throws Exception {
+        journal.awaitDurable(replace(filename, data));
+    }
 
-        globalLock.lock();
+    public String readFile(String filename) throws Exception {
+        return new String(readFileBytes(filename), StandardCharsets.UTF_8);
+    }
+
+    // No file lock - reads see the contents published when they start and never wait on writers
+    public byte[] readFileBytes(String filename) throws Exception {
+        long epoch = epochs.enter();
 
         try {
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] != null) {
-                    if (inodeTable[i].getFilename().equals(fileName)) {
-                        throw new UnsupportedOperationException("File already exists.");
-                    }
-                }
-            }
+            return readAll(findFile(filename).getContents());
+        } finally {
+            epochs.exit(epoch);
+        }
+    }
 
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] == null) {
-                    indexAvailableNode = i;
-                    break;
+    // Up to length bytes starting at offset; fewer (or none) when that runs past the end of the file.
+    // Only the blocks holding the range are read.
+    public byte[] readFileBytes(String filename, long offset, int length) throws Exception {
+        checkRange(offset, length);
+        long epoch = epochs.enter();
+
+        try {
+            FileContents contents = findFile(filename).getContents();
+            byte[] data = new byte[(int) Math.max(0, Math.min(length, contents.getFilesize() - offset))];
+            if (contents.isCompressed()) {
+                if (data.length > 0) {
+                    readCompressed(contents, offset, data, data.length);
                 }
+            } else {
+                readExtents(contents, offset, data, 0, data.length);
             }
+            return data;
+        } finally {
+            epochs.exit(epoch);
+        }
+    }
 
-            if (indexAvailableNode != -1) {
-                inodeTable[indexAvailableNode] = new FEntry(fileName, (short) 0, (short) -1);
-                writeFileSystemMetadata();
-            } else {
-                throw new UnsupportedOperationException("Not enough space to create file");
+    // Called with the file size once the file is found, before any of its data is sent
+    public interface SizeListener {
+        void onSize(long size) throws IOException;
+    }
+
+    // Zero-copy read: streams the file's extents from the disk image straight into target with
+    // FileChannel.transferTo. Nothing is buffered on the heap.
+    public long transferFile(String filename, WritableByteChannel target, SizeListener listener) throws IOException {
+        return transferFile(filename, 0, Long.MAX_VALUE, target, listener);
+    }
+
+    // Same for up to length bytes starting at offset. The listener gets the number of bytes that will
+    // actually be sent, which is less than length near the end of the file.
+    public long transferFile(String filename, long offset, long length, WritableByteChannel target,
+                             SizeListener listener) throws IOException {
+        try (Transfer transfer = openTransfer(filename, offset, length)) {
+            listener.onSize(transfer.getSize());
+            while (!transfer.isFinished()) {
+                transfer.transferTo(target); // a blocking target takes something every time
             }
+            return transfer.getSize();
+        }
+    }
 
-            System.out.println("Created file: " + fileName);
+    // Starts a read of up to length bytes at offset that the caller sends a piece at a time, see Transfer
+    public Transfer openTransfer(String filename, long offset, long length) throws IOException {
+        checkRange(offset, length);
+        FileContents contents;
+        long epoch = epochs.enter();
+        try {
+            contents = findFile(filename).getContents();
+            pins.pin(contents);
         } finally {
-            globalLock.unlock();
+            epochs.exit(epoch);
         }
-    }
-    
-    public void writeFile(String filename, String[] contents) throws Exception {
-        globalLock.lock();
 
         try {
-            int fileIndex = -1;
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] != null && inodeTable[i].getFilename().equals(filename)) {
-                    fileIndex = i;
-                    break;
+            long size = Math.max(0, Math.min(length, contents.getFilesize() - offset));
+            return new Transfer(contents, offset, size);
+        } catch (IOException | RuntimeException e) {
+            pins.unpin(contents);
+            throw e;
+        }
+    }
+
+    // A read sent a piece of at most TRANSFER_CHUNK_BYTES per call, so a non-blocking socket can be fed
+    // whenever it is writable without a thread waiting on a slow client. It sends the contents the file
+    // had when it was opened, whose blocks its pin keeps from being reused without holding back other
+    // frees, so it must be closed whether it finished or not. Calls must not overlap, but may come from
+    // different threads.
+    public class Transfer implements AutoCloseable {
+        private final FileContents contents;
+        private final long size;
+        private long offset; // of the next byte to send
+        private long remaining;
+        private boolean closed;
+
+        // Compressed files are inflated a chunk at a time on the heap
+        private InputStream inflated;
+        private byte[] chunk;
+        private ByteBuffer pending = ByteBuffer.allocate(0); // inflated but not sent yet
+
+        private Transfer(FileContents contents, long offset, long size) throws IOException {
+            this.contents = contents;
+            this.offset = offset;
+            this.size = size;
+            this.remaining = size;
+            if (contents.isCompressed() && size > 0) {
+                inflated = inflate(contents);
+                try {
+                    inflated.skipNBytes(offset);
+                } catch (IOException e) {
+                    inflated.close();
+                    throw e;
                 }
+                chunk = new byte[(int) Math.min(COMPRESS_CHUNK_BYTES, size)];
             }
+        }
 
-            if (fileIndex == -1) {
-                throw new UnsupportedOperationException("File does not exist.");
+        // Bytes the whole transfer sends
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isFinished() {
+            return remaining == 0 && !pending.hasRemaining();
+        }
+
+        // Sends the next piece, or what target takes of it, and returns how many bytes that was: zero
+        // only when a non-blocking target is full or the transfer is finished
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (closed) {
+                throw new IllegalStateException("Transfer is closed.");
+            }
+            if (inflated != null) {
+                return transferInflated(target);
+            }
+            if (remaining == 0) {
+                return 0;
             }
 
-            // Delete existing contents
-            if (inodeTable[fileIndex].getFirstBlock() != -1) {
-                deleteContents(inodeTable[fileIndex].getFirstBlock());
+            ExtentMap extents = contents.getExtents();
+            int index = extents.find(offset / blockSize);
+            long extentOffset = offset - extents.getLogicalStart(index) * blockSize;
+            long count = Math.min((long) extents.getLength(index) * blockSize - extentOffset,
+                    Math.min(remaining, TRANSFER_CHUNK_BYTES));
+            long n = disk.transferTo((long) extents.getStart(index) * blockSize + extentOffset, count, target);
+            offset += n;
+            remaining -= n;
+            return n;
+        }
+
+        private long transferInflated(WritableByteChannel target) throws IOException {
+            if (!pending.hasRemaining() && remaining > 0) {
+                int n = inflated.readNBytes(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n == 0) {
+                    throw new IOException("Compressed data ends before the end of the file.");
+                }
+                pending = ByteBuffer.wrap(chunk, 0, n);
+                remaining -= n;
             }
+            return target.write(pending);
+        }
 
-            // Build content string (skip command and filename)
-            StringBuilder contentBuilder = new StringBuilder();
-            for (int i = 2; i < contents.length; i++) {
-                contentBuilder.append(contents[i]);
-                if (i < contents.length - 1) {
-                    contentBuilder.append(" ");
+        // Lets the blocks go; the transfer can't be used afterwards
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (inflated != null) {
+                try {
+                    inflated.close();
+                } catch (IOException e) {
+                    // Ignore, nothing was written
                 }
             }
+            pins.unpin(contents);
+        }
+    }
+
+    // Overwrites data.length bytes at offset, growing the file if they reach past its end. A gap between
+    // the old end and offset reads as zeros. Only the blocks in the range (and any new ones) are written.
+    public void writeFile(String filename, long offset, byte[] data) throws Exception {
+        checkRange(offset, 0);
+        journal.awaitDurable(writeRange(filename, offset, data));
+    }
 
-            byte[] data = contentBuilder.toString().getBytes(StandardCharsets.UTF_8);
-            int blocksNeeded = (int) Math.ceil((double) data.length / BLOCK_SIZE);
+    // Adds data at the end of the file
+    public void appendFile(String filename, byte[] data) throws Exception {
+        journal.awaitDurable(writeRange(filename, -1, data));
+    }
 
-            if (blocksNeeded > MAXBLOCKS - firstDataBlock) {
-                throw new UnsupportedOperationException("Not enough block space to write.");
-            }
+    // Stores the file deflated (or raw again), so it takes fewer blocks and less I/O at the cost of CPU.
+    // Whole-file writes keep the file's mode. Reads inflate the data on the fly, from the start of the
+    // file, so a range read costs what reading up to its end does; a write to part of a compressed
+    // file rewrites all of it. Both the switch and those writes hold the whole file in memory.
+    public void setCompressed(String filename, boolean compressed) throws Exception {
+        journal.awaitDurable(recompress(filename, compressed));
+    }
+
+    public boolean isCompressed(String filename) {
+        return findFile(filename).isCompressed();
+    }
+
+    // Throws what reading or writing the file would if it doesn't exist or is a directory
+    void checkFile(String filename) {
+        findFile(filename);
+    }
+
+    // Whether a file or directory exists at path
+    boolean exists(String path) {
+        acquire(tableLock.readLock(), tableLockWaits);
+        try {
+            return nameIndex.get(canonical(path)) != -1;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    public boolean isDirectory(String path) {
+        acquire(tableLock.readLock(), tableLockWaits);
+        try {
+            int index = nameIndex.get(canonical(path));
+            return index != -1 && inodeTable[index].isDirectory();
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    // Starts replacing a file with exactly length bytes that arrive in pieces. Space for the new
+    // contents is allocated up front and filled by Upload.write without holding any lock, then
+    // commit publishes it in place of the old contents. Until then readers keep seeing the old file,
+    // and nothing is buffered in memory however large the file is.
+    // A compressed file stays compressed: its data is deflated on the way in.
+    public Upload beginUpload(String filename, long length) throws IOException {
+        return new Upload(filename, length, findFile(filename).isCompressed());
+    }
 
-            // Count free blocks
-            int numberFreeBlocks = 0;
-            for (int i = firstDataBlock; i < freeBlockList.length; i++) {
-                if (freeBlockList[i]) {
-                    numberFreeBlocks++;
+    public class Upload {
+        private final String filename;
+        private final long length;
+        private ExtentMap extents = new ExtentMap(); // the blocks reserved for the new contents
+        private int[] indirectBlocks;
+        private long written;
+        private boolean done;
+
+        // Compressed uploads deflate the data as it arrives and write the result to the reserved blocks,
+        // which are sized for incompressible data; the ones left over are given back at the end
+        private final boolean compressed;
+        private Deflater deflater; // null once finished, and for empty files
+        private byte[] deflated;
+        private long stored; // deflate output written so far
+
+        // Deduplicating uploads place data a run of blocks at a time instead of writing it straight to
+        // the reserved blocks, see placeRun
+        private final boolean deduplicating;
+        private byte[] pending; // data not placed yet, starting at logical block placedBlocks
+        private int pendingLength;
+        private long placedBlocks;
+        private final ExtentMap placed = new ExtentMap(); // where the placed blocks ended up
+        private final BitSet shared = new BitSet(); // placed blocks mapped to a copy that was already there
+        private final Map<ByteBuffer, Integer> ownBlocks = new HashMap<>(); // full blocks written, indexed on install
+
+        private Upload(String filename, long length, boolean compressed) throws IOException {
+            if (length < 0) {
+                throw new IllegalArgumentException("Length cannot be negative.");
+            }
+            this.filename = filename;
+            this.length = length;
+            this.compressed = compressed;
+            this.deduplicating = deduplicate && !compressed && length >= blockSize;
+
+            // The old contents stay in place until readers are done with them, so this needs room for both
+            long reserved = compressed && length > 0 ? deflateBound(length) : length;
+            long blocksNeeded = (reserved + blockSize - 1) / blockSize;
+            acquire(allocLock, allocLockWaits);
+            try {
+                List<Extent> allocated = blocksNeeded > maxBlocks ? null : allocateBlocks((int) blocksNeeded, -1);
+                if (allocated != null) {
+                    for (Extent extent : allocated) {
+                        extents.add(extent);
+                    }
+                }
+                int[] indirect = allocated == null ? null : allocateIndirectBlocks(extents.size());
+                if (indirect == null) {
+                    if (allocated != null) {
+                        for (Extent extent : allocated) {
+                            bitmap.free(extent.getStart(), extent.getLength());
+                        }
+                    }
+                    throw new UnsupportedOperationException("Not enough block space to write.");
                 }
+                this.indirectBlocks = indirect;
+            } finally {
+                allocLock.unlock();
             }
 
-            if (numberFreeBlocks < blocksNeeded) {
-                throw new UnsupportedOperationException("Not enough block space to write.");
+            if (compressed && length > 0) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                deflated = new byte[(int) Math.min(COMPRESS_CHUNK_BYTES, reserved)];
             }
+        }
 
-            // Allocate blocks and create linked list
-            int[] allocatedBlocks = new int[blocksNeeded];
-            int count = 0;
-            for (int i = firstDataBlock; i < freeBlockList.length && count < blocksNeeded; i++) {
-                if (freeBlockList[i]) {
-                    allocatedBlocks[count] = i;
-                    freeBlockList[i] = false;
-                    count++;
-                }
+        // Appends src (position to limit) to the new contents. Calls must not overlap, but may come
+        // from different threads one after the other.
+        public void write(ByteBuffer src) throws IOException {
+            if (done) {
+                throw new IllegalStateException("Upload is already finished.");
+            }
+            if (src.remaining() > length - written) {
+                throw new IllegalArgumentException("More data than the upload's length.");
+            }
+            if (!src.hasRemaining()) {
+                return; // the end of a deduplicated or compressed upload is only handled once
+            }
+            int n = src.remaining();
+            if (compressed) {
+                writeCompressed(src);
+            } else if (deduplicating) {
+                writeDeduplicated(src);
+            } else {
+                writeAt(extents, written, src);
             }
+            written += n;
 
-            // Link the FNodes
-            for (int i = 0; i < allocatedBlocks.length - 1; i++) {
-                blockList[allocatedBlocks[i]].setNext(allocatedBlocks[i + 1]);
+            if (compressed && written == length && length > 0) {
+                finishCompressed();
+            } else if (deduplicating && written == length) {
+                placeRun(true);
+                fitIndirectBlocks(placed);
             }
-            blockList[allocatedBlocks[allocatedBlocks.length - 1]].setNext(-1);
+        }
 
-            // Write data to disk blocks
-            for (int i = 0; i < allocatedBlocks.length; i++) {
-                int blockIdx = allocatedBlocks[i];
-                long diskOffset = (long) blockIdx * BLOCK_SIZE;
-                disk.seek(diskOffset);
+        private void writeCompressed(ByteBuffer src) throws IOException {
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                writeDeflated();
+            }
+        }
 
-                int startPos = i * BLOCK_SIZE;
-                int endPos = Math.min(startPos + BLOCK_SIZE, data.length);
-                int bytesToWrite = endPos - startPos;
+        // Flushes the rest of the deflate data and gives back the reserved blocks it didn't need
+        private void finishCompressed() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflated();
+            }
+            deflater.end();
+            deflater = null;
+
+            long used = (stored + blockSize - 1) / blockSize;
+            ExtentMap kept = new ExtentMap();
+            kept.addRange(extents, 0, used);
+            ExtentMap unused = new ExtentMap();
+            unused.addRange(extents, used, extents.getBlockCount() - used);
+            acquire(allocLock, allocLockWaits);
+            try {
+                for (int i = 0; i < unused.size(); i++) {
+                    bitmap.free(unused.getStart(i), unused.getLength(i));
+                }
+                extents = kept;
+            } finally {
+                allocLock.unlock();
+            }
+            fitIndirectBlocks(extents);
+        }
 
-                byte[] blockData = new byte[BLOCK_SIZE];
-                System.arraycopy(data, startPos, blockData, 0, bytesToWrite);
-                disk.write(blockData);
+        private void writeDeflated() throws IOException {
+            int n = deflater.deflate(deflated);
+            if (n > 0) {
+                writeAt(extents, stored, ByteBuffer.wrap(deflated, 0, n));
+                stored += n;
             }
+        }
 
-            // Update FEntry
-            inodeTable[fileIndex].setFilesize((short) data.length);
-            inodeTable[fileIndex].setFirstBlock((short) allocatedBlocks[0]);
+        private void writeDeduplicated(ByteBuffer src) throws IOException {
+            if (pending == null) {
+                pending = new byte[Math.max(1, DEDUP_RUN_BYTES / blockSize) * blockSize];
+            }
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), pending.length - pendingLength);
+                src.get(pending, pendingLength, n);
+                pendingLength += n;
+                if (pendingLength == pending.length) {
+                    placeRun(false);
+                }
+            }
+        }
 
-            // Write updated metadata
-            writeFileSystemMetadata();
+        // Places the full blocks of pending. Each is fingerprinted; if its contents are already on disk
+        // (in another file, or earlier in this one) it is mapped to that copy and the block reserved for
+        // it is freed, otherwise it is written to its reserved block. With last, the partial block at the
+        // end of the file is written too.
+        private void placeRun(boolean last) throws IOException {
+            int blocks = pendingLength / blockSize;
+            MessageDigest digest = DedupIndex.newDigest();
+            ByteBuffer[] fingerprints = new ByteBuffer[blocks];
+            for (int i = 0; i < blocks; i++) {
+                fingerprints[i] = DedupIndex.fingerprint(digest, pending, i * blockSize, blockSize);
+            }
 
-            System.out.println("Wrote " + data.length + " bytes to file: " + filename);
-        } finally {
-            globalLock.unlock();
+            long first = placedBlocks;
+            int[] targets = new int[blocks];
+            acquire(allocLock, allocLockWaits);
+            try {
+                for (int i = 0; i < blocks; i++) {
+                    int reserved = (int) extents.physicalBlock(first + i);
+                    int existing = dedup.find(fingerprints[i]);
+                    if (existing == -1) {
+                        existing = ownBlocks.getOrDefault(fingerprints[i], -1);
+                    }
+                    if (existing != -1) {
+                        dedup.pin(existing);
+                        bitmap.free(reserved, 1); // never published, so free again right away
+                        shared.set((int) (first + i));
+                        targets[i] = existing;
+                    } else {
+                        ownBlocks.put(fingerprints[i], reserved);
+                        targets[i] = reserved;
+                    }
+                    placed.add(targets[i], 1);
+                }
+                placedBlocks += blocks;
+            } finally {
+                allocLock.unlock();
+            }
+
+            // One write per run of adjacent blocks that weren't shared
+            for (int i = 0; i < blocks; ) {
+                if (shared.get((int) (first + i))) {
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < blocks && !shared.get((int) (first + end)) && targets[end] == targets[end - 1] + 1) {
+                    end++;
+                }
+                writeBlocks(targets[i], pending, i * blockSize, (end - i) * blockSize);
+                i = end;
+            }
+
+            int tail = pendingLength - blocks * blockSize;
+            if (last && tail > 0) {
+                int reserved = (int) extents.physicalBlock(placedBlocks);
+                writeBlocks(reserved, pending, blocks * blockSize, tail);
+                placed.add(reserved, 1);
+                placedBlocks++;
+                tail = 0;
+            }
+            System.arraycopy(pending, blocks * blockSize, pending, 0, tail);
+            pendingLength = tail;
         }
-    }
 
-    // No lock - allow threads to read conccurently
-    public String readFile(String filename) throws Exception {
-        int fileIndex = -1;
-        for (int i = 0; i < inodeTable.length; i++) {
-            if (inodeTable[i] != null && inodeTable[i].getFilename().equals(filename)) {
-                fileIndex = i;
-                break;
+        // Shared blocks split the placed map into more extents than were reserved, or merge none and
+        // leave fewer, and compression leaves fewer: grow or trim the indirect blocks to match
+        private void fitIndirectBlocks(ExtentMap map) {
+            acquire(allocLock, allocLockWaits);
+            try {
+                int needed = indirectBlocksFor(map.size());
+                if (needed > indirectBlocks.length) {
+                    int[] grown = growIndirectBlocks(indirectBlocks, map.size());
+                    if (grown == null) {
+                        throw new UnsupportedOperationException("Not enough block space to write.");
+                    }
+                    indirectBlocks = grown;
+                } else {
+                    for (int i = needed; i < indirectBlocks.length; i++) {
+                        bitmap.free(indirectBlocks[i], 1);
+                    }
+                    indirectBlocks = Arrays.copyOf(indirectBlocks, needed);
+                }
+            } finally {
+                allocLock.unlock();
             }
         }
 
-        if (fileIndex == -1) {
-            throw new UnsupportedOperationException("File does not exist.");
+        public long getWritten() {
+            return written;
         }
 
-        FEntry entry = inodeTable[fileIndex];
-        if (entry.getFirstBlock() == -1 || entry.getFilesize() == 0) {
-            return "";
+        // Replaces the file's contents with the uploaded data once all of it has been written
+        public void commit() throws Exception {
+            journal.awaitDurable(publish());
         }
 
-        // Read data from linked blocks
-        byte[] fileData = new byte[entry.getFilesize()];
-        int currentBlock = entry.getFirstBlock();
-        int bytesRead = 0;
+        // Same, but returns once the new contents are visible, with the LSN that makes them durable
+        private long publish() throws Exception {
+            if (done) {
+                throw new IllegalStateException("Upload is already finished.");
+            }
+            if (written != length) {
+                abort();
+                throw new UnsupportedOperationException("Upload is incomplete.");
+            }
+
+            int fileIndex;
+            try {
+                fileIndex = lockFile(filename);
+            } catch (UnsupportedOperationException e) {
+                abort();
+                throw e;
+            }
 
-        while (currentBlock != -1 && bytesRead < entry.getFilesize()) {
-            long diskOffset = (long) currentBlock * BLOCK_SIZE;
-            disk.seek(diskOffset);
+            try {
+                return publish(fileIndex);
+            } finally {
+                fileLock(fileIndex).unlock();
+            }
+        }
 
-            int bytesToRead = Math.min(BLOCK_SIZE, entry.getFilesize() - bytesRead);
-            byte[] blockData = new byte[bytesToRead];
-            disk.read(blockData);
+        // Same, for a complete upload whose file's lock the caller already holds
+        private long publish(int fileIndex) throws Exception {
+            long lsn;
+            acquire(tableLock.readLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                install(fileIndex);
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.readLock().unlock();
+            }
 
-            System.arraycopy(blockData, 0, fileData, bytesRead, bytesToRead);
-            bytesRead += bytesToRead;
+            Log.debug(() -> "Wrote " + length + " bytes to file: " + filename);
+            return lsn;
+        }
 
-            currentBlock = blockList[currentBlock].getNext();
+        // Swaps the new contents in. Caller holds the file's lock, the table lock and allocLock.
+        private void install(int fileIndex) throws IOException {
+            done = true; // the blocks belong to the file from here on
+            FEntry entry = inodeTable[fileIndex];
+            FileContents old = entry.getContents();
+            FileContents contents = new FileContents(length, deduplicating ? placed : extents, indirectBlocks,
+                    compressed, compressed ? stored : length);
+            entry.setContents(contents);
+            publishBlocks(contents.getExtents(), indirectBlocks, 0);
+            deleteContents(old);
+            writeIndirectBlocks(contents);
+            dirtyInodes.set(fileIndex);
+            for (Map.Entry<ByteBuffer, Integer> block : ownBlocks.entrySet()) {
+                dedup.index(block.getValue(), block.getKey());
+            }
         }
 
-        return new String(fileData, StandardCharsets.UTF_8);
+        // Gives back the space of an upload that won't be committed. Nothing refers to it yet, so it is
+        // free again right away.
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+            acquire(allocLock, allocLockWaits);
+            try {
+                // Placed blocks mapped to an existing copy only give back the reference they took; the
+                // blocks reserved for them were freed when they were placed
+                ExtentMap unshared = extents;
+                if (deduplicating) {
+                    for (long i = 0; i < placedBlocks; i++) {
+                        int block = (int) placed.physicalBlock(i);
+                        if (shared.get((int) i)) {
+                            freeBlocks(block, 1);
+                        } else {
+                            bitmap.free(block, 1);
+                        }
+                    }
+                    unshared = new ExtentMap();
+                    unshared.addRange(extents, placedBlocks, extents.getBlockCount() - placedBlocks);
+                }
+                for (int i = 0; i < unshared.size(); i++) {
+                    bitmap.free(unshared.getStart(i), unshared.getLength(i));
+                }
+                for (int block : indirectBlocks) {
+                    bitmap.free(block, 1);
+                }
+            } finally {
+                allocLock.unlock();
+            }
+        }
     }
 
     public void deleteFile(String fileName) throws Exception {
-        globalLock.lock();
+        journal.awaitDurable(delete(fileName));
+    }
+
+    // Deletes a file, or a directory if it is empty
+    private long delete(String fileName) throws Exception {
+        if (isDirectory(fileName)) {
+            return deleteDirectory(fileName);
+        }
 
+        int fileIndex;
         try {
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] != null) {
-                    if (inodeTable[i].getFilename().equals(fileName)) {
-                        if (inodeTable[i].getFirstBlock() != -1) {
-                            deleteContents(inodeTable[i].getFirstBlock());
-                        }
+            fileIndex = lockFile(fileName);
+        } catch (UnsupportedOperationException e) {
+            throw new UnsupportedOperationException("File not found");
+        }
 
-                        inodeTable[i] = null;
-                        writeFileSystemMetadata();
+        try {
+            long lsn;
+            acquire(tableLock.writeLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                remove(fileIndex);
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.writeLock().unlock();
+            }
 
-                        System.out.println("Deleted file: " + fileName);
-                        return;
-                    }
-                }
+            Log.debug(() -> "Deleted file: " + fileName);
+            return lsn;
+        } finally {
+            fileLock(fileIndex).unlock();
+        }
+    }
+
+    // Directories have no contents, so only the table lock guards them
+    private long deleteDirectory(String path) throws Exception {
+        long lsn;
+        acquire(tableLock.writeLock(), tableLockWaits);
+        try {
+            int index = nameIndex.get(canonical(path));
+            if (index == -1 || !inodeTable[index].isDirectory()) {
+                throw new UnsupportedOperationException("File not found");
+            }
+            if (inodeTable[index].getChildren().size() > 0) {
+                throw new UnsupportedOperationException("Directory is not empty.");
             }
 
-            throw new UnsupportedOperationException("File not found");
+            acquire(allocLock, allocLockWaits);
+            try {
+                remove(index);
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+            }
         } finally {
-            globalLock.unlock();
+            tableLock.writeLock().unlock();
         }
+
+        Log.debug(() -> "Deleted directory: " + path);
+        return lsn;
     }
 
-    // No lock - allow threads to list files conccurently
+    // Entries of the root directory
     public String[] listFiles() {
-        // Count number of files
-        int count = 0;
-        for (int i = 0; i < inodeTable.length; i++) {
-            if (inodeTable[i] != null) {
-                count++;
-            }
+        return listFiles("");
+    }
+
+    // Names of every entry of a directory in name order, directories with a trailing '/'
+    public String[] listFiles(String directory) {
+        List<ListEntry> entries = listFiles(directory, "", null, Integer.MAX_VALUE);
+        String[] list = new String[entries.size()];
+        for (int i = 0; i < list.length; i++) {
+            ListEntry entry = entries.get(i);
+            list[i] = entry.isDirectory() ? entry.getName() + "/" : entry.getName();
         }
+        return list;
+    }
 
-        String[] list = new String[count];
+    // Up to limit entries of a directory in name order: those whose name starts with prefix and comes
+    // after the name `after` (null to start from the first). Passing the last name of one page as
+    // `after` gives the next. A page costs its own size, not the directory's, under a brief shared
+    // table lock - listings run concurrently with each other and with file reads/writes.
+    public List<ListEntry> listFiles(String directory, String prefix, String after, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative.");
+        }
+        acquire(tableLock.readLock(), tableLockWaits);
 
-        // If more >0 return all file names
-        if (count == 0) {
-            return list;
-        } else {
-            int listIndex = 0;
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] != null) {
-                    list[listIndex] = inodeTable[i].getFilename();
-                    listIndex++;
-                }
+        try {
+            List<ListEntry> page = new ArrayList<>();
+            for (int inode : directoryIndex(directory).page(prefix, after, limit)) {
+                FEntry entry = inodeTable[inode];
+                FileContents contents = entry.getContents();
+                page.add(new ListEntry(entry.getFilename(), entry.isDirectory(), contents.getFilesize(),
+                        contents.getExtents().getBlockCount() + contents.getIndirectBlocks().length));
             }
-            return list;
+            return page;
+        } finally {
+            tableLock.readLock().unlock();
         }
     }
+
+    // One entry of a directory listing, as it was when listed
+    public static class ListEntry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long blocks;
+
+        ListEntry(String name, boolean directory, long size, long blocks) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.blocks = blocks;
+        }
+
+        public String getName() { return name; }
+        public boolean isDirectory() { return directory; }
+        public long getSize() { return size; }
+        public long getBlocks() { return blocks; } // data and indirect blocks the file occupies
+    }
     
-    // --- Private Functions --- //
-    
-    private void loadFileSystemMetadata() throws IOException {
-        disk.seek(0);
+    // --- Batches --- //
+    // Several files in one call, taking each lock once for the whole batch. writeFiles and deleteFiles
+    // are all-or-nothing: they commit as one journal transaction, and if any file is missing or space
+    // runs out nothing changes. A name may appear only once per batch.
 
-        // Read FEntry array
-        this.inodeTable = new FEntry[MAXFILES];
-        for (int i = 0; i < MAXFILES; i++) {
-            byte[] nameBytes = new byte[11];
-            disk.read(nameBytes);
-
-            short filesize = disk.readShort();
-            short firstBlock = disk.readShort();
-
-            // Check for file names
-            String filename = new String(nameBytes, StandardCharsets.UTF_8).trim();
-            if (!filename.isEmpty() && filesize >= 0) {
-                inodeTable[i] = new FEntry(filename, filesize, firstBlock);
-            } else {
-                inodeTable[i] = null;
+    // Reads every file under one table lookup; a file that doesn't exist (or is a directory) reads as null
+    public byte[][] readFiles(String[] filenames) throws Exception {
+        long epoch = epochs.enter();
+
+        try {
+            FileContents[] contents = new FileContents[filenames.length];
+            acquire(tableLock.readLock(), tableLockWaits);
+            try {
+                for (int i = 0; i < filenames.length; i++) {
+                    int fileIndex = nameIndex.get(canonical(filenames[i]));
+                    boolean file = fileIndex != -1 && !inodeTable[fileIndex].isDirectory();
+                    contents[i] = file ? inodeTable[fileIndex].getContents() : null;
+                }
+            } finally {
+                tableLock.readLock().unlock();
             }
+
+            byte[][] data = new byte[filenames.length][];
+            for (int i = 0; i < filenames.length; i++) {
+                data[i] = contents[i] == null ? null : readAll(contents[i]);
+            }
+            return data;
+        } finally {
+            epochs.exit(epoch);
         }
+    }
 
-        // Read FNode array
-        this.blockList = new FNode[MAXBLOCKS];
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            int next = disk.readInt();
-            blockList[i] = new FNode(i);
-            blockList[i].setNext(next);
+    // Replaces the contents of each filenames[i] with data[i]
+    public void writeFiles(String[] filenames, byte[][] data) throws Exception {
+        journal.awaitDurable(replaceAll(filenames, data));
+    }
+
+    public void deleteFiles(String[] filenames) throws Exception {
+        journal.awaitDurable(deleteAll(filenames));
+    }
+
+    private long replaceAll(String[] filenames, byte[][] data) throws Exception {
+        if (filenames.length != data.length) {
+            throw new IllegalArgumentException("Every file needs its data.");
+        }
+        checkDistinct(filenames);
+        boolean[] compressed = new boolean[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            compressed[i] = findFile(filenames[i]).isCompressed(); // fail before allocating anything
         }
 
-        // Reset freeblocklist
-        this.freeBlockList = new boolean[MAXBLOCKS];
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            freeBlockList[i] = true;
+        // Space for the whole batch under one allocLock acquisition (Upload takes it again, reentrantly)
+        List<Upload> uploads = new ArrayList<>();
+        try {
+            acquire(allocLock, allocLockWaits);
+            try {
+                for (int i = 0; i < filenames.length; i++) {
+                    uploads.add(new Upload(filenames[i], data[i].length, compressed[i]));
+                }
+            } finally {
+                allocLock.unlock();
+            }
+            for (int i = 0; i < filenames.length; i++) {
+                uploads.get(i).write(ByteBuffer.wrap(data[i]));
+            }
+        } catch (IOException | RuntimeException e) {
+            uploads.forEach(Upload::abort);
+            throw e;
         }
 
-        // Allocate metadata in freeblocklist
-        for (int i = 0; i < firstDataBlock; i++) {
-            freeBlockList[i] = false;
+        int[] fileIndexes;
+        try {
+            fileIndexes = lockFiles(filenames);
+        } catch (UnsupportedOperationException e) {
+            uploads.forEach(Upload::abort);
+            throw e;
         }
 
-        // Update freeblocklist
-        for (int i = 0; i < MAXFILES; i++) {
-            if (inodeTable[i] != null && inodeTable[i].getFirstBlock() != -1) {
-                int currentBlock = inodeTable[i].getFirstBlock();
-                while (currentBlock != -1) {
-                    freeBlockList[currentBlock] = false;
-                    currentBlock = blockList[currentBlock].getNext();
+        try {
+            long lsn;
+            acquire(tableLock.readLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                for (int i = 0; i < filenames.length; i++) {
+                    uploads.get(i).install(fileIndexes[i]);
                 }
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.readLock().unlock();
             }
-        }
 
-        System.out.println("Filesystem loaded successfully.");
+            Log.debug(() -> "Wrote " + filenames.length + " files in one batch");
+            return lsn;
+        } finally {
+            unlockFiles(fileIndexes);
+        }
     }
-    
-    private void writeFileSystemMetadata() throws IOException {
-        disk.seek(0);
 
-        // Write FEntry array
-        for (int i = 0; i < MAXFILES; i++) {
-            if (inodeTable[i] != null) {
-                byte[] nameBytes = new byte[11];
-                byte[] fileNameByte = inodeTable[i].getFilename().getBytes(StandardCharsets.UTF_8);
-                System.arraycopy(fileNameByte, 0, nameBytes, 0, Math.min(fileNameByte.length, 11));
-                disk.write(nameBytes);
+    private long deleteAll(String[] filenames) throws Exception {
+        checkDistinct(filenames);
+        int[] fileIndexes = lockFiles(filenames);
 
-                disk.writeShort(inodeTable[i].getFilesize());
-                disk.writeShort(inodeTable[i].getFirstBlock());
-            } else {
-                disk.write(new byte[FENTRY_SIZE]);
+        try {
+            long lsn;
+            acquire(tableLock.writeLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                for (int fileIndex : fileIndexes) {
+                    remove(fileIndex);
+                }
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.writeLock().unlock();
             }
-        }
 
-        // Write FNode array
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.writeInt(blockList[i].getNext());
+            Log.debug(() -> "Deleted " + filenames.length + " files in one batch");
+            return lsn;
+        } finally {
+            unlockFiles(fileIndexes);
         }
     }
-   
-    private void deleteContents(int firstBlock) throws IOException {
-        if (firstBlock == -1) {
-            return;
-        }
 
-        int currentFNode = firstBlock;
-        while (currentFNode != -1) {
-            int nextBlock = blockList[currentFNode].getNext();
+    // --- Asynchronous API --- //
+    // The same operations without blocking the caller. Each runs on the I/O executor, and a mutation
+    // completes once its journal transaction is durable without holding a thread while it waits, so
+    // an event loop can keep thousands of them in flight. Failures complete the future exceptionally
+    // with the exception the blocking method would have thrown. Mutations complete on the journal's
+    // flusher thread, so dependent stages should be quick and must not block.
+
+    public CompletableFuture<Void> createFileAsync(String fileName) {
+        return mutate(() -> create(fileName, false));
+    }
+
+    public CompletableFuture<Void> makeDirectoryAsync(String path) {
+        return mutate(() -> create(path, true));
+    }
+
+    public CompletableFuture<Void> writeFileAsync(String filename, String[] contents) {
+        return mutate(() -> replace(filename, joinContents(contents)));
+    }
 
-            long diskOffset = (long) currentFNode * BLOCK_SIZE;
-            disk.seek(diskOffset);
-            byte[] zeros = new byte[BLOCK_SIZE];
-            disk.write(zeros);
+    public CompletableFuture<Void> writeFileAsync(String filename, byte[] data) {
+        return mutate(() -> replace(filename, data));
+    }
 
-            blockList[currentFNode].setNext(-1);
-            freeBlockList[currentFNode] = true;
+    public CompletableFuture<Void> writeFileAsync(String filename, long offset, byte[] data) {
+        return mutate(() -> {
+            checkRange(offset, 0);
+            return writeRange(filename, offset, data);
+        });
+    }
 
-            currentFNode = nextBlock;
+    public CompletableFuture<Void> appendFileAsync(String filename, byte[] data) {
+        return mutate(() -> writeRange(filename, -1, data));
+    }
+
+    public CompletableFuture<Void> setCompressedAsync(String filename, boolean compressed) {
+        return mutate(() -> recompress(filename, compressed));
+    }
+
+    public CompletableFuture<Void> deleteFileAsync(String fileName) {
+        return mutate(() -> delete(fileName));
+    }
+
+    public CompletableFuture<String> readFileAsync(String filename) {
+        return submit(() -> readFile(filename));
+    }
+
+    public CompletableFuture<byte[]> readFileBytesAsync(String filename) {
+        return submit(() -> readFileBytes(filename));
+    }
+
+    public CompletableFuture<byte[]> readFileBytesAsync(String filename, long offset, int length) {
+        return submit(() -> readFileBytes(filename, offset, length));
+    }
+
+    public CompletableFuture<byte[][]> readFilesAsync(String[] filenames) {
+        return submit(() -> readFiles(filenames));
+    }
+
+    public CompletableFuture<Void> writeFilesAsync(String[] filenames, byte[][] data) {
+        return mutate(() -> replaceAll(filenames, data));
+    }
+
+    public CompletableFuture<Void> deleteFilesAsync(String[] filenames) {
+        return mutate(() -> deleteAll(filenames));
+    }
+
+    // Work that ends in a journal transaction, given by the LSN it returns
+    private interface Mutation {
+        long apply() throws Exception;
+    }
+
+    private CompletableFuture<Void> mutate(Mutation mutation) {
+        return submit(mutation::apply).thenCompose(journal::whenDurable);
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return operation.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor);
+    }
+
+    // --- Statistics --- //
+
+    // Lock wait distributions by lock name
+    public Map<String, LatencyHistogram> getLockWaits() {
+        Map<String, LatencyHistogram> waits = new LinkedHashMap<>();
+        waits.put("file", fileLockWaits);
+        waits.put("table", tableLockWaits);
+        waits.put("alloc", allocLockWaits);
+        return waits;
+    }
+
+    // Inodes in use, directories included
+    public int getFileCount() {
+        tableLock.readLock().lock();
+        try {
+            return nameIndex.size();
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    public long getBlockCount() {
+        return maxBlocks;
+    }
+
+    public long getFreeBlockCount() {
+        allocLock.lock();
+        try {
+            return bitmap.getFreeCount();
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    // Scans the inode table, so it costs the inode count
+    public CompressionStats getCompressionStats() {
+        tableLock.readLock().lock();
+        try {
+            CompressionStats stats = new CompressionStats();
+            for (FEntry entry : inodeTable) {
+                FileContents contents = entry == null ? null : entry.getContents();
+                if (contents != null && contents.isCompressed()) {
+                    stats.files++;
+                    stats.bytes += contents.getFilesize();
+                    stats.storedBytes += contents.getStoredSize();
+                }
+            }
+            return stats;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    // The compressed files, their total size and the bytes their data takes on disk
+    public static class CompressionStats {
+        private int files;
+        private long bytes;
+        private long storedBytes;
+
+        public int getFiles() { return files; }
+        public long getBytes() { return bytes; }
+        public long getStoredBytes() { return storedBytes; }
+
+        // Size over stored size, 1 when nothing is compressed
+        public double getRatio() {
+            return storedBytes == 0 ? 1.0 : (double) bytes / storedBytes;
+        }
+
+        // Totals over several file systems
+        void add(CompressionStats other) {
+            files += other.files;
+            bytes += other.bytes;
+            storedBytes += other.storedBytes;
+        }
+    }
+
+    public boolean isDeduplicating() {
+        return deduplicate;
+    }
+
+    // Extra references to shared blocks, i.e. blocks that would otherwise be stored as separate copies
+    public long getSharedBlockCount() {
+        allocLock.lock();
+        try {
+            return dedup.getSharedBlocks();
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    // Blocks not written since mount because their contents were already stored
+    public long getDedupHits() {
+        allocLock.lock();
+        try {
+            return dedup.getHits();
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    // --- Private Functions --- //
+
+    // Adds the file's (or directory's) inode to its parent directory and returns the LSN of the
+    // transaction to wait for
+    private long create(String fileName, boolean directory) throws Exception {
+        String path = canonical(fileName);
+        int slash = path.lastIndexOf('/');
+        int indexAvailableNode = -1;
+        long lsn;
+
+        acquire(tableLock.writeLock(), tableLockWaits);
+
+        try {
+            if (nameIndex.get(path) != -1) {
+                throw new UnsupportedOperationException(directory ? "Directory already exists." : "File already exists.");
+            }
+
+            int parent = FEntry.ROOT;
+            if (slash != -1) {
+                parent = nameIndex.get(path.substring(0, slash));
+                if (parent == -1 || !inodeTable[parent].isDirectory()) {
+                    throw new UnsupportedOperationException("Directory does not exist: " + path.substring(0, slash));
+                }
+            }
+
+            if (freeInodeCount > 0) {
+                indexAvailableNode = freeInodes[freeInodeCount - 1];
+            }
+
+            if (indexAvailableNode != -1) {
+                FEntry entry = new FEntry(path, parent, directory, 0, new ExtentMap());
+                inodeTable[indexAvailableNode] = entry;
+                freeInodeCount--;
+                nameIndex.put(path, indexAvailableNode);
+                entriesOf(parent).put(entry.getFilename(), indexAvailableNode);
+                acquire(allocLock, allocLockWaits);
+                try {
+                    dirtyInodes.set(indexAvailableNode);
+                    lsn = writeFileSystemMetadata();
+                } finally {
+                    allocLock.unlock();
+                }
+            } else {
+                throw new UnsupportedOperationException("Not enough space to create file");
+            }
+
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+
+        Log.debug(() -> "Created " + (directory ? "directory: " : "file: ") + path);
+        return lsn;
+    }
+
+    // Replaces the file's contents through an Upload and returns the LSN of the transaction to wait for
+    private long replace(String filename, byte[] data) throws Exception {
+        boolean compressed = findFile(filename).isCompressed(); // fail before allocating anything
+
+        Upload upload = new Upload(filename, data.length, compressed);
+        try {
+            upload.write(ByteBuffer.wrap(data));
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+        return upload.publish();
+    }
+
+    // Drops the file from the table and its directory and frees its blocks. Caller holds the file's
+    // lock, the table write lock and allocLock.
+    private void remove(int fileIndex) {
+        FEntry entry = inodeTable[fileIndex];
+        deleteContents(entry.getContents());
+
+        inodeTable[fileIndex] = null;
+        nameIndex.remove(entry.getPath());
+        entriesOf(entry.getParent()).remove(entry.getFilename());
+        freeInodes[freeInodeCount++] = fileIndex;
+        dirtyInodes.set(fileIndex);
+    }
+
+    // The whole file, read inside the caller's epoch
+    private byte[] readAll(FileContents contents) throws IOException {
+        if (contents.getFilesize() == 0) {
+            return new byte[0];
+        }
+        if (contents.getFilesize() > Integer.MAX_VALUE - 8) {
+            throw new UnsupportedOperationException("File is too large to read into memory.");
+        }
+
+        byte[] fileData = new byte[(int) contents.getFilesize()];
+        if (contents.isCompressed()) {
+            readCompressed(contents, 0, fileData, fileData.length);
+        } else {
+            readExtents(contents, 0, fileData, 0, fileData.length);
+        }
+        return fileData;
+    }
+
+    // Inflates length bytes of a compressed file starting at offset into dest. Deflate data can only be
+    // read from the start, so everything before offset is inflated and dropped.
+    private void readCompressed(FileContents contents, long offset, byte[] dest, int length) throws IOException {
+        try (InputStream in = inflate(contents)) {
+            in.skipNBytes(offset);
+            if (in.readNBytes(dest, 0, length) != length) {
+                throw new IOException("Compressed data ends before the end of the file.");
+            }
+        }
+    }
+
+    // The decompressed bytes of a compressed file, read from disk a chunk at a time
+    private InputStream inflate(FileContents contents) {
+        InputStream stored = new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = (int) Math.min(len, contents.getStoredSize() - position);
+                if (n <= 0) {
+                    return len == 0 ? 0 : -1;
+                }
+                readExtents(contents, position, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+        return new InflaterInputStream(stored, new Inflater(), COMPRESS_CHUNK_BYTES) {
+            @Override
+            public void close() throws IOException {
+                inf.end();
+                super.close();
+            }
+        };
+    }
+
+    // Largest deflate output for length bytes of input, by zlib's compressBound
+    private static long deflateBound(long length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    static void checkDistinct(String[] filenames) {
+        Set<String> paths = new HashSet<>();
+        for (String filename : filenames) {
+            paths.add(canonical(filename));
+        }
+        if (paths.size() != filenames.length) {
+            throw new UnsupportedOperationException("A file appears more than once in the batch.");
+        }
+    }
+
+    // The text of a WRITE command line: everything after the command and filename
+    private static byte[] joinContents(String[] contents) {
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int i = 2; i < contents.length; i++) {
+            contentBuilder.append(contents[i]);
+            if (i < contents.length - 1) {
+                contentBuilder.append(" ");
+            }
+        }
+        return contentBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Takes lock, recording how long that took in waits
+    private static void acquire(Lock lock, LatencyHistogram waits) {
+        long start = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - start);
+    }
+
+    private static void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length cannot be negative.");
+        }
+    }
+
+    // Writes data at offset (-1 for the end of the file). Blocks holding old data that the write touches
+    // are copied to new blocks rather than overwritten, since readers may be using them, and the new
+    // block map is published in one step. Only bytes past the old end of the file are written in place;
+    // blocks for growth are allocated next to the file's last block where they are free.
+    // Returns the LSN of the write's transaction; the caller waits for it after the file lock is released
+    private long writeRange(String filename, long offset, byte[] data) throws Exception {
+        int fileIndex = lockFile(filename);
+
+        try {
+            FEntry entry = inodeTable[fileIndex];
+            FileContents old = entry.getContents();
+            if (old.isCompressed()) {
+                return rewriteCompressed(fileIndex, old, offset, data);
+            }
+            ExtentMap oldExtents = old.getExtents();
+            long oldSize = old.getFilesize();
+            long oldBlocks = oldExtents.getBlockCount();
+            long start = offset == -1 ? oldSize : offset;
+            if (start > (long) maxBlocks * blockSize) {
+                throw new UnsupportedOperationException("Not enough block space to write.");
+            }
+            long end = start + data.length;
+            long newSize = Math.max(oldSize, end);
+            long lsn;
+
+            // Logical blocks [copyFirst, copyEnd) get new copies; both are oldBlocks when none do
+            long copyFirst = oldBlocks;
+            long copyEnd = oldBlocks;
+            if (start < Math.min(end, oldSize)) {
+                copyFirst = start / blockSize;
+                copyEnd = (Math.min(end, oldSize) + blockSize - 1) / blockSize;
+            }
+            long copyCount = copyEnd - copyFirst;
+            long growth = Math.max(0, (newSize + blockSize - 1) / blockSize - oldBlocks);
+            if (copyCount + growth > maxBlocks) {
+                throw new UnsupportedOperationException("Not enough block space to write.");
+            }
+
+            ExtentMap extents = new ExtentMap();
+            List<Extent> copies;
+            List<Extent> added;
+            int[] oldIndirect = old.getIndirectBlocks();
+            int[] indirectBlocks;
+            acquire(allocLock, allocLockWaits);
+            try {
+                copies = allocateBlocks((int) copyCount, -1);
+                added = null;
+                indirectBlocks = null;
+                if (copies != null) {
+                    extents.addRange(oldExtents, 0, copyFirst);
+                    for (Extent extent : copies) {
+                        extents.add(extent);
+                    }
+                    extents.addRange(oldExtents, copyEnd, oldBlocks - copyEnd);
+
+                    int last = extents.size() - 1;
+                    int goal = last < 0 ? -1 : extents.getStart(last) + extents.getLength(last);
+                    added = allocateBlocks((int) growth, goal);
+                }
+                if (added != null) {
+                    for (Extent extent : added) {
+                        extents.add(extent);
+                    }
+                    // A shorter map keeps a prefix of the old indirect blocks, the rest is freed on publish
+                    indirectBlocks = growIndirectBlocks(oldIndirect, extents.size());
+                    if (indirectBlocks != null && indirectBlocks.length > indirectBlocksFor(extents.size())) {
+                        indirectBlocks = Arrays.copyOf(indirectBlocks, indirectBlocksFor(extents.size()));
+                    }
+                }
+                if (indirectBlocks == null) {
+                    freeUnpublished(copies, added, null, oldIndirect);
+                    throw new UnsupportedOperationException("Not enough block space to write.");
+                }
+            } finally {
+                allocLock.unlock();
+            }
+
+            try {
+                // The parts of the first and last copied blocks outside the write keep their old bytes
+                if (copyCount > 0) {
+                    copyBytes(old, extents, copyFirst * blockSize, start);
+                    copyBytes(old, extents, Math.min(end, oldSize), Math.min(copyEnd * blockSize, oldSize));
+                }
+                // Bytes between the old end and the write may be left over from a deleted file
+                if (start > oldSize) {
+                    writeZeros(extents, oldSize, start);
+                }
+                writeAt(extents, start, ByteBuffer.wrap(data));
+            } catch (IOException | RuntimeException e) {
+                acquire(allocLock, allocLockWaits);
+                try {
+                    freeUnpublished(copies, added, indirectBlocks, oldIndirect);
+                } finally {
+                    allocLock.unlock();
+                }
+                throw e;
+            }
+
+            // Extents before the first copied (or, for pure growth, the last) one are unchanged, so only
+            // the indirect blocks from there on are rewritten, plus the one whose next pointer changes
+            int firstChangedBlock = -1;
+            if (copyCount > 0 || growth > 0) {
+                int firstChanged = copyCount > 0 ? oldExtents.find(copyFirst) : Math.max(oldExtents.size() - 1, 0);
+                firstChangedBlock = Math.min(
+                        firstChanged < INLINE_EXTENTS ? 0 : (firstChanged - INLINE_EXTENTS) / extentsPerIndirectBlock(),
+                        Math.max(Math.min(oldIndirect.length, indirectBlocks.length) - 1, 0));
+            }
+
+            acquire(tableLock.readLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                FileContents contents = new FileContents(newSize, extents, indirectBlocks);
+                entry.setContents(contents);
+                ExtentMap allocated = new ExtentMap();
+                allocated.addRange(extents, copyFirst, copyCount);
+                allocated.addRange(extents, oldBlocks, extents.getBlockCount() - oldBlocks);
+                publishBlocks(allocated, indirectBlocks, oldIndirect.length);
+
+                // The replaced blocks are reused once the readers still holding the old map are done
+                ExtentMap replaced = new ExtentMap();
+                replaced.addRange(oldExtents, copyFirst, copyCount);
+                for (int i = 0; i < replaced.size(); i++) {
+                    freeBlocks(replaced.getStart(i), replaced.getLength(i));
+                }
+                for (int i = indirectBlocks.length; i < oldIndirect.length; i++) {
+                    freeIndirectBlock(oldIndirect[i]);
+                }
+
+                if (firstChangedBlock != -1) {
+                    writeIndirectBlocks(contents, firstChangedBlock);
+                }
+                dirtyInodes.set(fileIndex);
+                // Even a write that changes no metadata commits, so it is forced like any other write
+                lsn = writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.readLock().unlock();
+            }
+
+            Log.debug(() -> "Wrote " + data.length + " bytes at offset " + start + " of file: " + filename);
+            return lsn;
+        } finally {
+            fileLock(fileIndex).unlock();
+        }
+    }
+
+    // Deflate data can't be patched in place, so a write to a compressed file inflates it, applies the
+    // write and compresses the whole file again. Caller holds the file's lock.
+    private long rewriteCompressed(int fileIndex, FileContents old, long offset, byte[] data) throws Exception {
+        long start = offset == -1 ? old.getFilesize() : offset;
+        if (start + data.length > Integer.MAX_VALUE - 8) {
+            throw new UnsupportedOperationException("File is too large to rewrite compressed.");
+        }
+        byte[] updated = readAll(old); // nothing else frees these blocks while the file is locked
+        updated = Arrays.copyOf(updated, (int) Math.max(updated.length, start + data.length));
+        System.arraycopy(data, 0, updated, (int) start, data.length);
+        return rewrite(fileIndex, updated, true);
+    }
+
+    // Switches the file between raw and compressed storage, rewriting its data in the new form
+    private long recompress(String filename, boolean compressed) throws Exception {
+        int fileIndex = lockFile(filename);
+
+        try {
+            FileContents old = inodeTable[fileIndex].getContents();
+            if (old.isCompressed() != compressed) {
+                return rewrite(fileIndex, readAll(old), compressed);
+            }
+
+            // Nothing to change, but like any write it returns once the file's earlier writes are durable
+            acquire(tableLock.readLock(), tableLockWaits);
+            acquire(allocLock, allocLockWaits);
+            try {
+                return writeFileSystemMetadata();
+            } finally {
+                allocLock.unlock();
+                tableLock.readLock().unlock();
+            }
+        } finally {
+            fileLock(fileIndex).unlock();
+        }
+    }
+
+    // Replaces the contents of a file whose lock the caller holds through an Upload
+    private long rewrite(int fileIndex, byte[] data, boolean compressed) throws Exception {
+        Upload upload = new Upload(inodeTable[fileIndex].getPath(), data.length, compressed);
+        try {
+            upload.write(ByteBuffer.wrap(data));
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+        return upload.publish(fileIndex);
+    }
+
+    // Copies bytes [from, to) of the old contents to the same offsets of the new extents
+    private void copyBytes(FileContents old, ExtentMap extents, long from, long to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        byte[] bytes = new byte[(int) (to - from)]; // never more than a block
+        readExtents(old, from, bytes, 0, bytes.length);
+        writeAt(extents, from, ByteBuffer.wrap(bytes));
+    }
+
+    // Caller holds allocLock. Gives back blocks allocated for a write that won't be published. Nothing
+    // refers to them yet, so they are free again right away. Indirect blocks past the file's current
+    // ones are new, the others are still in use.
+    private void freeUnpublished(List<Extent> copies, List<Extent> added, int[] indirectBlocks, int[] current) {
+        if (copies != null) {
+            for (Extent extent : copies) {
+                bitmap.free(extent.getStart(), extent.getLength());
+            }
+        }
+        if (added != null) {
+            for (Extent extent : added) {
+                bitmap.free(extent.getStart(), extent.getLength());
+            }
+        }
+        if (indirectBlocks != null) {
+            for (int i = current.length; i < indirectBlocks.length; i++) {
+                bitmap.free(indirectBlocks[i], 1);
+            }
+        }
+    }
+
+    // Writes src (position to limit) at the file offset, one positional write per extent it spans
+    private void writeAt(ExtentMap extents, long offset, ByteBuffer src) throws IOException {
+        int index = extents.find(offset / blockSize);
+        while (src.hasRemaining()) {
+            long extentOffset = offset - extents.getLogicalStart(index) * blockSize;
+            long room = (long) extents.getLength(index) * blockSize - extentOffset;
+            ByteBuffer piece = src.duplicate();
+            piece.limit(piece.position() + (int) Math.min(room, src.remaining()));
+            int n = piece.remaining();
+
+            long firstBlock = extents.getStart(index) + extentOffset / blockSize;
+            if (cache != null) {
+                cache.invalidate((int) firstBlock, Superblock.blocksFor(extentOffset % blockSize + n, blockSize));
+            }
+            disk.write((long) extents.getStart(index) * blockSize + extentOffset, piece);
+            src.position(src.position() + n);
+            offset += n;
+            index++;
+        }
+    }
+
+    // Writes length bytes of data to consecutive disk blocks from block on
+    private void writeBlocks(int block, byte[] data, int offset, int length) throws IOException {
+        if (cache != null) {
+            cache.invalidate(block, Superblock.blocksFor(length, blockSize));
+        }
+        disk.write((long) block * blockSize, data, offset, length);
+    }
+
+    private void writeZeros(ExtentMap extents, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(to - from, 64 * 1024));
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - from));
+            writeAt(extents, from, zeros);
+            from += zeros.limit();
+        }
+    }
+
+    private ReentrantLock fileLock(int fileIndex) {
+        return fileLocks[fileIndex % LOCK_STRIPES];
+    }
+
+    // The file's entry, looked up under a brief shared table lock
+    private FEntry findFile(String filename) {
+        acquire(tableLock.readLock(), tableLockWaits);
+        try {
+            int fileIndex = fileIndex(filename);
+            if (fileIndex == -1) {
+                throw new UnsupportedOperationException("File does not exist.");
+            }
+            return inodeTable[fileIndex];
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    // Caller holds tableLock. The inode of the file at path, or -1 if there is none; a directory
+    // can't be read or written like a file.
+    private int fileIndex(String path) {
+        int fileIndex = nameIndex.get(canonical(path));
+        if (fileIndex != -1 && inodeTable[fileIndex].isDirectory()) {
+            throw new UnsupportedOperationException(canonical(path) + " is a directory.");
+        }
+        return fileIndex;
+    }
+
+    // Caller holds tableLock. The entries of the directory at path ("" for the root).
+    private DirectoryIndex directoryIndex(String path) {
+        String directory = canonical(path);
+        if (directory.isEmpty()) {
+            return rootDirectory;
+        }
+        int index = nameIndex.get(directory);
+        if (index == -1 || !inodeTable[index].isDirectory()) {
+            throw new UnsupportedOperationException("Directory does not exist: " + directory);
+        }
+        return inodeTable[index].getChildren();
+    }
+
+    // Caller holds tableLock. The entries of the directory with the given inode, or of the root.
+    private DirectoryIndex entriesOf(int directory) {
+        return directory == FEntry.ROOT ? rootDirectory : inodeTable[directory].getChildren();
+    }
+
+    // The path as it is stored: no leading or trailing '/'
+    public static String canonical(String path) {
+        int from = 0;
+        int to = path.length();
+        while (from < to && path.charAt(from) == '/') {
+            from++;
+        }
+        while (to > from && path.charAt(to - 1) == '/') {
+            to--;
+        }
+        return path.substring(from, to);
+    }
+
+    // Finds the file and takes its stripe lock, for writers only. The slot is re-checked once locked,
+    // since the file may have been deleted (and the slot reused) in between.
+    private int lockFile(String filename) {
+        while (true) {
+            FEntry entry = null;
+            int fileIndex = -1;
+
+            acquire(tableLock.readLock(), tableLockWaits);
+            try {
+                fileIndex = fileIndex(filename);
+                if (fileIndex != -1) {
+                    entry = inodeTable[fileIndex];
+                }
+            } finally {
+                tableLock.readLock().unlock();
+            }
+
+            if (fileIndex == -1) {
+                throw new UnsupportedOperationException("File does not exist.");
+            }
+
+            ReentrantLock lock = fileLock(fileIndex);
+            acquire(lock, fileLockWaits);
+
+            acquire(tableLock.readLock(), tableLockWaits);
+            try {
+                if (inodeTable[fileIndex] == entry) {
+                    return fileIndex;
+                }
+            } finally {
+                tableLock.readLock().unlock();
+            }
+
+            lock.unlock();
+        }
+    }
+    
+    // lockFile for a whole batch. Stripes are taken in ascending order, so batches can't deadlock with each
+    // other, and a stripe shared by several files is taken once. Returns the inode indexes in the order
+    // of filenames.
+    private int[] lockFiles(String[] filenames) {
+        while (true) {
+            int[] fileIndexes = new int[filenames.length];
+            FEntry[] entries = new FEntry[filenames.length];
+
+            acquire(tableLock.readLock(), tableLockWaits);
+            try {
+                for (int i = 0; i < filenames.length; i++) {
+                    fileIndexes[i] = fileIndex(filenames[i]);
+                    if (fileIndexes[i] == -1) {
+                        throw new UnsupportedOperationException("File does not exist: " + filenames[i]);
+                    }
+                    entries[i] = inodeTable[fileIndexes[i]];
+                }
+            } finally {
+                tableLock.readLock().unlock();
+            }
+
+            BitSet stripes = stripesOf(fileIndexes);
+            for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+                acquire(fileLocks[stripe], fileLockWaits);
+            }
+
+            boolean unchanged = true;
+            acquire(tableLock.readLock(), tableLockWaits);
+            try {
+                for (int i = 0; i < filenames.length; i++) {
+                    unchanged &= inodeTable[fileIndexes[i]] == entries[i];
+                }
+            } finally {
+                tableLock.readLock().unlock();
+            }
+            if (unchanged) {
+                return fileIndexes;
+            }
+            unlockFiles(fileIndexes);
+        }
+    }
+
+    private void unlockFiles(int[] fileIndexes) {
+        BitSet stripes = stripesOf(fileIndexes);
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            fileLocks[stripe].unlock();
+        }
+    }
+
+    private static BitSet stripesOf(int[] fileIndexes) {
+        BitSet stripes = new BitSet(LOCK_STRIPES);
+        for (int fileIndex : fileIndexes) {
+            stripes.set(fileIndex % LOCK_STRIPES);
+        }
+        return stripes;
+    }
+
+    private Superblock readSuperblock() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Superblock.SIZE);
+        disk.read(0, buffer);
+        buffer.flip();
+        return Superblock.read(buffer);
+    }
+
+    private void writeSuperblock() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        superblock.write(header);
+        header.rewind();
+        disk.write(0, header);
+    }
+
+    private void mount(Superblock sb) throws IOException {
+        if (sb.getVersion() > Superblock.VERSION) {
+            throw new IOException("Filesystem format version " + sb.getVersion() + " is newer than this server supports.");
+        }
+        if (sb.getInodeSize() != INODE_SIZE) {
+            throw new IOException("Unsupported inode size " + sb.getInodeSize() + ".");
+        }
+        if (disk.size() < sb.getImageSize()) {
+            throw new IOException("Image is shorter than its superblock says, it may be truncated.");
+        }
+        this.superblock = sb;
+        this.blockSize = sb.getBlockSize();
+        this.maxFiles = sb.getInodeCount();
+        this.maxBlocks = sb.getBlockCount();
+        this.firstDataBlock = sb.getFirstDataBlock();
+    }
+
+    // Writes an empty filesystem with the given geometry
+    private void format(Superblock sb) throws IOException {
+        this.disk.setSize(sb.getImageSize());
+        mount(sb);
+
+        this.inodeTable = new FEntry[maxFiles];
+        rebuildNameIndex();
+        this.bitmap = new BlockBitmap(maxBlocks, firstDataBlock);
+        dirtyInodes.set(0, maxFiles);
+        bitmap.markAllDirty();
+
+        writeSuperblock();
+
+        writeFileSystemMetadata();
+    }
+
+    private void loadFileSystemMetadata() throws IOException {
+        boolean chained = superblock.getVersion() < 3;
+        boolean flat = superblock.getVersion() < 4;
+        int[] firstBlocks = new int[maxFiles];
+
+        // Read FEntry array
+        ByteBuffer inodes = ByteBuffer.allocate(maxFiles * INODE_SIZE);
+        disk.read((long) superblock.getInodeTableStart() * blockSize, inodes);
+        String[] paths = readPaths(inodes, flat);
+        this.inodeTable = new FEntry[maxFiles];
+        for (int i = 0; i < maxFiles; i++) {
+            int base = i * INODE_SIZE;
+            if (paths[i] == null) {
+                continue;
+            }
+
+            long filesize = inodes.getLong(base + 4);
+            boolean directory = (inodes.get(base) & FLAG_DIRECTORY) != 0;
+            int parent = paths[i].indexOf('/') == -1 ? FEntry.ROOT : inodes.getInt(base + PARENT_OFFSET);
+
+            FEntry entry = new FEntry(paths[i], parent, directory, filesize, new ExtentMap());
+            if (chained) {
+                firstBlocks[i] = inodes.getInt(base + 12);
+            } else {
+                entry.setContents(readExtents(inodes, base, filesize));
+            }
+            inodeTable[i] = entry;
+        }
+
+        rebuildNameIndex();
+        rebuildBlockRefs();
+
+        this.bitmap = new BlockBitmap(maxBlocks, firstDataBlock);
+        if (superblock.getBitmapStart() >= 0) {
+            ByteBuffer words = ByteBuffer.allocate(BlockBitmap.wordsFor(maxBlocks) * 8);
+            disk.read((long) superblock.getBitmapStart() * blockSize, words);
+            words.flip();
+            bitmap.read(words);
+        }
+
+        if (chained) {
+            upgradeChainedImage(firstBlocks);
+        } else if (flat) {
+            upgradeFlatImage();
+        } else if (superblock.getVersion() < Superblock.VERSION) {
+            // Version 4 has no compressed files, and its inodes hold zeros where the stored size goes now
+            superblock.upgrade(superblock.getBitmapStart());
+            writeSuperblock();
+            Log.info("Upgraded filesystem image to format version " + Superblock.VERSION + ".");
+        }
+
+        Log.info("Filesystem loaded successfully (" + maxFiles + " inodes, " + maxBlocks + " blocks of "
+                + blockSize + " bytes).");
+    }
+
+    // Full path of every inode in use (null for free ones), following the parent links. Images before
+    // version 4 have no links and keep every file at the root. An entry whose parent isn't a directory
+    // in use, or whose parents loop, can't be reached and is put at the root so it isn't lost.
+    private String[] readPaths(ByteBuffer inodes, boolean flat) {
+        String[] names = new String[maxFiles];
+        int[] parents = new int[maxFiles];
+        for (int i = 0; i < maxFiles; i++) {
+            int base = i * INODE_SIZE;
+            if ((inodes.get(base) & FLAG_IN_USE) == 0) {
+                continue;
+            }
+            byte[] nameBytes = new byte[inodes.get(base + 1) & 0xFF];
+            inodes.get(base + NAME_OFFSET, nameBytes);
+            names[i] = new String(nameBytes, StandardCharsets.UTF_8);
+            parents[i] = flat ? FEntry.ROOT : inodes.getInt(base + PARENT_OFFSET);
+        }
+
+        String[] paths = new String[maxFiles];
+        for (int i = 0; i < maxFiles; i++) {
+            if (names[i] == null) {
+                continue;
+            }
+            StringBuilder path = new StringBuilder(names[i]);
+            int parent = parents[i];
+            for (int depth = 0; parent != FEntry.ROOT; depth++) {
+                boolean valid = parent >= 0 && parent < maxFiles && names[parent] != null
+                        && (inodes.get(parent * INODE_SIZE) & FLAG_DIRECTORY) != 0 && depth < maxFiles;
+                if (!valid) {
+                    Log.warn("Inode " + i + " has no valid parent directory, moving it to the root.");
+                    path = new StringBuilder(names[i]);
+                    inodes.putInt(i * INODE_SIZE + PARENT_OFFSET, FEntry.ROOT);
+                    dirtyInodes.set(i);
+                    break;
+                }
+                path.insert(0, names[parent] + "/");
+                parent = parents[parent];
+            }
+            paths[i] = path.toString();
+        }
+        return paths;
+    }
+
+    // Version 3 inodes have no parent link: write them all again with the root as their parent
+    private void upgradeFlatImage() throws IOException {
+        dirtyInodes.set(0, maxFiles);
+        writeFileSystemMetadata();
+
+        // The superblock goes last, so a crash before here leaves the old format readable
+        superblock.upgrade(superblock.getBitmapStart());
+        writeSuperblock();
+        Log.info("Upgraded filesystem image to format version " + Superblock.VERSION + ".");
+    }
+
+    // Version 1 and 2 images chain a file's blocks through a block map of next pointers, and version 1
+    // has no bitmap either. Turn the chains into extents, drop the block map and give the bitmap a home.
+    private void upgradeChainedImage(int[] firstBlocks) throws IOException {
+        ByteBuffer nodes = ByteBuffer.allocate(maxBlocks * FNODE_SIZE);
+        disk.read((long) superblock.getBlockMapStart() * blockSize, nodes);
+
+        boolean hasBitmap = superblock.getBitmapStart() >= 0;
+        for (int i = 0; i < maxFiles; i++) {
+            if (inodeTable[i] == null) {
+                continue;
+            }
+            ExtentMap extents = inodeTable[i].getExtents();
+            int currentBlock = firstBlocks[i];
+            for (long hops = 0; currentBlock != -1 && hops < maxBlocks; hops++) {
+                extents.add(currentBlock, 1);
+                if (!hasBitmap) {
+                    bitmap.markUsed(currentBlock, 1);
+                }
+                currentBlock = nodes.getInt(currentBlock * FNODE_SIZE);
+            }
+        }
+
+        // The block map region is no longer needed
+        bitmap.free(superblock.getBlockMapStart(), Superblock.blocksFor((long) maxBlocks * FNODE_SIZE, blockSize));
+
+        int bitmapStart = superblock.getBitmapStart();
+        if (!hasBitmap) {
+            List<Extent> region = bitmap.allocate(Superblock.bitmapBlocks(maxBlocks, blockSize));
+            if (region == null || region.size() != 1) {
+                throw new IOException("Not enough contiguous free space to upgrade the filesystem image.");
+            }
+            bitmapStart = region.get(0).getStart();
+        }
+
+        for (int i = 0; i < maxFiles; i++) {
+            if (inodeTable[i] != null) {
+                int[] indirectBlocks = allocateIndirectBlocks(inodeTable[i].getExtents().size());
+                if (indirectBlocks == null) {
+                    throw new IOException("Not enough free space to upgrade the filesystem image.");
+                }
+                publishBlocks(new ExtentMap(), indirectBlocks, 0);
+                FileContents contents = inodeTable[i].getContents();
+                inodeTable[i].setContents(new FileContents(contents.getFilesize(), contents.getExtents(), indirectBlocks));
+            }
+        }
+
+        superblock.upgrade(bitmapStart);
+        for (int i = 0; i < maxFiles; i++) {
+            if (inodeTable[i] != null) {
+                writeIndirectBlocks(inodeTable[i].getContents());
+            }
+        }
+        dirtyInodes.set(0, maxFiles);
+        bitmap.markAllDirty();
+        writeFileSystemMetadata();
+
+        // The superblock goes last, so a crash before here leaves the old format readable
+        writeSuperblock();
+        Log.info("Upgraded filesystem image to format version " + Superblock.VERSION + ".");
+    }
+
+    // Images written before the superblock existed are tiny (1280 bytes): read every file, reformat
+    // the image with the requested geometry and write the files back.
+    private void migrateLegacyImage(Superblock target) throws IOException {
+        Log.info("Migrating pre-superblock filesystem image...");
+        byte[] legacy = new byte[(int) Math.min(disk.size(), LEGACY_MAXBLOCKS * LEGACY_BLOCK_SIZE)];
+        disk.read(0, legacy, 0, legacy.length);
+        ByteBuffer in = ByteBuffer.wrap(legacy);
+
+        int entrySize = 15;
+        int nodesOffset = LEGACY_MAXFILES * entrySize;
+        List<String> names = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+
+        for (int i = 0; i < LEGACY_MAXFILES; i++) {
+            int base = i * entrySize;
+            String name = new String(legacy, base, 11, StandardCharsets.UTF_8).trim();
+            short filesize = in.getShort(base + 11);
+            short firstBlock = in.getShort(base + 13);
+            if (name.isEmpty() || filesize < 0) {
+                continue;
+            }
+
+            byte[] data = new byte[firstBlock == -1 ? 0 : filesize];
+            int block = firstBlock;
+            int copied = 0;
+            for (int hops = 0; block >= 0 && block < LEGACY_MAXBLOCKS && copied < data.length && hops < LEGACY_MAXBLOCKS; hops++) {
+                int n = Math.min(LEGACY_BLOCK_SIZE, data.length - copied);
+                System.arraycopy(legacy, block * LEGACY_BLOCK_SIZE, data, copied, n);
+                copied += n;
+                block = in.getInt(nodesOffset + block * FNODE_SIZE);
+            }
+            names.add(name);
+            contents.add(data);
+        }
+
+        long needed = 0;
+        for (byte[] data : contents) {
+            needed += Superblock.blocksFor(data.length, target.getBlockSize());
+        }
+        if (names.size() > target.getInodeCount() || needed > target.getBlockCount() - target.getFirstDataBlock()) {
+            throw new IOException("New geometry is too small to hold the existing files.");
+        }
+
+        // Each file goes into one extent, right after the previous one
+        format(target);
+        int nextBlock = firstDataBlock;
+        for (int i = 0; i < names.size(); i++) {
+            byte[] data = contents.get(i);
+            int blocks = Superblock.blocksFor(data.length, blockSize);
+            ExtentMap extents = new ExtentMap();
+            extents.add(nextBlock, blocks);
+            bitmap.markUsed(nextBlock, blocks);
+
+            disk.write((long) nextBlock * blockSize, data, 0, data.length);
+            nextBlock += blocks;
+            inodeTable[i] = new FEntry(names.get(i), data.length, extents);
+            dirtyInodes.set(i);
+        }
+        rebuildNameIndex();
+        writeFileSystemMetadata();
+        Log.info("Migrated " + names.size() + " file(s).");
+    }
+
+    // Caller holds allocLock and at least a shared tableLock. Writes only the inode records and bitmap
+    // words changed since the last call, one positional write per run of adjacent dirty entries, and
+    // commits them to the journal along with anything else the transaction wrote. Returns the LSN to
+    // wait on before acknowledging the mutation (0 while mounting).
+    private long writeFileSystemMetadata() throws IOException {
+
+        // Write dirty FEntry records
+        long inodeTableOffset = (long) superblock.getInodeTableStart() * blockSize;
+        for (int from = dirtyInodes.nextSetBit(0); from >= 0; from = dirtyInodes.nextSetBit(from)) {
+            int to = dirtyInodes.nextClearBit(from);
+            ByteBuffer inodes = ByteBuffer.allocate((to - from) * INODE_SIZE);
+            for (int i = from; i < to; i++) {
+                if (inodeTable[i] != null) {
+                    writeInode(inodes, (i - from) * INODE_SIZE, inodeTable[i]);
+                }
+            }
+            writeMetadata(inodes, inodeTableOffset + (long) from * INODE_SIZE);
+            from = to;
+        }
+        dirtyInodes.clear();
+
+        // Write dirty free-space bitmap words
+        long bitmapOffset = (long) superblock.getBitmapStart() * blockSize;
+        BitSet dirtyWords = bitmap.takeDirtyWords();
+        for (int from = dirtyWords.nextSetBit(0); from >= 0; from = dirtyWords.nextSetBit(from)) {
+            int to = dirtyWords.nextClearBit(from);
+            ByteBuffer words = ByteBuffer.allocate((to - from) * 8);
+            bitmap.write(words, from, to);
+            words.flip();
+            writeMetadata(words, bitmapOffset + (long) from * 8);
+            from = to;
+        }
+
+        if (journal == null) {
+            return 0;
+        }
+        List<Journal.Record> records = new ArrayList<>(pendingRecords);
+        List<Extent> frees = new ArrayList<>(pendingFrees);
+        pendingRecords.clear();
+        pendingFrees.clear();
+        // Once committed the frees wait for readers that may still see the blocks, see allocateBlocks
+        return journal.append(records, () -> {
+            if (!frees.isEmpty()) {
+                epochs.retire(frees);
+            }
+        });
+    }
+
+    // Caller holds allocLock. Metadata goes through the journal once the file system is mounted.
+    private void writeMetadata(ByteBuffer buffer, long position) throws IOException {
+        if (journal == null) {
+            disk.write(position, buffer);
+        } else {
+            pendingRecords.add(new Journal.Record(position, buffer));
+        }
+    }
+
+    // Caller holds allocLock. Like bitmap.reserve, but first makes allocatable the blocks freed by
+    // committed transactions that no reader can still be using. The blocks stay free on disk until
+    // publishBlocks is called for them in the transaction that starts using them.
+    private List<Extent> allocateBlocks(int count, int goal) {
+        epochs.reclaim(pins::add);
+        pins.reclaim(extent -> bitmap.release(extent.getStart(), extent.getLength()));
+        return bitmap.reserve(count, goal);
+    }
+
+    // Caller holds allocLock
+    private void publishBlocks(ExtentMap extents, int[] indirectBlocks, int firstIndirect) {
+        for (int i = 0; i < extents.size(); i++) {
+            bitmap.publish(extents.getStart(i), extents.getLength(i));
+        }
+        for (int i = firstIndirect; i < indirectBlocks.length; i++) {
+            bitmap.publish(indirectBlocks[i], 1);
+        }
+    }
+
+    // Serializes one inode record at base
+    private static void writeInode(ByteBuffer inodes, int base, FEntry entry) {
+        byte[] nameBytes = entry.getFilename().getBytes(StandardCharsets.UTF_8);
+        FileContents contents = entry.getContents();
+        int flags = FLAG_IN_USE | (entry.isDirectory() ? FLAG_DIRECTORY : 0) | (contents.isCompressed() ? FLAG_COMPRESSED : 0);
+        inodes.put(base, (byte) flags);
+        inodes.put(base + 1, (byte) nameBytes.length);
+        inodes.putLong(base + 4, contents.getFilesize());
+        writeExtents(inodes, base, contents);
+        inodes.putInt(base + PARENT_OFFSET, entry.getParent());
+        inodes.putLong(base + STORED_SIZE_OFFSET, contents.getStoredSize());
+        inodes.put(base + NAME_OFFSET, nameBytes);
+    }
+
+    // --- Extent Maps --- //
+
+    private int extentsPerIndirectBlock() {
+        return (blockSize - 8) / 8;
+    }
+
+    private int indirectBlocksFor(int extentCount) {
+        return extentCount <= INLINE_EXTENTS ? 0 : Superblock.blocksFor(extentCount - INLINE_EXTENTS, extentsPerIndirectBlock());
+    }
+
+    // Caller holds allocLock. Returns the indirect blocks a file with extentCount extents needs,
+    // or null when there is no room for them.
+    private int[] allocateIndirectBlocks(int extentCount) {
+        return growIndirectBlocks(new int[0], extentCount);
+    }
+
+    // Caller holds allocLock. Adds blocks after current until they hold extentCount extents. Returns
+    // current itself if it already does, or null when there is no room.
+    private int[] growIndirectBlocks(int[] current, int extentCount) {
+        int count = indirectBlocksFor(extentCount);
+        if (count <= current.length) {
+            return current;
+        }
+        List<Extent> allocated = allocateBlocks(count - current.length, -1);
+        if (allocated == null) {
+            return null;
+        }
+
+        int[] blocks = Arrays.copyOf(current, count);
+        int n = current.length;
+        for (Extent extent : allocated) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                blocks[n++] = block;
+            }
+        }
+        return blocks;
+    }
+
+    // Fills in the extent fields of the inode record at base
+    private static void writeExtents(ByteBuffer inodes, int base, FileContents contents) {
+        ExtentMap extents = contents.getExtents();
+        inodes.putInt(base + 12, extents.size());
+        for (int i = 0; i < INLINE_EXTENTS; i++) {
+            boolean used = i < extents.size();
+            inodes.putInt(base + EXTENTS_OFFSET + i * 8, used ? extents.getStart(i) : -1);
+            inodes.putInt(base + EXTENTS_OFFSET + i * 8 + 4, used ? extents.getLength(i) : 0);
+        }
+        int[] indirectBlocks = contents.getIndirectBlocks();
+        inodes.putInt(base + INDIRECT_OFFSET, indirectBlocks.length > 0 ? indirectBlocks[0] : -1);
+    }
+
+    // Caller holds allocLock. Writes the extents that don't fit in the inode to the file's indirect blocks.
+    private void writeIndirectBlocks(FileContents contents) throws IOException {
+        writeIndirectBlocks(contents, 0);
+    }
+
+    // Same, but only indirect blocks fromBlock onwards, when the extents before them haven't changed
+    private void writeIndirectBlocks(FileContents contents, int fromBlock) throws IOException {
+        ExtentMap extents = contents.getExtents();
+        int[] indirectBlocks = contents.getIndirectBlocks();
+        int perBlock = extentsPerIndirectBlock();
+
+        for (int b = Math.max(fromBlock, 0); b < indirectBlocks.length; b++) {
+            int first = INLINE_EXTENTS + b * perBlock;
+            int count = Math.min(perBlock, extents.size() - first);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            block.putInt(b + 1 < indirectBlocks.length ? indirectBlocks[b + 1] : -1);
+            block.putInt(count);
+            for (int i = first; i < first + count; i++) {
+                block.putInt(extents.getStart(i));
+                block.putInt(extents.getLength(i));
+            }
+            block.flip();
+            writeMetadata(block, (long) indirectBlocks[b] * blockSize);
+        }
+    }
+
+    // Reads the extents of the inode record at base, following its indirect blocks
+    private FileContents readExtents(ByteBuffer inodes, int base, long filesize) throws IOException {
+        ExtentMap extents = new ExtentMap();
+        int total = inodes.getInt(base + 12);
+        for (int i = 0; i < Math.min(total, INLINE_EXTENTS); i++) {
+            extents.add(inodes.getInt(base + EXTENTS_OFFSET + i * 8), inodes.getInt(base + EXTENTS_OFFSET + i * 8 + 4));
+        }
+
+        List<Integer> indirectBlocks = new ArrayList<>();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        int next = inodes.getInt(base + INDIRECT_OFFSET);
+        while (next != -1 && indirectBlocks.size() < maxBlocks) {
+            indirectBlocks.add(next);
+            block.clear();
+            disk.read((long) next * blockSize, block);
+            next = block.getInt(0);
+            int count = block.getInt(4);
+            for (int i = 0; i < count; i++) {
+                extents.add(block.getInt(8 + i * 8), block.getInt(12 + i * 8));
+            }
+        }
+
+        int[] blocks = new int[indirectBlocks.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = indirectBlocks.get(i);
+        }
+        if ((inodes.get(base) & FLAG_COMPRESSED) != 0) {
+            return new FileContents(filesize, extents, blocks, true, inodes.getLong(base + STORED_SIZE_OFFSET));
+        }
+        return new FileContents(filesize, extents, blocks);
+    }
+
+    // Reads length bytes of the file starting at offset. Finding the first extent is a binary
+    // search, then each extent is one contiguous read.
+    private void readExtents(FileContents contents, long offset, byte[] dest, int destOffset, int length)
+            throws IOException {
+        if (cache != null) {
+            readExtentsCached(contents, offset, dest, destOffset, length);
+            return;
+        }
+
+        ExtentMap extents = contents.getExtents();
+        int index = extents.find(offset / blockSize);
+        while (length > 0 && index != -1 && index < extents.size()) {
+            long extentOffset = offset - extents.getLogicalStart(index) * blockSize;
+            int bytesToRead = (int) Math.min((long) extents.getLength(index) * blockSize - extentOffset, length);
+            disk.read((long) extents.getStart(index) * blockSize + extentOffset, dest, destOffset, bytesToRead);
+            offset += bytesToRead;
+            destOffset += bytesToRead;
+            length -= bytesToRead;
+            index++;
+        }
+    }
+
+    // Like readExtents, but block by block through the cache. A miss reads the rest of the extent
+    // (up to what the request still needs, at most CACHE_FILL_BLOCKS) in one I/O and caches it all.
+    // A partly filled last block is read but never cached: appends fill it in place while readers of
+    // the shorter file may still be reading it.
+    private void readExtentsCached(FileContents contents, long offset, byte[] dest, int destOffset, int length)
+            throws IOException {
+        ExtentMap extents = contents.getExtents();
+        long fullBlocks = contents.getStoredSize() / blockSize;
+        int index = extents.find(offset / blockSize);
+        byte[] run = null;
+
+        while (length > 0 && index != -1 && index < extents.size()) {
+            long logicalBlock = offset / blockSize;
+            if (logicalBlock >= extents.getLogicalStart(index) + extents.getLength(index)) {
+                index++;
+                continue;
+            }
+            int block = (int) (extents.getStart(index) + (logicalBlock - extents.getLogicalStart(index)));
+            int inBlock = (int) (offset % blockSize);
+            int n = Math.min(blockSize - inBlock, length);
+
+            if (logicalBlock >= fullBlocks) {
+                disk.read((long) block * blockSize + inBlock, dest, destOffset, n);
+            } else if (!cache.read(block, inBlock, dest, destOffset, n)) {
+                int extentEnd = extents.getStart(index) + extents.getLength(index);
+                int wanted = Superblock.blocksFor((long) inBlock + length, blockSize);
+                int runBlocks = (int) Math.min(Math.min(Math.min(extentEnd - block, wanted), CACHE_FILL_BLOCKS),
+                        fullBlocks - logicalBlock);
+                if (run == null || run.length < runBlocks * blockSize) {
+                    run = new byte[runBlocks * blockSize];
+                }
+                disk.read((long) block * blockSize, run, 0, runBlocks * blockSize);
+                for (int i = 0; i < runBlocks; i++) {
+                    cache.put(block + i, run, i * blockSize);
+                }
+                n = (int) Math.min((long) runBlocks * blockSize - inBlock, length);
+                System.arraycopy(run, inBlock, dest, destOffset, n);
+            }
+
+            offset += n;
+            destOffset += n;
+            length -= n;
+        }
+    }
+
+    // Derives nameIndex, the directory indexes and freeInodes from inodeTable
+    private void rebuildNameIndex() {
+        this.nameIndex = new NameIndex(maxFiles);
+        this.rootDirectory = new DirectoryIndex();
+        this.freeInodes = new int[maxFiles];
+        this.freeInodeCount = 0;
+        for (int i = maxFiles - 1; i >= 0; i--) {
+            if (inodeTable[i] != null) {
+                nameIndex.put(inodeTable[i].getPath(), i);
+                entriesOf(inodeTable[i].getParent()).put(inodeTable[i].getFilename(), i);
+            } else {
+                freeInodes[freeInodeCount++] = i;
+            }
+        }
+    }
+
+    // Derives the reference counts of shared blocks from the extents of every file. Extent boundaries are
+    // sorted and swept, so the work grows with the number of extents rather than blocks, except for the
+    // shared blocks themselves.
+    private void rebuildBlockRefs() {
+        int extentCount = 0;
+        for (FEntry entry : inodeTable) {
+            extentCount += entry == null ? 0 : entry.getExtents().size();
+        }
+
+        // block << 1 | 1 where an extent starts, block << 1 where one ends; ends sort first at equal blocks
+        long[] bounds = new long[extentCount * 2];
+        int n = 0;
+        for (FEntry entry : inodeTable) {
+            ExtentMap extents = entry == null ? null : entry.getExtents();
+            for (int i = 0; extents != null && i < extents.size(); i++) {
+                bounds[n++] = (long) extents.getStart(i) << 1 | 1;
+                bounds[n++] = (long) (extents.getStart(i) + extents.getLength(i)) << 1;
+            }
+        }
+        Arrays.sort(bounds);
+
+        int depth = 0;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            depth += (bounds[i] & 1) == 1 ? 1 : -1;
+            for (long block = bounds[i] >> 1; depth > 1 && block < bounds[i + 1] >> 1; block++) {
+                dedup.addReferences((int) block, depth - 1);
+            }
+        }
+    }
+
+    // Fingerprints the full blocks of every file so later writes can share them. Reads each extent in
+    // runs of up to CACHE_FILL_BLOCKS blocks.
+    private void indexExistingBlocks() throws IOException {
+        MessageDigest digest = DedupIndex.newDigest();
+        byte[] run = new byte[CACHE_FILL_BLOCKS * blockSize];
+        long indexed = 0;
+
+        for (FEntry entry : inodeTable) {
+            if (entry == null) {
+                continue;
+            }
+            ExtentMap extents = entry.getExtents();
+            long fullBlocks = entry.getStoredSize() / blockSize;
+            for (int i = 0; i < extents.size() && extents.getLogicalStart(i) < fullBlocks; i++) {
+                long length = Math.min(extents.getLength(i), fullBlocks - extents.getLogicalStart(i));
+                for (long done = 0; done < length; done += CACHE_FILL_BLOCKS) {
+                    int blocks = (int) Math.min(CACHE_FILL_BLOCKS, length - done);
+                    int first = (int) (extents.getStart(i) + done);
+                    disk.read((long) first * blockSize, run, 0, blocks * blockSize);
+                    for (int b = 0; b < blocks; b++) {
+                        if (!dedup.isIndexed(first + b)) {
+                            dedup.index(first + b, DedupIndex.fingerprint(digest, run, b * blockSize, blockSize));
+                            indexed++;
+                        }
+                    }
+                }
+            }
+        }
+        Log.info("Indexed " + indexed + " blocks for deduplication.");
+    }
+
+    // Caller holds allocLock. Frees the blocks of contents that are no longer published; once mounted
+    // they only become allocatable again after the transaction freeing them commits and the readers
+    // that started before it are done.
+    private void deleteContents(FileContents contents) {
+        ExtentMap extents = contents.getExtents();
+        for (int i = 0; i < extents.size(); i++) {
+            freeBlocks(extents.getStart(i), extents.getLength(i));
+        }
+        for (int block : contents.getIndirectBlocks()) {
+            freeIndirectBlock(block);
+        }
+    }
+
+    // Caller holds allocLock. Indirect blocks are journaled, so once the block is reused for file data
+    // replay must not copy its old extents over that data; the freeing transaction revokes them.
+    private void freeIndirectBlock(int block) {
+        if (journal != null) {
+            pendingRecords.add(Journal.Record.revoke((long) block * blockSize));
+        }
+        freeBlocks(block, 1);
+    }
+
+    // Caller holds allocLock. A shared block only loses a reference; it is freed with its last one.
+    private void freeBlocks(int start, int length) {
+        if (dedup.isEmpty()) {
+            freeRun(start, length);
+            return;
+        }
+        int runStart = start;
+        for (int block = start; block < start + length; block++) {
+            if (!dedup.release(block)) {
+                freeRun(runStart, block - runStart);
+                runStart = block + 1;
+            }
+        }
+        freeRun(runStart, start + length - runStart);
+    }
+
+    private void freeRun(int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (cache != null) {
+            cache.invalidate(start, length);
+        }
+        if (journal == null) {
+            bitmap.free(start, length);
+        } else {
+            bitmap.freeDeferred(start, length);
+            pendingFrees.add(new Extent(start, length));
         }
     }
-}
\ No newline at end of file
+}
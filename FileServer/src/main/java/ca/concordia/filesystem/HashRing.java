@@ -0,0 +1,50 @@
+package ca.concordia.filesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of paths onto volumes. Each volume owns VIRTUAL_NODES points on a 64-bit ring,
+// placed by hashing its index, and a path belongs to the volume owning the first point at or after the
+// path's own hash. The points of a volume don't depend on how many volumes there are, so adding one
+// only moves the paths that now land on its points, about 1/n of them, and the same volumes always
+// route the same way across restarts.
+class HashRing {
+
+    private static final int VIRTUAL_NODES = 128; // enough to spread paths within a few percent
+
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+
+    HashRing(int volumes) {
+        if (volumes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one volume.");
+        }
+        for (int volume = 0; volume < volumes; volume++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                points.putIfAbsent(hash("volume-" + volume + "#" + node), volume); // older volume keeps a collision
+            }
+        }
+    }
+
+    // Index of the volume that stores path, which must be canonical
+    int volumeFor(String path) {
+        Map.Entry<Long, Integer> point = points.ceilingEntry(hash(path));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, then MurmurHash3's finalizer so that similar names
+    // ("file1", "file2") end up far apart on the ring
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,404 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+// Write-ahead redo journal for the file system metadata. A transaction is the set of metadata writes
+// (image offset + bytes) of one mutation. Transactions are appended to <image>.wal, forced, and only
+// then applied to the image, so after a crash the image can always be brought to the last committed
+// state by replaying the journal. File data is written straight to newly allocated blocks before its
+// transaction is appended, and the image is forced before the journal, so committed metadata never
+// points at unwritten data.
+//
+// A single flusher thread does the forcing, so writers that commit at the same time share one fsync
+// (group commit).
+//
+// Metadata blocks outside the fixed regions (a file's indirect blocks) can be freed and reused for file
+// data, which isn't journaled. The transaction freeing one carries a revoke record for it, so replay
+// skips the block's earlier writes instead of copying them over whatever the block holds now.
+//
+// Record layout: magic u32, lsn u64, record count u32, then per record image offset u64, length u32
+// and the bytes, then a CRC32 of everything after the magic. A revoke has length REVOKE and no bytes.
+class Journal {
+
+    static class Record {
+        private final long offset;
+        private final ByteBuffer data; // null for a revoke
+
+        Record(long offset, ByteBuffer data) {
+            this.offset = offset;
+            this.data = data;
+        }
+
+        // Cancels the records of earlier transactions written at exactly this offset
+        static Record revoke(long offset) {
+            return new Record(offset, null);
+        }
+    }
+
+    private static class Transaction {
+        private final long lsn;
+        private final List<Record> records;
+        private final Runnable onDurable;
+
+        Transaction(long lsn, List<Record> records, Runnable onDurable) {
+            this.lsn = lsn;
+            this.records = records;
+            this.onDurable = onDurable;
+        }
+    }
+
+    // A future to complete once lsn is durable
+    private static class Waiter {
+        private final long lsn;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int REVOKE = -1;
+    private static final long ASYNC_FLUSH_MILLIS = 200;
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final FileChannel image;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileSystemManager.Durability durability;
+
+    private final ArrayDeque<Transaction> queue = new ArrayDeque<>();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong((Waiter w) -> w.lsn));
+    private long nextLsn = 1;
+    private long durableLsn;
+    private boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+
+    // replay is false for a freshly created image, whose journal (if any) belongs to a previous one
+    Journal(File imageFile, FileChannel image, FileSystemManager.Durability durability, boolean replay) throws IOException {
+        this.image = image;
+        this.durability = durability;
+        this.file = new RandomAccessFile(new File(imageFile.getPath() + ".wal"), "rw");
+        this.channel = file.getChannel();
+
+        try {
+            if (replay) {
+                replay();
+            } else {
+                channel.truncate(0);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+
+        this.flusher = new Thread(this::runFlusher, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Queues a transaction and returns its LSN. onDurable runs on the flusher thread once the
+    // transaction is committed and applied to the image.
+    synchronized long append(List<Record> records, Runnable onDurable) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal failed, refusing further writes.", failure);
+        }
+        if (closed) {
+            throw new IOException("Journal is closed.");
+        }
+        long lsn = nextLsn++;
+        queue.add(new Transaction(lsn, records, onDurable));
+        notifyAll();
+        return lsn;
+    }
+
+    // Blocks until lsn is committed, unless the journal is asynchronous
+    synchronized void awaitDurable(long lsn) throws IOException {
+        if (durability == FileSystemManager.Durability.ASYNC) {
+            return;
+        }
+        while (durableLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the journal.");
+            }
+        }
+        if (failure != null && durableLsn < lsn) {
+            throw new IOException("Journal failed, the write may not be durable.", failure);
+        }
+    }
+
+    // Non-blocking awaitDurable: the future completes on the flusher thread once lsn is committed,
+    // or exceptionally if the journal fails first
+    synchronized CompletableFuture<Void> whenDurable(long lsn) {
+        if (durability == FileSystemManager.Durability.ASYNC || durableLsn >= lsn) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (failure != null) {
+            return CompletableFuture.failedFuture(new IOException("Journal failed, the write may not be durable.", failure));
+        }
+        Waiter waiter = new Waiter(lsn);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    // Commits everything queued, checkpoints and stops the flusher
+    void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null) {
+            checkpoint();
+        }
+        file.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // --- Flusher --- //
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                List<Transaction> batch = new ArrayList<>();
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    if (durability == FileSystemManager.Durability.ASYNC) {
+                        long deadline = System.currentTimeMillis() + ASYNC_FLUSH_MILLIS;
+                        long left;
+                        while (!closed && (left = deadline - System.currentTimeMillis()) > 0) {
+                            wait(left);
+                        }
+                    }
+                    if (durability == FileSystemManager.Durability.SYNC) {
+                        batch.add(queue.poll());
+                    } else {
+                        batch.addAll(queue);
+                        queue.clear();
+                    }
+                }
+
+                commit(batch);
+
+                List<Waiter> done = new ArrayList<>();
+                synchronized (this) {
+                    durableLsn = batch.get(batch.size() - 1).lsn;
+                    while (!waiters.isEmpty() && waiters.peek().lsn <= durableLsn) {
+                        done.add(waiters.poll());
+                    }
+                    notifyAll();
+                }
+                // Outside the lock, dependent stages run here
+                for (Waiter waiter : done) {
+                    waiter.future.complete(null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Journal flush failed: " + e.getMessage());
+            List<Waiter> failed;
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                failed = new ArrayList<>(waiters);
+                waiters.clear();
+                notifyAll();
+            }
+            for (Waiter waiter : failed) {
+                waiter.future.completeExceptionally(new IOException("Journal failed, the write may not be durable.", failure));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<Transaction> batch) throws IOException {
+        // Data blocks first, then the journal, then the metadata in place
+        image.force(false);
+
+        long position = channel.size();
+        for (Transaction txn : batch) {
+            ByteBuffer encoded = encode(txn);
+            while (encoded.hasRemaining()) {
+                position += channel.write(encoded, position);
+            }
+        }
+        channel.force(false);
+
+        for (Transaction txn : batch) {
+            apply(txn.records);
+            if (txn.onDurable != null) {
+                txn.onDurable.run();
+            }
+        }
+
+        if (channel.size() > CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    // Everything in the journal has been applied; once the image is forced the journal can be emptied
+    private void checkpoint() throws IOException {
+        image.force(false);
+        channel.truncate(0);
+        channel.force(false);
+    }
+
+    private void apply(List<Record> records) throws IOException {
+        for (Record record : records) {
+            if (record.data == null) {
+                continue;
+            }
+            ByteBuffer data = record.data.duplicate();
+            long position = record.offset;
+            while (data.hasRemaining()) {
+                position += image.write(data, position);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Transaction txn) {
+        int size = 4 + 8 + 4 + 4;
+        for (Record record : txn.records) {
+            size += 12 + (record.data == null ? 0 : record.data.remaining());
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putLong(txn.lsn);
+        out.putInt(txn.records.size());
+        for (Record record : txn.records) {
+            out.putLong(record.offset);
+            if (record.data == null) {
+                out.putInt(REVOKE);
+            } else {
+                out.putInt(record.data.remaining());
+                out.put(record.data.duplicate());
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 4, out.position() - 4);
+        out.putInt((int) crc.getValue());
+        out.flip();
+        return out;
+    }
+
+    // --- Recovery --- //
+
+    // Applies every complete transaction left in the journal, except writes revoked by a later one. A
+    // torn or corrupt tail (a crash mid-append) ends the replay, since it was never acknowledged.
+    private void replay() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+
+        ByteBuffer journal = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (journal.hasRemaining() && channel.read(journal, journal.position()) > 0) {
+            // Keep reading
+        }
+        journal.flip();
+
+        // Every transaction is read before any is applied, since a revoke cancels writes before it
+        List<Long> lsns = new ArrayList<>();
+        List<List<Record>> transactions = new ArrayList<>();
+        Map<Long, Long> revokedAt = new HashMap<>(); // image offset -> latest lsn revoking it
+        while (journal.remaining() >= 20) {
+            int start = journal.position();
+            if (journal.getInt() != MAGIC) {
+                break;
+            }
+            long lsn = journal.getLong();
+            int count = journal.getInt();
+
+            List<Record> records = new ArrayList<>();
+            boolean complete = count >= 0;
+            for (int i = 0; i < count && complete; i++) {
+                if (journal.remaining() < 12) {
+                    complete = false;
+                    break;
+                }
+                long offset = journal.getLong();
+                int length = journal.getInt();
+                if (length == REVOKE) {
+                    records.add(Record.revoke(offset));
+                    continue;
+                }
+                if (length < 0 || journal.remaining() < length) {
+                    complete = false;
+                    break;
+                }
+                ByteBuffer data = journal.slice();
+                data.limit(length);
+                journal.position(journal.position() + length);
+                records.add(new Record(offset, data));
+            }
+            if (!complete || journal.remaining() < 4) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(journal.array(), start + 4, journal.position() - start - 4);
+            if (journal.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            for (Record record : records) {
+                if (record.data == null) {
+                    revokedAt.merge(record.offset, lsn, Math::max);
+                }
+            }
+            lsns.add(lsn);
+            transactions.add(records);
+            nextLsn = lsn + 1;
+        }
+
+        int revoked = 0;
+        for (int t = 0; t < transactions.size(); t++) {
+            List<Record> live = new ArrayList<>();
+            for (Record record : transactions.get(t)) {
+                if (revokedAt.getOrDefault(record.offset, 0L) > lsns.get(t)) {
+                    revoked++;
+                } else {
+                    live.add(record);
+                }
+            }
+            apply(live);
+        }
+
+        checkpoint();
+        if (!transactions.isEmpty()) {
+            Log.info("Replayed " + transactions.size() + " journal transaction(s)"
+                    + (revoked > 0 ? ", skipping " + revoked + " revoked write(s)." : "."));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.Extent;
+import ca.concordia.filesystem.datastructures.ExtentMap;
+import ca.concordia.filesystem.datastructures.FileContents;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// File versions still being sent by transfers. A transfer waits on its client for as long as the
+// client likes, so it can't stay in an epoch: that would hold back every free on the volume. It pins
+// the version it sends instead, from inside an epoch, and frees the epochs hand back wait here only
+// while they overlap a pinned version's data.
+class Pins {
+
+    private final Map<FileContents, Integer> pinned = new IdentityHashMap<>(); // version -> transfers sending it
+    private final List<Extent> held = new ArrayList<>(); // freed, but in a pinned version
+    private final Queue<Extent> released = new ConcurrentLinkedQueue<>();
+
+    // Caller is in an epoch that can still see contents, so none of its blocks have been reclaimed
+    synchronized void pin(FileContents contents) {
+        pinned.merge(contents, 1, Integer::sum);
+    }
+
+    synchronized void unpin(FileContents contents) {
+        int count = pinned.get(contents) - 1;
+        if (count > 0) {
+            pinned.put(contents, count);
+            return;
+        }
+        pinned.remove(contents);
+        Iterator<Extent> it = held.iterator();
+        while (it.hasNext()) {
+            Extent extent = it.next();
+            if (!isPinned(extent)) {
+                released.add(extent);
+                it.remove();
+            }
+        }
+    }
+
+    // Takes frees no reader in an epoch can see any more, holding those a transfer is still sending
+    synchronized void add(List<Extent> frees) {
+        for (Extent extent : frees) {
+            if (isPinned(extent)) {
+                held.add(extent);
+            } else {
+                released.add(extent);
+            }
+        }
+    }
+
+    // Passes every free that is no longer in use to action
+    void reclaim(Consumer<Extent> action) {
+        Extent extent;
+        while ((extent = released.poll()) != null) {
+            action.accept(extent);
+        }
+    }
+
+    private boolean isPinned(Extent extent) {
+        for (FileContents contents : pinned.keySet()) {
+            ExtentMap extents = contents.getExtents();
+            for (int i = 0; i < extents.size(); i++) {
+                if (extents.getStart(i) < extent.getEnd() && extent.getStart() < extents.getStart(i) + extents.getLength(i)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
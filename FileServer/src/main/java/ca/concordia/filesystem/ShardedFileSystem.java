@@ -0,0 +1,612 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.FileSystemManager.CompressionStats;
+import ca.concordia.filesystem.FileSystemManager.ListEntry;
+import ca.concordia.filesystem.FileSystemManager.Transfer;
+import ca.concordia.filesystem.FileSystemManager.Upload;
+import ca.concordia.logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// Spreads files over several file systems ("volumes"), each with its own image, journal, locks and I/O
+// threads, so writes to files on different volumes never contend and the images can sit on separate
+// disks. A file lives on the volume its path hashes to on a HashRing. Directories are replicated to
+// every volume, so a file can be created in any directory whichever volume it lands on, and a listing
+// merges the volumes' sorted pages. Offers the operations of FileSystemManager; with a single volume
+// every call goes straight to it.
+//
+// Batches touching several volumes are all-or-nothing per volume only: the names are checked up front,
+// but if a volume runs out of space the parts already committed on the others stay.
+//
+// On mount, files found on a volume other than the one they hash to (because volumes were added) are
+// moved to it. Volumes can be added but not removed: the files on an image left out are not served.
+public class ShardedFileSystem {
+
+    private final List<FileSystemManager> volumes;
+    private final HashRing ring;
+
+    public ShardedFileSystem(List<FileSystemManager> volumes) throws Exception {
+        this.volumes = List.copyOf(volumes);
+        this.ring = new HashRing(this.volumes.size());
+        if (this.volumes.size() > 1) {
+            rebalance();
+        }
+    }
+
+    public List<FileSystemManager> getVolumes() {
+        return volumes;
+    }
+
+    // Closes every volume, even if closing one fails
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileSystemManager volume : volumes) {
+            try {
+                volume.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // The volume holding the file at path
+    private FileSystemManager volumeFor(String path) {
+        if (volumes.size() == 1) {
+            return volumes.get(0);
+        }
+        return volumes.get(ring.volumeFor(FileSystemManager.canonical(path)));
+    }
+
+    // --- Files --- //
+
+    public void createFile(String fileName) throws Exception {
+        volumeFor(fileName).createFile(fileName);
+    }
+
+    public void writeFile(String filename, String[] contents) throws Exception {
+        volumeFor(filename).writeFile(filename, contents);
+    }
+
+    public void writeFile(String filename, byte[] data) throws Exception {
+        volumeFor(filename).writeFile(filename, data);
+    }
+
+    public void writeFile(String filename, long offset, byte[] data) throws Exception {
+        volumeFor(filename).writeFile(filename, offset, data);
+    }
+
+    public void appendFile(String filename, byte[] data) throws Exception {
+        volumeFor(filename).appendFile(filename, data);
+    }
+
+    public String readFile(String filename) throws Exception {
+        return volumeFor(filename).readFile(filename);
+    }
+
+    public byte[] readFileBytes(String filename) throws Exception {
+        return volumeFor(filename).readFileBytes(filename);
+    }
+
+    public byte[] readFileBytes(String filename, long offset, int length) throws Exception {
+        return volumeFor(filename).readFileBytes(filename, offset, length);
+    }
+
+    public Transfer openTransfer(String filename, long offset, long length) throws IOException {
+        return volumeFor(filename).openTransfer(filename, offset, length);
+    }
+
+    public Upload beginUpload(String filename, long length) throws IOException {
+        return volumeFor(filename).beginUpload(filename, length);
+    }
+
+    public void setCompressed(String filename, boolean compressed) throws Exception {
+        volumeFor(filename).setCompressed(filename, compressed);
+    }
+
+    public boolean isCompressed(String filename) {
+        return volumeFor(filename).isCompressed(filename);
+    }
+
+    // A file is deleted on its volume, a directory on all of them
+    public void deleteFile(String fileName) throws Exception {
+        List<FileSystemManager> holding = holdingDirectory(fileName);
+        if (holding.isEmpty()) {
+            volumeFor(fileName).deleteFile(fileName);
+            return;
+        }
+        inTurn(holding, volume -> volume.deleteFile(fileName), volume -> volume.makeDirectory(fileName));
+    }
+
+    // --- Directories --- //
+
+    public void makeDirectory(String path) throws Exception {
+        if (volumes.size() == 1) {
+            volumes.get(0).makeDirectory(path);
+            return;
+        }
+        inTurn(lackingDirectory(path), volume -> volume.makeDirectory(path), volume -> volume.deleteFile(path));
+    }
+
+    public boolean isDirectory(String path) {
+        return volumeFor(path).isDirectory(path);
+    }
+
+    // The volumes a new directory still has to be made on. The one the path hashes to comes first: a
+    // file already at the path is there, so creating it fails before any volume changes. When every
+    // volume has it, that one alone, to report that it exists.
+    private List<FileSystemManager> lackingDirectory(String path) {
+        FileSystemManager owner = volumeFor(path);
+        List<FileSystemManager> lacking = new ArrayList<>();
+        lacking.add(owner);
+        for (FileSystemManager volume : volumes) {
+            if (volume != owner && !volume.isDirectory(path)) {
+                lacking.add(volume);
+            }
+        }
+        if (lacking.size() > 1 && owner.isDirectory(path)) {
+            lacking.remove(0);
+        }
+        return lacking;
+    }
+
+    // The volumes holding a directory at path; empty for a file, and always with a single volume
+    private List<FileSystemManager> holdingDirectory(String path) {
+        List<FileSystemManager> holding = new ArrayList<>();
+        if (volumes.size() > 1) {
+            for (FileSystemManager volume : volumes) {
+                if (volume.isDirectory(path)) {
+                    holding.add(volume);
+                }
+            }
+        }
+        return holding;
+    }
+
+    // Entries of the root directory
+    public String[] listFiles() {
+        return listFiles("");
+    }
+
+    // Names of every entry of a directory in name order, directories with a trailing '/'
+    public String[] listFiles(String directory) {
+        List<ListEntry> entries = listFiles(directory, "", null, Integer.MAX_VALUE);
+        String[] list = new String[entries.size()];
+        for (int i = 0; i < list.length; i++) {
+            ListEntry entry = entries.get(i);
+            list[i] = entry.isDirectory() ? entry.getName() + "/" : entry.getName();
+        }
+        return list;
+    }
+
+    // A page of a directory, see FileSystemManager.listFiles. Each volume lists its own first limit
+    // entries, which between them hold the first limit overall, so a page costs its size times the
+    // number of volumes. A directory is listed once, from the first volume.
+    public List<ListEntry> listFiles(String directory, String prefix, String after, int limit) {
+        if (volumes.size() == 1) {
+            return volumes.get(0).listFiles(directory, prefix, after, limit);
+        }
+        TreeMap<String, ListEntry> merged = new TreeMap<>();
+        for (FileSystemManager volume : volumes) {
+            for (ListEntry entry : volume.listFiles(directory, prefix, after, limit)) {
+                merged.putIfAbsent(entry.getName(), entry);
+            }
+        }
+
+        List<ListEntry> page = new ArrayList<>(Math.min(limit, merged.size()));
+        for (ListEntry entry : merged.values()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(entry);
+        }
+        return page;
+    }
+
+    // --- Batches --- //
+    // Each volume gets its share of the batch in one call. Names are checked on every volume before
+    // any of them changes, so a missing file or a repeated name fails the whole batch.
+
+    public byte[][] readFiles(String[] filenames) throws Exception {
+        if (volumes.size() == 1) {
+            return volumes.get(0).readFiles(filenames);
+        }
+        int[][] shares = split(filenames);
+        byte[][] data = new byte[filenames.length][];
+        for (int volume = 0; volume < shares.length; volume++) {
+            if (shares[volume].length > 0) {
+                gather(data, shares[volume], volumes.get(volume).readFiles(pick(filenames, shares[volume])));
+            }
+        }
+        return data;
+    }
+
+    public void writeFiles(String[] filenames, byte[][] data) throws Exception {
+        if (volumes.size() == 1) {
+            volumes.get(0).writeFiles(filenames, data);
+            return;
+        }
+        int[][] shares = checkBatch(filenames, data);
+        for (int volume = 0; volume < shares.length; volume++) {
+            if (shares[volume].length > 0) {
+                volumes.get(volume).writeFiles(pick(filenames, shares[volume]), pick(data, shares[volume]));
+            }
+        }
+    }
+
+    public void deleteFiles(String[] filenames) throws Exception {
+        if (volumes.size() == 1) {
+            volumes.get(0).deleteFiles(filenames);
+            return;
+        }
+        int[][] shares = checkBatch(filenames, null);
+        for (int volume = 0; volume < shares.length; volume++) {
+            if (shares[volume].length > 0) {
+                volumes.get(volume).deleteFiles(pick(filenames, shares[volume]));
+            }
+        }
+    }
+
+    // Positions of the names each volume holds, by volume
+    private int[][] split(String[] filenames) {
+        int[] route = new int[filenames.length];
+        int[] counts = new int[volumes.size()];
+        for (int i = 0; i < filenames.length; i++) {
+            route[i] = ring.volumeFor(FileSystemManager.canonical(filenames[i]));
+            counts[route[i]]++;
+        }
+
+        int[][] shares = new int[volumes.size()][];
+        for (int volume = 0; volume < shares.length; volume++) {
+            shares[volume] = new int[counts[volume]];
+            counts[volume] = 0;
+        }
+        for (int i = 0; i < filenames.length; i++) {
+            shares[route[i]][counts[route[i]]++] = i;
+        }
+        return shares;
+    }
+
+    // Fails a write (data given) or delete batch as a single volume would, before anything is changed
+    private int[][] checkBatch(String[] filenames, byte[][] data) {
+        if (data != null && filenames.length != data.length) {
+            throw new IllegalArgumentException("Every file needs its data.");
+        }
+        FileSystemManager.checkDistinct(filenames);
+        for (String filename : filenames) {
+            volumeFor(filename).checkFile(filename);
+        }
+        return split(filenames);
+    }
+
+    private static <T> T[] pick(T[] items, int[] positions) {
+        T[] picked = Arrays.copyOf(items, positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            picked[i] = items[positions[i]];
+        }
+        return picked;
+    }
+
+    private static void gather(byte[][] data, int[] positions, byte[][] share) {
+        for (int i = 0; i < positions.length; i++) {
+            data[positions[i]] = share[i];
+        }
+    }
+
+    // --- Asynchronous API --- //
+    // See FileSystemManager. Operations spanning volumes complete when every volume's part has.
+
+    public CompletableFuture<Void> createFileAsync(String fileName) {
+        return volumeFor(fileName).createFileAsync(fileName);
+    }
+
+    public CompletableFuture<Void> makeDirectoryAsync(String path) {
+        if (volumes.size() == 1) {
+            return volumes.get(0).makeDirectoryAsync(path);
+        }
+        return inTurnAsync(lackingDirectory(path), 0, volume -> volume.makeDirectoryAsync(path),
+                volume -> volume.deleteFileAsync(path));
+    }
+
+    public CompletableFuture<Void> writeFileAsync(String filename, String[] contents) {
+        return volumeFor(filename).writeFileAsync(filename, contents);
+    }
+
+    public CompletableFuture<Void> writeFileAsync(String filename, byte[] data) {
+        return volumeFor(filename).writeFileAsync(filename, data);
+    }
+
+    public CompletableFuture<Void> writeFileAsync(String filename, long offset, byte[] data) {
+        return volumeFor(filename).writeFileAsync(filename, offset, data);
+    }
+
+    public CompletableFuture<Void> appendFileAsync(String filename, byte[] data) {
+        return volumeFor(filename).appendFileAsync(filename, data);
+    }
+
+    public CompletableFuture<Void> setCompressedAsync(String filename, boolean compressed) {
+        return volumeFor(filename).setCompressedAsync(filename, compressed);
+    }
+
+    public CompletableFuture<Void> deleteFileAsync(String fileName) {
+        List<FileSystemManager> holding = holdingDirectory(fileName);
+        if (holding.isEmpty()) {
+            return volumeFor(fileName).deleteFileAsync(fileName);
+        }
+        return inTurnAsync(holding, 0, volume -> volume.deleteFileAsync(fileName),
+                volume -> volume.makeDirectoryAsync(fileName));
+    }
+
+    public CompletableFuture<String> readFileAsync(String filename) {
+        return volumeFor(filename).readFileAsync(filename);
+    }
+
+    public CompletableFuture<byte[]> readFileBytesAsync(String filename) {
+        return volumeFor(filename).readFileBytesAsync(filename);
+    }
+
+    public CompletableFuture<byte[]> readFileBytesAsync(String filename, long offset, int length) {
+        return volumeFor(filename).readFileBytesAsync(filename, offset, length);
+    }
+
+    public CompletableFuture<byte[][]> readFilesAsync(String[] filenames) {
+        if (volumes.size() == 1) {
+            return volumes.get(0).readFilesAsync(filenames);
+        }
+        int[][] shares = split(filenames);
+        byte[][] data = new byte[filenames.length][];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int volume = 0; volume < shares.length; volume++) {
+            int[] share = shares[volume];
+            if (share.length > 0) {
+                parts.add(volumes.get(volume).readFilesAsync(pick(filenames, share))
+                        .thenAccept(read -> gather(data, share, read)));
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> data);
+    }
+
+    public CompletableFuture<Void> writeFilesAsync(String[] filenames, byte[][] data) {
+        if (volumes.size() == 1) {
+            return volumes.get(0).writeFilesAsync(filenames, data);
+        }
+        int[][] shares;
+        try {
+            shares = checkBatch(filenames, data);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int volume = 0; volume < shares.length; volume++) {
+            if (shares[volume].length > 0) {
+                parts.add(volumes.get(volume).writeFilesAsync(pick(filenames, shares[volume]),
+                        pick(data, shares[volume])));
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public CompletableFuture<Void> deleteFilesAsync(String[] filenames) {
+        if (volumes.size() == 1) {
+            return volumes.get(0).deleteFilesAsync(filenames);
+        }
+        int[][] shares;
+        try {
+            shares = checkBatch(filenames, null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int volume = 0; volume < shares.length; volume++) {
+            if (shares[volume].length > 0) {
+                parts.add(volumes.get(volume).deleteFilesAsync(pick(filenames, shares[volume])));
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // --- Changes on several volumes --- //
+    // A directory is made or deleted on one volume after another. If a volume fails, the volumes
+    // already done are put back and the failure is passed on; a failure to put one back is logged.
+
+    private interface VolumeChange {
+        void apply(FileSystemManager volume) throws Exception;
+    }
+
+    private static void inTurn(List<FileSystemManager> targets, VolumeChange change, VolumeChange undo)
+            throws Exception {
+        for (int i = 0; i < targets.size(); i++) {
+            try {
+                change.apply(targets.get(i));
+            } catch (Exception e) {
+                for (FileSystemManager done : targets.subList(0, i)) {
+                    try {
+                        undo.apply(done);
+                    } catch (Exception undoFailure) {
+                        Log.warn("Could not undo a change on another volume: " + undoFailure.getMessage());
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static CompletableFuture<Void> inTurnAsync(List<FileSystemManager> targets, int from,
+            Function<FileSystemManager, CompletableFuture<Void>> change,
+            Function<FileSystemManager, CompletableFuture<Void>> undo) {
+        if (from == targets.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return change.apply(targets.get(from)).handle((done, failure) -> {
+            if (failure == null) {
+                return inTurnAsync(targets, from + 1, change, undo);
+            }
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+            List<CompletableFuture<Void>> undone = new ArrayList<>();
+            for (FileSystemManager volume : targets.subList(0, from)) {
+                undone.add(undo.apply(volume).exceptionally(undoFailure -> {
+                    Log.warn("Could not undo a change on another volume: " + undoFailure.getMessage());
+                    return null;
+                }));
+            }
+            return CompletableFuture.allOf(undone.toArray(new CompletableFuture<?>[0]))
+                    .thenCompose(all -> CompletableFuture.<Void>failedFuture(cause));
+        }).thenCompose(next -> next);
+    }
+
+    // --- Rebalancing --- //
+
+    // Brings the volumes in line with the ring: every directory on every volume, and every file on
+    // the volume its path hashes to. A file is copied and the copy committed before the original is
+    // deleted, so after a crash part way the original is still there and the next mount copies it again.
+    private void rebalance() throws Exception {
+        TreeSet<String> directories = new TreeSet<>(); // a parent sorts before its children
+        List<Map.Entry<String, Integer>> misplaced = new ArrayList<>(); // path, volume holding it
+        for (int volume = 0; volume < volumes.size(); volume++) {
+            walk(volume, "", directories, misplaced);
+        }
+
+        for (String directory : directories) {
+            for (FileSystemManager volume : volumes) {
+                if (!volume.isDirectory(directory)) {
+                    volume.makeDirectory(directory);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> file : misplaced) {
+            move(file.getKey(), volumes.get(file.getValue()), volumeFor(file.getKey()));
+        }
+
+        if (!misplaced.isEmpty()) {
+            Log.info("Moved " + misplaced.size() + " files to the volumes they belong on");
+        }
+    }
+
+    private void walk(int volume, String directory, TreeSet<String> directories,
+                      List<Map.Entry<String, Integer>> misplaced) {
+        for (ListEntry entry : volumes.get(volume).listFiles(directory, "", null, Integer.MAX_VALUE)) {
+            String path = directory.isEmpty() ? entry.getName() : directory + "/" + entry.getName();
+            if (entry.isDirectory()) {
+                directories.add(path);
+                walk(volume, path, directories, misplaced);
+            } else if (ring.volumeFor(path) != volume) {
+                misplaced.add(Map.entry(path, volume));
+            }
+        }
+    }
+
+    // Streams the file from one volume to the other, replacing any copy left there by an earlier
+    // attempt, then deletes the original
+    private static void move(String path, FileSystemManager source, FileSystemManager target) throws Exception {
+        if (!target.exists(path)) {
+            target.createFile(path);
+        }
+        if (target.isCompressed(path) != source.isCompressed(path)) {
+            target.setCompressed(path, source.isCompressed(path));
+        }
+
+        UploadChannel channel = new UploadChannel();
+        try {
+            source.transferFile(path, channel, size -> channel.upload = target.beginUpload(path, size));
+            channel.upload.commit();
+        } catch (Exception e) {
+            if (channel.upload != null) {
+                channel.upload.abort();
+            }
+            throw e;
+        }
+        source.deleteFile(path);
+        Log.debug(() -> "Moved " + path + " to another volume");
+    }
+
+    // Feeds what transferFile sends into an upload, started once the size is known
+    private static class UploadChannel implements WritableByteChannel {
+        private Upload upload;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            upload.write(src);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // --- Statistics --- //
+    // Totals over the volumes; per-volume figures come from getVolumes
+
+    // Inodes in use, counting a directory once per volume
+    public int getFileCount() {
+        return (int) sum(FileSystemManager::getFileCount);
+    }
+
+    public long getBlockCount() {
+        return sum(FileSystemManager::getBlockCount);
+    }
+
+    public long getFreeBlockCount() {
+        return sum(FileSystemManager::getFreeBlockCount);
+    }
+
+    public CompressionStats getCompressionStats() {
+        CompressionStats stats = new CompressionStats();
+        for (FileSystemManager volume : volumes) {
+            stats.add(volume.getCompressionStats());
+        }
+        return stats;
+    }
+
+    // Caches of the volumes, empty when caching is off
+    public List<BlockCache> getBlockCaches() {
+        List<BlockCache> caches = new ArrayList<>();
+        for (FileSystemManager volume : volumes) {
+            if (volume.getBlockCache() != null) {
+                caches.add(volume.getBlockCache());
+            }
+        }
+        return caches;
+    }
+
+    public boolean isDeduplicating() {
+        return volumes.get(0).isDeduplicating();
+    }
+
+    public long getSharedBlockCount() {
+        return sum(FileSystemManager::getSharedBlockCount);
+    }
+
+    public long getDedupHits() {
+        return sum(FileSystemManager::getDedupHits);
+    }
+
+    private long sum(ToLongFunction<FileSystemManager> value) {
+        long total = 0;
+        for (FileSystemManager volume : volumes) {
+            total += value.applyAsLong(volume);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,256 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Free-space bitmap, one bit per block (set = in use) packed into longs. Keeps a running free
+// count and a next-fit cursor, and hands out runs of adjacent blocks so large files are laid out
+// sequentially. Words changed since the last flush are tracked so only those need to be written.
+// Blocks freed by a transaction that isn't committed yet are deferred: they read as free on disk but
+// aren't handed out again until released, so a crash can't leave committed metadata pointing at
+// blocks another file has since overwritten.
+// Blocks handed out by reserve() belong to a write that isn't published yet: they read as free on
+// disk until publish(), so a crash before then can't leak them whichever transaction flushes their word.
+// Not thread-safe, the file system guards it with its allocation lock.
+public final class BlockBitmap {
+
+    private final long[] words; // set = in use, deferred or reserved
+    private final long[] deferred;
+    private final long[] reserved;
+    private final int blockCount;
+    private int freeCount;
+    private int cursor; // next-fit: searches start where the last allocation ended
+    private final BitSet dirtyWords = new BitSet();
+
+    // Blocks below firstDataBlock hold metadata and start out in use
+    public BlockBitmap(int blockCount, int firstDataBlock) {
+        this.words = new long[wordsFor(blockCount)];
+        this.deferred = new long[words.length];
+        this.reserved = new long[words.length];
+        this.blockCount = blockCount;
+        this.freeCount = blockCount;
+        markUsed(0, firstDataBlock);
+        this.cursor = firstDataBlock;
+    }
+
+    // Number of longs needed for blockCount bits
+    public static int wordsFor(int blockCount) {
+        return (blockCount + 63) >>> 6;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) == 0;
+    }
+
+    public void markUsed(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            if (isFree(block)) {
+                words[block >>> 6] |= 1L << block;
+                dirtyWords.set(block >>> 6);
+                freeCount--;
+            }
+        }
+    }
+
+    public void free(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            if (!isFree(block)) {
+                words[block >>> 6] &= ~(1L << block);
+                reserved[block >>> 6] &= ~(1L << block);
+                dirtyWords.set(block >>> 6);
+                freeCount++;
+            }
+        }
+    }
+
+    // Frees blocks on disk but keeps them from being allocated until release()
+    public void freeDeferred(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            long bit = 1L << block;
+            if (!isFree(block) && (deferred[block >>> 6] & bit) == 0) {
+                deferred[block >>> 6] |= bit;
+                dirtyWords.set(block >>> 6);
+            }
+        }
+    }
+
+    // Makes deferred blocks allocatable. Their on-disk bits are already clear, so nothing gets dirty.
+    public void release(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            long bit = 1L << block;
+            if ((deferred[block >>> 6] & bit) != 0) {
+                deferred[block >>> 6] &= ~bit;
+                words[block >>> 6] &= ~bit;
+                freeCount++;
+            }
+        }
+    }
+
+    // Like allocate(count, goal), but the blocks stay free on disk until publish()
+    public List<Extent> reserve(int count, int goal) {
+        List<Extent> extents = allocate(count, goal);
+        if (extents != null) {
+            for (Extent extent : extents) {
+                for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                    reserved[block >>> 6] |= 1L << block;
+                }
+            }
+        }
+        return extents;
+    }
+
+    // Marks reserved blocks in use on disk from the next flush on; other blocks are left as they are
+    public void publish(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            long bit = 1L << block;
+            if ((reserved[block >>> 6] & bit) != 0) {
+                reserved[block >>> 6] &= ~bit;
+                dirtyWords.set(block >>> 6);
+            }
+        }
+    }
+
+    // Allocates count blocks as few runs as possible: one run of the full size if there is one,
+    // otherwise free runs in next-fit order. Returns null (allocating nothing) if space is short.
+    public List<Extent> allocate(int count) {
+        List<Extent> extents = new ArrayList<>();
+        if (count == 0) {
+            return extents;
+        }
+        if (count > freeCount) {
+            return null;
+        }
+
+        int start = findRun(count);
+        if (start != -1) {
+            extents.add(new Extent(start, count));
+            markUsed(start, count);
+            cursor = start + count;
+            return extents;
+        }
+
+        int remaining = count;
+        int block = cursor;
+        while (remaining > 0) {
+            block = nextFree(block);
+            int length = 1;
+            while (length < remaining && block + length < blockCount && isFree(block + length)) {
+                length++;
+            }
+            extents.add(new Extent(block, length));
+            markUsed(block, length);
+            remaining -= length;
+            block += length;
+        }
+        cursor = block;
+        return extents;
+    }
+
+    // Like allocate(count), but takes as many blocks as are free from goal onwards first, so a file
+    // that grows by small amounts keeps extending the same run
+    public List<Extent> allocate(int count, int goal) {
+        if (count == 0 || count > freeCount || goal < 0) {
+            return allocate(count);
+        }
+        int length = 0;
+        while (length < count && goal + length < blockCount && isFree(goal + length)) {
+            length++;
+        }
+        if (length == 0) {
+            return allocate(count);
+        }
+
+        markUsed(goal, length);
+        List<Extent> extents = allocate(count - length); // can't fail, enough blocks were free
+        extents.add(0, new Extent(goal, length));
+        return extents;
+    }
+
+    // Start of the first run of at least length free blocks at or after the cursor, wrapping once
+    private int findRun(int length) {
+        int scanned = 0;
+        int block = cursor >= blockCount ? 0 : cursor;
+        while (scanned < blockCount) {
+            // Skip whole words that are full
+            if ((block & 63) == 0 && words[block >>> 6] == -1L) {
+                scanned += Math.min(64, blockCount - block);
+                block = block + 64 >= blockCount ? 0 : block + 64;
+                continue;
+            }
+            if (!isFree(block)) {
+                scanned++;
+                block = block + 1 >= blockCount ? 0 : block + 1;
+                continue;
+            }
+
+            int runLength = 0;
+            while (block + runLength < blockCount && runLength < length && isFree(block + runLength)) {
+                runLength++;
+            }
+            if (runLength == length) {
+                return block;
+            }
+            scanned += runLength;
+            block = block + runLength >= blockCount ? 0 : block + runLength;
+        }
+        return -1;
+    }
+
+    // First free block at or after from, wrapping; only called while freeCount > 0
+    private int nextFree(int from) {
+        int block = from >= blockCount ? 0 : from;
+        while (true) {
+            long free = ~words[block >>> 6] & (-1L << block);
+            if (free != 0) {
+                int found = ((block >>> 6) << 6) + Long.numberOfTrailingZeros(free);
+                if (found < blockCount) {
+                    return found;
+                }
+            }
+            block = ((block >>> 6) + 1) << 6;
+            if (block >= blockCount) {
+                block = 0;
+            }
+        }
+    }
+
+    // --- Persistence --- //
+
+    public int getWordCount() {
+        return words.length;
+    }
+
+    public void markAllDirty() {
+        dirtyWords.set(0, words.length);
+    }
+
+    // Returns the words changed since the last call and forgets them
+    public BitSet takeDirtyWords() {
+        BitSet dirty = (BitSet) dirtyWords.clone();
+        dirtyWords.clear();
+        return dirty;
+    }
+
+    // Writes words [from, to)
+    public void write(ByteBuffer out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out.putLong(words[i] & ~deferred[i] & ~reserved[i]);
+        }
+    }
+
+    public void read(ByteBuffer in) {
+        // Bits past blockCount are never set, so every set bit is a used block
+        freeCount = blockCount;
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.getLong();
+            freeCount -= Long.bitCount(words[i]);
+        }
+        dirtyWords.clear();
+    }
+}
@@ -0,0 +1,50 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Name -> inode index of the entries of one directory, kept sorted so a lookup is a tree search and a
+// listing can start anywhere without scanning what comes before, so a page costs its own size. Rebuilt
+// from the parent links of the inode records on mount. Not thread-safe, the file system guards it with
+// its table lock.
+public class DirectoryIndex {
+
+    private final TreeMap<String, Integer> entries = new TreeMap<>();
+
+    // Returns the inode of name, or -1
+    public int get(String name) {
+        Integer inode = entries.get(name);
+        return inode == null ? -1 : inode;
+    }
+
+    public void put(String name, int inode) {
+        entries.put(name, inode);
+    }
+
+    public void remove(String name) {
+        entries.remove(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Inodes of up to limit entries in name order whose names start with prefix, starting after the name
+    // `after` (null for the first). A tree search to the start, then one step per entry returned.
+    public List<Integer> page(String prefix, String after, int limit) {
+        NavigableMap<String, Integer> tail = after != null && after.compareTo(prefix) >= 0
+                ? entries.tailMap(after, false)
+                : entries.tailMap(prefix, true);
+        List<Integer> inodes = new ArrayList<>(Math.min(limit, entries.size()));
+        for (Map.Entry<String, Integer> entry : tail.entrySet()) {
+            if (inodes.size() == limit || !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            inodes.add(entry.getValue());
+        }
+        return inodes;
+    }
+}
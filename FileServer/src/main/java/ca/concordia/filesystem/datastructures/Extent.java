@@ -0,0 +1,17 @@
+package ca.concordia.filesystem.datastructures;
+
+// A run of adjacent blocks
+public class Extent {
+
+    private final int start;
+    private final int length;
+
+    public Extent(int start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public int getStart() { return start; }
+    public int getLength() { return length; }
+    public int getEnd() { return start + length; }
+}
@@ -0,0 +1,84 @@
+package ca.concordia.filesystem.datastructures;
+
+// Maps a file's logical blocks to disk blocks as a list of extents. Each extent also records the
+// logical block it starts at, so finding the extent holding an offset is a binary search.
+public class ExtentMap {
+
+    private int[] starts = new int[4];
+    private int[] lengths = new int[4];
+    private long[] logicalStarts = new long[4];
+    private int count;
+    private long blockCount;
+
+    // Appends a run of blocks to the end of the file, merging it into the last extent when adjacent
+    public void add(int start, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (count > 0 && starts[count - 1] + lengths[count - 1] == start
+                && (long) lengths[count - 1] + length <= Integer.MAX_VALUE) {
+            lengths[count - 1] += length;
+            blockCount += length;
+            return;
+        }
+
+        if (count == starts.length) {
+            starts = java.util.Arrays.copyOf(starts, count * 2);
+            lengths = java.util.Arrays.copyOf(lengths, count * 2);
+            logicalStarts = java.util.Arrays.copyOf(logicalStarts, count * 2);
+        }
+        starts[count] = start;
+        lengths[count] = length;
+        logicalStarts[count] = blockCount;
+        count++;
+        blockCount += length;
+    }
+
+    public void add(Extent extent) {
+        add(extent.getStart(), extent.getLength());
+    }
+
+    // Appends the disk blocks behind logical blocks [firstBlock, firstBlock + count) of another map
+    public void addRange(ExtentMap from, long firstBlock, long count) {
+        int index = from.find(firstBlock);
+        while (count > 0 && index != -1 && index < from.count) {
+            long skip = firstBlock - from.logicalStarts[index];
+            int length = (int) Math.min(from.lengths[index] - skip, count);
+            add((int) (from.starts[index] + skip), length);
+            firstBlock += length;
+            count -= length;
+            index++;
+        }
+    }
+
+    // Index of the extent holding logicalBlock, or -1 past the end
+    public int find(long logicalBlock) {
+        if (logicalBlock < 0 || logicalBlock >= blockCount) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (logicalStarts[mid] <= logicalBlock) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Disk block holding logicalBlock, or -1 past the end
+    public long physicalBlock(long logicalBlock) {
+        int index = find(logicalBlock);
+        return index == -1 ? -1 : starts[index] + (logicalBlock - logicalStarts[index]);
+    }
+
+    // Getters
+    public int size() { return count; }
+    public long getBlockCount() { return blockCount; }
+    public int getStart(int index) { return starts[index]; }
+    public int getLength(int index) { return lengths[index]; }
+    public long getLogicalStart(int index) { return logicalStarts[index]; }
+}
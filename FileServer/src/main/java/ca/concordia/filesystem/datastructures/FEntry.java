@@ -1,21 +1,30 @@
 package ca.concordia.filesystem.datastructures;
 
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
 
-public class FEntry {
+public final class FEntry {
 
-    private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    public static final int ROOT = -1; // parent of the entries in the root directory
+    public static final int MAX_NAME_BYTES = 64; // per path component, in UTF-8
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
-        //Check filename is max 11 bytes long
-        if (filename.length() > 11) {
-            throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
-        }
-        this.filename = filename;
-        this.filesize = filesize;
-        this.firstBlock = firstblock;
+    private String filename; // last component of the path
+    private final String path; // "dir/sub/name", without a leading '/'
+    private final int parent; // inode of the directory holding it, or ROOT
+    private final DirectoryIndex children; // null for files
+    private volatile FileContents contents; // Replaced whole on every write, so readers need no lock
+
+    // A file in the root directory
+    public FEntry(String filename, long filesize, ExtentMap extents) throws IllegalArgumentException{
+        this(filename, ROOT, false, filesize, extents);
+    }
+
+    public FEntry(String path, int parent, boolean directory, long filesize, ExtentMap extents)
+            throws IllegalArgumentException {
+        this.path = path;
+        this.parent = parent;
+        this.children = directory ? new DirectoryIndex() : null;
+        setFilename(path.substring(path.lastIndexOf('/') + 1));
+        this.contents = new FileContents(filesize, extents, new int[0]);
     }
 
     // Getters and Setters
@@ -24,27 +33,62 @@ public class FEntry {
     }
 
     public void setFilename(String filename) {
-        if (filename.length() > 11) {
-            throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+        //Check filename fits in the inode record
+        if (filename.isEmpty() || filename.equals(".") || filename.equals("..")) {
+            throw new IllegalArgumentException("Invalid name: '" + filename + "'.");
+        }
+        if (filename.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name cannot be longer than " + MAX_NAME_BYTES + " bytes.");
         }
         this.filename = filename;
     }
 
-    public short getFilesize() {
-        return filesize;
+    public String getPath() {
+        return path;
     }
 
-    public void setFilesize(short filesize) {
-        if (filesize < 0) {
-            throw new IllegalArgumentException("Filesize cannot be negative.");
-        }
-        this.filesize = filesize;
+    public int getParent() {
+        return parent;
+    }
+
+    public boolean isDirectory() {
+        return children != null;
+    }
+
+    // Entries of a directory, null for a file
+    public DirectoryIndex getChildren() {
+        return children;
     }
 
-    public short getFirstBlock() {
-        return firstBlock;
+    public FileContents getContents() {
+        return contents;
     }
-    public void setFirstBlock(short firstBlock) {
-        this.firstBlock = firstBlock;
+
+    // Publishes a new version of the file in one step
+    public void setContents(FileContents contents) {
+        this.contents = contents;
+    }
+
+    // Shortcuts to the current contents
+    public long getFilesize() {
+        return contents.getFilesize();
+    }
+
+    // Whether whole-file writes store the file deflated, see FileContents
+    public boolean isCompressed() {
+        return contents.isCompressed();
+    }
+
+    // Bytes the file's data takes on disk, less than getFilesize when compression pays off
+    public long getStoredSize() {
+        return contents.getStoredSize();
+    }
+
+    public ExtentMap getExtents() {
+        return contents.getExtents();
+    }
+
+    public int[] getIndirectBlocks() {
+        return contents.getIndirectBlocks();
     }
 }
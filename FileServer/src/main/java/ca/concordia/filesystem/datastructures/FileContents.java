@@ -0,0 +1,39 @@
+package ca.concordia.filesystem.datastructures;
+
+// One version of a file's data: its size, the extents holding it and the indirect blocks holding
+// the extents that don't fit in the inode. Never modified once published in an FEntry, so a reader
+// holding it sees a consistent file however the FEntry changes afterwards.
+// The extents of a compressed file hold storedSize bytes of deflate data that inflate to filesize
+// bytes; for any other file the two sizes are the same.
+public class FileContents {
+
+    public static final FileContents EMPTY = new FileContents(0, new ExtentMap(), new int[0]);
+
+    private final long filesize;
+    private final ExtentMap extents;
+    private final int[] indirectBlocks;
+    private final boolean compressed;
+    private final long storedSize;
+
+    public FileContents(long filesize, ExtentMap extents, int[] indirectBlocks) {
+        this(filesize, extents, indirectBlocks, false, filesize);
+    }
+
+    public FileContents(long filesize, ExtentMap extents, int[] indirectBlocks, boolean compressed, long storedSize) {
+        if (filesize < 0 || storedSize < 0) {
+            throw new IllegalArgumentException("Filesize cannot be negative.");
+        }
+        this.filesize = filesize;
+        this.extents = extents;
+        this.indirectBlocks = indirectBlocks;
+        this.compressed = compressed;
+        this.storedSize = storedSize;
+    }
+
+    // Getters
+    public long getFilesize() { return filesize; }
+    public ExtentMap getExtents() { return extents; }
+    public int[] getIndirectBlocks() { return indirectBlocks; }
+    public boolean isCompressed() { return compressed; }
+    public long getStoredSize() { return storedSize; }
+}
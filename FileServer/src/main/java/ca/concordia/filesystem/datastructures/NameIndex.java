@@ -0,0 +1,98 @@
+package ca.concordia.filesystem.datastructures;
+
+// Filename -> inode index map. Open addressing with linear probing over parallel arrays, so a lookup
+// is one hash and a short probe instead of a scan of the whole inode table. Not thread-safe, the
+// file system guards it with its table lock.
+public class NameIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    public NameIndex(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        this.keys = new String[capacity];
+        this.values = new int[capacity];
+    }
+
+    // Returns the inode of name, or -1
+    public int get(String name) {
+        int mask = keys.length - 1;
+        for (int slot = hash(name) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(name)) {
+                return values[slot];
+            }
+        }
+        return -1;
+    }
+
+    public void put(String name, int inode) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(name) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot].equals(name)) {
+                values[slot] = inode;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = name;
+        values[slot] = inode;
+        size++;
+    }
+
+    public void remove(String name) {
+        int mask = keys.length - 1;
+        int slot = hash(name) & mask;
+        while (keys[slot] != null && !keys[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == null) {
+            return;
+        }
+
+        // Shift later entries of the probe run back so no tombstones are needed
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = null;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[capacity];
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    // String.hashCode is weak in the low bits for similar names, spread it before masking
+    private static int hash(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
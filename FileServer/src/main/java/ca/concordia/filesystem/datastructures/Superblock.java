@@ -0,0 +1,122 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+// Block 0 of every image. Records the format version and the geometry the image was formatted
+// with, so mounting reads the layout from disk instead of relying on compile-time constants.
+//
+// Layout (big-endian ints): magic, version, block size, inode size, inode count, block count,
+// inode table start block, block map start block, first data block, then from version 2 the
+// free-space bitmap start block. Version 1 and 2 images chain file blocks through the block map;
+// from version 3 inodes hold extents and the block map start is -1. From version 4 inodes record
+// their parent directory and may be directories themselves; older images have every file at the root.
+// From version 5 inodes may hold compressed files, recording the size of their data on disk.
+public class Superblock {
+
+    public static final int MAGIC = 0x43465331; // "CFS1"
+    public static final int VERSION = 5;
+    public static final int SIZE = 40;
+
+    private int version;
+    private int blockSize;
+    private int inodeSize;
+    private int inodeCount;
+    private int blockCount;
+    private int inodeTableStart;
+    private int blockMapStart;
+    private int firstDataBlock;
+    private int bitmapStart = -1; // -1 on version 1 images, which kept no bitmap
+
+    private Superblock() {
+    }
+
+    // Lays out a fresh image: superblock, inode table, free-space bitmap, then data
+    public static Superblock format(int blockSize, int inodeSize, int inodeCount, long totalSize) {
+        if (blockSize < SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two of at least " + SIZE + " bytes.");
+        }
+        if (inodeCount < 1) {
+            throw new IllegalArgumentException("Inode count must be positive.");
+        }
+        long blocks = totalSize / blockSize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image has more than " + Integer.MAX_VALUE + " blocks, use a larger block size.");
+        }
+
+        Superblock sb = new Superblock();
+        sb.version = VERSION;
+        sb.blockSize = blockSize;
+        sb.inodeSize = inodeSize;
+        sb.inodeCount = inodeCount;
+        sb.blockCount = (int) blocks;
+        sb.inodeTableStart = 1;
+        sb.bitmapStart = sb.inodeTableStart + blocksFor((long) inodeCount * inodeSize, blockSize);
+        sb.blockMapStart = -1;
+        sb.firstDataBlock = sb.bitmapStart + bitmapBlocks(sb.blockCount, blockSize);
+
+        if (sb.firstDataBlock >= sb.blockCount) {
+            throw new IllegalArgumentException("Image of " + totalSize + " bytes is too small for its own metadata.");
+        }
+        return sb;
+    }
+
+    // Returns null when the buffer does not start with a superblock (e.g. a pre-superblock image)
+    public static Superblock read(ByteBuffer in) {
+        if (in.remaining() < SIZE || in.getInt() != MAGIC) {
+            return null;
+        }
+        Superblock sb = new Superblock();
+        sb.version = in.getInt();
+        sb.blockSize = in.getInt();
+        sb.inodeSize = in.getInt();
+        sb.inodeCount = in.getInt();
+        sb.blockCount = in.getInt();
+        sb.inodeTableStart = in.getInt();
+        sb.blockMapStart = in.getInt();
+        sb.firstDataBlock = in.getInt();
+        if (sb.version >= 2) {
+            sb.bitmapStart = in.getInt();
+        }
+        return sb;
+    }
+
+    public void write(ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.putInt(version);
+        out.putInt(blockSize);
+        out.putInt(inodeSize);
+        out.putInt(inodeCount);
+        out.putInt(blockCount);
+        out.putInt(inodeTableStart);
+        out.putInt(blockMapStart);
+        out.putInt(firstDataBlock);
+        out.putInt(bitmapStart);
+    }
+
+    // Moves an older image to the current version, with its bitmap at the given block
+    public void upgrade(int bitmapStart) {
+        this.version = VERSION;
+        this.bitmapStart = bitmapStart;
+        this.blockMapStart = -1;
+    }
+
+    public static int blocksFor(long bytes, int blockSize) {
+        return (int) ((bytes + blockSize - 1) / blockSize);
+    }
+
+    public static int bitmapBlocks(int blockCount, int blockSize) {
+        return blocksFor((long) BlockBitmap.wordsFor(blockCount) * 8, blockSize);
+    }
+
+    // Getters
+    public int getVersion() { return version; }
+    public int getBlockSize() { return blockSize; }
+    public int getInodeSize() { return inodeSize; }
+    public int getInodeCount() { return inodeCount; }
+    public int getBlockCount() { return blockCount; }
+    public int getInodeTableStart() { return inodeTableStart; }
+    public int getBlockMapStart() { return blockMapStart; }
+    public int getFirstDataBlock() { return firstDataBlock; }
+    public int getBitmapStart() { return bitmapStart; }
+    public long getImageSize() { return (long) blockCount * blockSize; }
+}
@@ -0,0 +1,152 @@
+package ca.concordia.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Asynchronous, level-filtered logging. Callers format a message and queue it; one daemon thread
+// writes queued messages to stdout in batches, so a request thread never waits on the console. When
+// the queue is full, messages are dropped and counted instead of stalling the caller.
+// The level is set with -Dfileserver.logLevel=DEBUG|INFO|WARN|ERROR (default INFO). Per-request
+// messages are DEBUG.
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_SIZE = 8192;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile Level threshold = parseLevel(System.getProperty("fileserver.logLevel", "INFO"));
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong unwritten = new AtomicLong(); // queued or being written
+    private static final Object drained = new Object(); // notified whenever everything queued is written
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    public static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    // The message is only built when DEBUG is on, so per-request calls cost nothing otherwise
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, message.get());
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, message);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, message);
+        }
+    }
+
+    public static void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, message);
+        }
+    }
+
+    public static void error(String message, Throwable cause) {
+        if (isEnabled(Level.ERROR)) {
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            enqueue(Level.ERROR, message + System.lineSeparator() + trace.toString().stripTrailing());
+        }
+    }
+
+    // Messages dropped because the queue was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // Waits up to timeoutMillis for everything queued so far to be written, e.g. before exiting
+    public static void flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (drained) {
+            while (unwritten.get() > 0) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return;
+                }
+                try {
+                    drained.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void enqueue(Level level, String message) {
+        String line = LocalDateTime.now().format(TIME) + " " + level + " [" + Thread.currentThread().getName() + "] "
+                + message;
+        unwritten.incrementAndGet();
+        if (!queue.offer(line)) {
+            unwritten.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            StringBuilder out = new StringBuilder();
+            for (String line : batch) {
+                out.append(line).append(System.lineSeparator());
+            }
+            System.out.print(out);
+            System.out.flush();
+            int written = batch.size();
+            batch.clear();
+
+            if (unwritten.addAndGet(-written) == 0) {
+                synchronized (drained) {
+                    drained.notifyAll();
+                }
+            }
+        }
+    }
+}
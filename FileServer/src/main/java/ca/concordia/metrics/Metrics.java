@@ -0,0 +1,240 @@
+package ca.concordia.metrics;
+
+import ca.concordia.filesystem.BlockCache;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.logging.Log;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Server-wide counters and latency distributions. Protocol handlers record each command's latency and
+// outcome, engines count bytes on the wire, and the file system's lock waits, block usage and cache
+// counters are read from it when a snapshot is rendered. Recording never locks.
+//
+// render() produces the Prometheus text format, which the STATS command and the HTTP endpoint both
+// return. The same numbers are registered over JMX.
+public class Metrics implements MetricsMXBean {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String OBJECT_NAME = "ca.concordia:type=FileServer,name=Metrics";
+
+    private static class CommandStats {
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private final ShardedFileSystem fsManager;
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final long startTime = System.nanoTime();
+    private volatile IntSupplier connections = () -> 0;
+    private ObjectName registeredName;
+
+    public Metrics(ShardedFileSystem fsManager) {
+        this.fsManager = fsManager;
+    }
+
+    // --- Recording --- //
+
+    // command is one of a fixed set of names, never raw client input, so the map stays small
+    public void recordCommand(String command, long nanos, boolean error) {
+        CommandStats stats = commands.computeIfAbsent(command, name -> new CommandStats());
+        stats.latency.record(nanos);
+        if (error) {
+            stats.errors.increment();
+        }
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void setConnectionCount(IntSupplier connections) {
+        this.connections = connections;
+    }
+
+    // --- Rendering --- //
+
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        line(out, "fileserver_uptime_seconds", "", seconds(System.nanoTime() - startTime));
+        line(out, "fileserver_connections_active", "", connections.getAsInt());
+        line(out, "fileserver_bytes_received_total", "", bytesIn.sum());
+        line(out, "fileserver_bytes_sent_total", "", bytesOut.sum());
+
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            String labels = "command=\"" + entry.getKey() + "\"";
+            CommandStats stats = entry.getValue();
+            line(out, "fileserver_commands_total", labels, stats.latency.getCount());
+            line(out, "fileserver_command_errors_total", labels, stats.errors.sum());
+            histogram(out, "fileserver_command_latency_seconds", labels, stats.latency);
+        }
+
+        // Each volume has its own locks; the volume label only appears once there are several
+        List<FileSystemManager> volumes = fsManager.getVolumes();
+        for (int volume = 0; volume < volumes.size(); volume++) {
+            String volumeLabel = volumes.size() > 1 ? ",volume=\"" + volume + "\"" : "";
+            for (Map.Entry<String, LatencyHistogram> entry : volumes.get(volume).getLockWaits().entrySet()) {
+                String labels = "lock=\"" + entry.getKey() + "\"" + volumeLabel;
+                line(out, "fileserver_lock_acquisitions_total", labels, entry.getValue().getCount());
+                histogram(out, "fileserver_lock_wait_seconds", labels, entry.getValue());
+            }
+        }
+
+        line(out, "fileserver_volumes", "", volumes.size());
+        if (volumes.size() > 1) {
+            for (int volume = 0; volume < volumes.size(); volume++) {
+                String labels = "volume=\"" + volume + "\"";
+                line(out, "fileserver_volume_files", labels, volumes.get(volume).getFileCount());
+                line(out, "fileserver_volume_blocks_free", labels, volumes.get(volume).getFreeBlockCount());
+            }
+        }
+        line(out, "fileserver_files", "", fsManager.getFileCount());
+        line(out, "fileserver_blocks_total", "", fsManager.getBlockCount());
+        line(out, "fileserver_blocks_free", "", fsManager.getFreeBlockCount());
+        FileSystemManager.CompressionStats compression = fsManager.getCompressionStats();
+        line(out, "fileserver_compressed_files", "", compression.getFiles());
+        line(out, "fileserver_compressed_bytes", "", compression.getBytes());
+        line(out, "fileserver_compressed_stored_bytes", "", compression.getStoredBytes());
+        line(out, "fileserver_compression_ratio", "", compression.getRatio());
+        if (fsManager.isDeduplicating()) {
+            line(out, "fileserver_dedup_shared_blocks", "", fsManager.getSharedBlockCount());
+            line(out, "fileserver_dedup_hits_total", "", fsManager.getDedupHits());
+        }
+
+        List<BlockCache> caches = fsManager.getBlockCaches();
+        if (!caches.isEmpty()) {
+            line(out, "fileserver_cache_hits_total", "", cacheTotal(BlockCache::getHits));
+            line(out, "fileserver_cache_misses_total", "", cacheTotal(BlockCache::getMisses));
+            line(out, "fileserver_cache_evictions_total", "", cacheTotal(BlockCache::getEvictions));
+            line(out, "fileserver_cache_used_bytes", "", cacheTotal(BlockCache::getUsedBytes));
+            line(out, "fileserver_cache_capacity_bytes", "", cacheTotal(BlockCache::getCapacityBytes));
+        }
+
+        line(out, "fileserver_log_dropped_total", "", Log.getDropped());
+        return out.toString();
+    }
+
+    // Summed over the volumes' caches, 0 when caching is off
+    private long cacheTotal(ToLongFunction<BlockCache> value) {
+        long total = 0;
+        for (BlockCache cache : fsManager.getBlockCaches()) {
+            total += value.applyAsLong(cache);
+        }
+        return total;
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            line(out, name, labels + ",quantile=\"" + quantile + "\"", seconds(histogram.percentile(quantile)));
+        }
+        line(out, name, labels + ",quantile=\"1.0\"", seconds(histogram.getMax()));
+        line(out, name + "_sum", labels, seconds(histogram.getSum()));
+        line(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void line(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    // --- JMX --- //
+
+    public synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // left behind by an earlier server in this JVM
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            Log.warn("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        registeredName = null;
+    }
+
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public int getActiveConnections() { return connections.getAsInt(); }
+    @Override public int getFiles() { return fsManager.getFileCount(); }
+    @Override public long getTotalBlocks() { return fsManager.getBlockCount(); }
+    @Override public long getFreeBlocks() { return fsManager.getFreeBlockCount(); }
+    @Override public double getCompressionRatio() { return fsManager.getCompressionStats().getRatio(); }
+    @Override public long getLogMessagesDropped() { return Log.getDropped(); }
+    @Override public String getStats() { return render(); }
+
+    @Override public long getCacheHits() { return cacheTotal(BlockCache::getHits); }
+    @Override public long getCacheMisses() { return cacheTotal(BlockCache::getMisses); }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return perCommand(stats -> stats.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getCommandErrors() {
+        return perCommand(stats -> stats.errors.sum());
+    }
+
+    @Override
+    public Map<String, Long> getCommandLatencyP99() {
+        return perCommand(stats -> stats.latency.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getLockWaitP99() {
+        // Keyed by lock name, prefixed with "<volume>/" once there are several volumes
+        Map<String, Long> result = new TreeMap<>();
+        List<FileSystemManager> volumes = fsManager.getVolumes();
+        for (int volume = 0; volume < volumes.size(); volume++) {
+            String prefix = volumes.size() > 1 ? volume + "/" : "";
+            for (Map.Entry<String, LatencyHistogram> entry : volumes.get(volume).getLockWaits().entrySet()) {
+                result.put(prefix + entry.getKey(), entry.getValue().percentile(0.99));
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Long> perCommand(ToLongFunction<CommandStats> value) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            result.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,23 @@
+package ca.concordia.metrics;
+
+import java.util.Map;
+
+// JMX view of Metrics, registered as ca.concordia:type=FileServer,name=Metrics. Latencies are in
+// nanoseconds; getStats() has everything, including the other percentiles, as STATS prints it.
+public interface MetricsMXBean {
+    long getBytesIn();
+    long getBytesOut();
+    int getActiveConnections();
+    int getFiles();
+    long getTotalBlocks();
+    long getFreeBlocks();
+    double getCompressionRatio();
+    long getCacheHits();
+    long getCacheMisses();
+    long getLogMessagesDropped();
+    Map<String, Long> getCommandCounts();
+    Map<String, Long> getCommandErrors();
+    Map<String, Long> getCommandLatencyP99();
+    Map<String, Long> getLockWaitP99();
+    String getStats();
+}
@@ -0,0 +1,484 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Length-prefixed binary framing, switched on per connection with the text command BINARY.
+//
+// Request:  opcode u8 | request id u32 | name length u16 | payload length u32 | name | payload
+// Response: status u8 | request id u32 | payload length u32 | payload
+//
+// Integers are big-endian, names are UTF-8 and payloads are arbitrary bytes. The request id is
+// echoed back untouched. Error responses carry a UTF-8 message as their payload.
+public class BinaryProtocol {
+
+    public static final int REQUEST_HEADER_SIZE = 11;
+    public static final int RESPONSE_HEADER_SIZE = 9;
+    private static final long MAX_PAYLOAD_LENGTH = 0xFFFFFFFFL; // largest reply payload a u32 can describe
+
+    // Opcodes
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_READ = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_LIST = 5;     // optional payload: see ListPage; reply payload: see encodeList/encodePage
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_PIPELINE = 7; // optional payload: window u32; reply payload: window u32
+    public static final byte OP_READ_RANGE = 8; // payload: offset u64, length u32; reply payload: the bytes
+    public static final byte OP_WRITE_AT = 9; // payload: offset u64, then the bytes
+    public static final byte OP_APPEND = 10;
+    public static final byte OP_MREAD = 11;   // payload: names as in a LIST reply; reply payload: see encodeReads
+    public static final byte OP_MWRITE = 12;  // payload: count u32, then per file name length u16 | name | data length u32 | data
+    public static final byte OP_MDELETE = 13; // payload: names as in a LIST reply
+    public static final byte OP_MKDIR = 14;
+    public static final byte OP_COMPRESS = 15; // optional payload: u8, 0 to store the file uncompressed again
+
+    // Status codes
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;        // the file system refused the operation
+    public static final byte STATUS_BAD_REQUEST = 2;  // malformed frame or missing name
+    public static final byte STATUS_UNKNOWN_OP = 3;
+
+    // Opcode names as counted in the metrics, indexed by opcode
+    private static final String[] OP_NAMES = {"UNKNOWN", "CREATE", "WRITE", "READ", "DELETE", "LIST", "QUIT",
+            "PIPELINE", "READ-RANGE", "WRITE-AT", "APPEND", "MREAD", "MWRITE", "MDELETE", "MKDIR", "COMPRESS"};
+
+    private final ShardedFileSystem fsManager;
+    private final int maxPipelineWindow;
+    private final Metrics metrics;
+
+    public BinaryProtocol(ShardedFileSystem fsManager, int maxPipelineWindow, Metrics metrics) {
+        this.fsManager = fsManager;
+        this.maxPipelineWindow = maxPipelineWindow;
+        this.metrics = metrics;
+    }
+
+    // The path a request works on, as the file system stores it, or null for requests that must not
+    // overlap with any other
+    public static String orderingKey(byte opcode, String name) {
+        switch (opcode) {
+            case OP_CREATE:
+            case OP_MKDIR:
+            case OP_WRITE:
+            case OP_READ:
+            case OP_READ_RANGE:
+            case OP_WRITE_AT:
+            case OP_APPEND:
+            case OP_DELETE:
+            case OP_COMPRESS:
+                String path = FileSystemManager.canonical(name);
+                return path.isEmpty() ? null : path;
+            default:
+                return null;
+        }
+    }
+
+    // Decoded request header; the name and payload follow it on the wire
+    public static class Header {
+        private byte opcode;
+        private int requestId;
+        private int nameLength;
+        private int payloadLength;
+
+        // Reads the fixed-size header at the buffer's position. Reusable across frames.
+        public Header parse(ByteBuffer in) {
+            this.opcode = in.get();
+            this.requestId = in.getInt();
+            this.nameLength = in.getShort() & 0xFFFF;
+            this.payloadLength = in.getInt();
+            return this;
+        }
+
+        public byte getOpcode() { return opcode; }
+        public int getRequestId() { return requestId; }
+        public int getNameLength() { return nameLength; }
+        public int getPayloadLength() { return payloadLength; }
+
+        // Total frame size including this header, or -1 if the lengths are invalid
+        public long frameLength() {
+            return payloadLength < 0 ? -1 : (long) REQUEST_HEADER_SIZE + nameLength + payloadLength;
+        }
+    }
+
+    // Runs the request and records its latency. READ and READ_RANGE are recorded once the file has
+    // been sent, when their body is closed.
+    public CommandHandler.Response handle(byte opcode, int requestId, String name, byte[] payload) {
+        Log.debug(() -> "Received binary request " + requestId + ": op " + opcode + " " + name);
+
+        long start = System.nanoTime();
+        String opName = opcode > 0 && opcode < OP_NAMES.length ? OP_NAMES[opcode] : OP_NAMES[0];
+        CommandHandler.Response response = run(opcode, requestId, name, payload, opName, start);
+        if (response.getBody() instanceof Frame) {
+            metrics.recordCommand("BINARY " + opName, System.nanoTime() - start, ((Frame) response.getBody()).isError());
+        }
+        return response;
+    }
+
+    // Same as handle, except that CREATE, MKDIR, WRITE, WRITE_AT, APPEND, DELETE, COMPRESS and the batch
+    // ops go through the file system's asynchronous API. Anything else runs inline and returns a completed
+    // future.
+    public CompletableFuture<CommandHandler.Response> handleAsync(byte opcode, int requestId, String name, byte[] payload) {
+        long start = System.nanoTime();
+        CompletableFuture<?> operation = null; // completes with the reply payload, or null for an empty one
+        Batch batch;
+        if (!name.isEmpty()) {
+            switch (opcode) {
+                case OP_CREATE:
+                    operation = fsManager.createFileAsync(name);
+                    break;
+                case OP_MKDIR:
+                    operation = fsManager.makeDirectoryAsync(name);
+                    break;
+                case OP_WRITE:
+                    operation = fsManager.writeFileAsync(name, payload);
+                    break;
+                case OP_WRITE_AT:
+                    if (payload.length >= 8) {
+                        long offset = ByteBuffer.wrap(payload).getLong();
+                        operation = fsManager.writeFileAsync(name, offset, Arrays.copyOfRange(payload, 8, payload.length));
+                    }
+                    break;
+                case OP_APPEND:
+                    operation = fsManager.appendFileAsync(name, payload);
+                    break;
+                case OP_DELETE:
+                    operation = fsManager.deleteFileAsync(name);
+                    break;
+                case OP_COMPRESS:
+                    operation = fsManager.setCompressedAsync(name, payload.length == 0 || payload[0] != 0);
+                    break;
+                default:
+                    break;
+            }
+        } else if (opcode == OP_MREAD && (batch = Batch.decode(payload, false)) != null) {
+            operation = fsManager.readFilesAsync(batch.names).thenApply(BinaryProtocol::encodeReads);
+        } else if (opcode == OP_MWRITE && (batch = Batch.decode(payload, true)) != null) {
+            operation = fsManager.writeFilesAsync(batch.names, batch.data);
+        } else if (opcode == OP_MDELETE && (batch = Batch.decode(payload, false)) != null) {
+            operation = fsManager.deleteFilesAsync(batch.names);
+        }
+        if (operation == null) {
+            return CompletableFuture.completedFuture(handle(opcode, requestId, name, payload));
+        }
+
+        Log.debug(() -> "Received binary request " + requestId + ": op " + opcode + " " + name);
+        return operation.handle((result, failure) -> {
+            metrics.recordCommand("BINARY " + OP_NAMES[opcode], System.nanoTime() - start, failure != null);
+            if (failure != null) {
+                return reply(STATUS_ERROR, requestId, String.valueOf(CommandHandler.cause(failure).getMessage()), false);
+            }
+            return reply(STATUS_OK, requestId, result instanceof byte[] ? (byte[]) result : new byte[0], false);
+        });
+    }
+
+    private CommandHandler.Response run(byte opcode, int requestId, String name, byte[] payload, String opName, long start) {
+        // Every request that works on a file needs its name
+        if (name.isEmpty() && opcode != OP_MKDIR && orderingKey(opcode, "-") != null) {
+            return reply(STATUS_BAD_REQUEST, requestId, "Missing filename.", false);
+        }
+
+        try {
+            switch (opcode) {
+                case OP_CREATE:
+                    fsManager.createFile(name);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_MKDIR:
+                    if (name.isEmpty()) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Missing directory name.", false);
+                    }
+                    fsManager.makeDirectory(name);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_WRITE:
+                    fsManager.writeFile(name, payload);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_READ:
+                    return transferFile(requestId, name, 0, Long.MAX_VALUE, opName, start);
+
+                case OP_READ_RANGE: {
+                    if (payload.length != 12) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected offset u64 and length u32.", false);
+                    }
+                    ByteBuffer range = ByteBuffer.wrap(payload);
+                    long offset = range.getLong();
+                    long length = range.getInt() & 0xFFFFFFFFL;
+                    return transferFile(requestId, name, offset, length, opName, start);
+                }
+
+                case OP_WRITE_AT: {
+                    if (payload.length < 8) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected offset u64.", false);
+                    }
+                    long offset = ByteBuffer.wrap(payload).getLong();
+                    fsManager.writeFile(name, offset, Arrays.copyOfRange(payload, 8, payload.length));
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+                }
+
+                case OP_APPEND:
+                    fsManager.appendFile(name, payload);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_DELETE:
+                    fsManager.deleteFile(name);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_COMPRESS:
+                    fsManager.setCompressed(name, payload.length == 0 || payload[0] != 0);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+
+                case OP_LIST: {
+                    // The name is the directory to list, empty for the root. Without a payload every name is
+                    // sent; with one, a page of entries with their sizes.
+                    if (payload.length == 0) {
+                        return reply(STATUS_OK, requestId, encodeList(fsManager.listFiles(name)), false);
+                    }
+                    ListPage page = ListPage.decode(payload);
+                    if (page == null) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected limit u32, prefix and after.", false);
+                    }
+                    // One extra entry tells whether anything follows the page
+                    List<FileSystemManager.ListEntry> entries =
+                            fsManager.listFiles(name, page.prefix, page.after, page.limit + 1);
+                    return reply(STATUS_OK, requestId, encodePage(entries, page.limit), false);
+                }
+
+                case OP_MREAD: {
+                    Batch batch = Batch.decode(payload, false);
+                    if (batch == null) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected a list of names.", false);
+                    }
+                    return reply(STATUS_OK, requestId, encodeReads(fsManager.readFiles(batch.names)), false);
+                }
+
+                case OP_MWRITE: {
+                    Batch batch = Batch.decode(payload, true);
+                    if (batch == null) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected a list of names and data.", false);
+                    }
+                    fsManager.writeFiles(batch.names, batch.data);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+                }
+
+                case OP_MDELETE: {
+                    Batch batch = Batch.decode(payload, false);
+                    if (batch == null) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Expected a list of names.", false);
+                    }
+                    fsManager.deleteFiles(batch.names);
+                    return reply(STATUS_OK, requestId, new byte[0], false);
+                }
+
+                case OP_QUIT:
+                    return reply(STATUS_OK, requestId, new byte[0], true);
+
+                case OP_PIPELINE:
+                    int window = payload.length >= 4 ? ByteBuffer.wrap(payload).getInt() : maxPipelineWindow;
+                    if (window < 1) {
+                        return reply(STATUS_BAD_REQUEST, requestId, "Invalid pipeline window.", false);
+                    }
+                    window = Math.min(window, maxPipelineWindow);
+                    CommandHandler.Response response = reply(STATUS_OK, requestId, ByteBuffer.allocate(4).putInt(window).array(), false);
+                    return response.withPipelineWindow(window);
+
+                default:
+                    return reply(STATUS_UNKNOWN_OP, requestId, "Unknown opcode " + opcode + ".", false);
+            }
+        } catch (Exception e) {
+            return reply(STATUS_ERROR, requestId, String.valueOf(e.getMessage()), false);
+        }
+    }
+
+    // LIST payload: count u32, then per file name length u16 | name
+    private static byte[] encodeList(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        int size = 4;
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(names.length);
+        for (byte[] name : encoded) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        return buffer.array();
+    }
+
+    // Paged LIST reply payload: count u32, then per entry name length u16 | name | directory u8 |
+    // size u64 | blocks u64, then the length u16 and name to pass as `after` for the next page, empty
+    // when this page is the last
+    private static byte[] encodePage(List<FileSystemManager.ListEntry> entries, int limit) {
+        int count = Math.min(entries.size(), limit);
+        byte[][] encoded = new byte[count][];
+        int size = 4 + 2;
+        for (int i = 0; i < count; i++) {
+            encoded[i] = entries.get(i).getName().getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i].length + 1 + 8 + 8;
+        }
+        byte[] next = entries.size() > limit ? encoded[count - 1] : new byte[0];
+        size += next.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            FileSystemManager.ListEntry entry = entries.get(i);
+            buffer.putShort((short) encoded[i].length);
+            buffer.put(encoded[i]);
+            buffer.put((byte) (entry.isDirectory() ? 1 : 0));
+            buffer.putLong(entry.getSize());
+            buffer.putLong(entry.getBlocks());
+        }
+        buffer.putShort((short) next.length);
+        buffer.put(next);
+        return buffer.array();
+    }
+
+    // MREAD reply payload: count u32, then per file status u8 (STATUS_OK, or STATUS_ERROR if it doesn't
+    // exist) | length u32 | data
+    private static byte[] encodeReads(byte[][] data) {
+        int size = 4;
+        for (byte[] file : data) {
+            size += 5 + (file == null ? 0 : file.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(data.length);
+        for (byte[] file : data) {
+            buffer.put(file == null ? STATUS_ERROR : STATUS_OK);
+            buffer.putInt(file == null ? 0 : file.length);
+            if (file != null) {
+                buffer.put(file);
+            }
+        }
+        return buffer.array();
+    }
+
+    // Paged LIST request payload: limit u32, prefix length u16 | prefix, after length u16 | after (empty
+    // to start from the first entry)
+    private static class ListPage {
+        private int limit;
+        private String prefix;
+        private String after;
+
+        // Null when the payload is malformed or the limit is 0
+        static ListPage decode(byte[] payload) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                ListPage page = new ListPage();
+                page.limit = (int) Math.min(in.getInt() & 0xFFFFFFFFL, Integer.MAX_VALUE - 1);
+                byte[] prefix = new byte[in.getShort() & 0xFFFF];
+                in.get(prefix);
+                byte[] after = new byte[in.getShort() & 0xFFFF];
+                in.get(after);
+                page.prefix = new String(prefix, StandardCharsets.UTF_8);
+                page.after = after.length == 0 ? null : new String(after, StandardCharsets.UTF_8);
+                return page.limit == 0 || in.hasRemaining() ? null : page;
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+        }
+    }
+
+    // Names (and, for MWRITE, data) of a batch request
+    private static class Batch {
+        private final String[] names;
+        private final byte[][] data;
+
+        private Batch(int count) {
+            this.names = new String[count];
+            this.data = new byte[count][];
+        }
+
+        // Null when the payload is malformed or empty
+        static Batch decode(byte[] payload, boolean withData) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                int count = in.getInt();
+                if (count < 1 || count > payload.length) {
+                    return null;
+                }
+                Batch batch = new Batch(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] name = new byte[in.getShort() & 0xFFFF];
+                    in.get(name);
+                    batch.names[i] = new String(name, StandardCharsets.UTF_8);
+                    if (withData) {
+                        int length = in.getInt();
+                        if (length < 0 || length > in.remaining()) {
+                            return null;
+                        }
+                        batch.data[i] = new byte[length];
+                        in.get(batch.data[i]);
+                    }
+                }
+                return in.hasRemaining() ? null : batch;
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+        }
+    }
+
+    // READ streams the file after the header with transferTo, like the text READB command. Failures
+    // to open it are thrown to run, which replies with an error frame, as does a file too large to frame.
+    private CommandHandler.Response transferFile(int requestId, String name, long offset, long length, String opName,
+                                                 long start) throws IOException {
+        FileSystemManager.Transfer transfer = fsManager.openTransfer(name, offset, length);
+        if (transfer.getSize() > MAX_PAYLOAD_LENGTH) {
+            transfer.close();
+            return reply(STATUS_ERROR, requestId, "File is too large for one reply, read it with READ-RANGE.", false);
+        }
+        return new CommandHandler.Response("", false, new CommandHandler.TransferBody(
+                header(STATUS_OK, requestId, transfer.getSize()), transfer,
+                failed -> metrics.recordCommand("BINARY " + opName, System.nanoTime() - start, failed)));
+    }
+
+    // Convenience for callers that failed before a request could be dispatched
+    public static CommandHandler.Response reply(byte status, int requestId, String message, boolean close) {
+        return reply(status, requestId, message.getBytes(StandardCharsets.UTF_8), close);
+    }
+
+    private static CommandHandler.Response reply(byte status, int requestId, byte[] payload, boolean close) {
+        return new CommandHandler.Response("", close, new Frame(frame(status, requestId, payload)));
+    }
+
+    // A complete response frame, built before it is sent
+    private static class Frame extends CommandHandler.BufferBody {
+        private final ByteBuffer frame;
+
+        Frame(ByteBuffer frame) {
+            super(frame);
+            this.frame = frame;
+        }
+
+        boolean isError() {
+            return frame.get(0) != STATUS_OK;
+        }
+    }
+
+    // payloadLength is at most MAX_PAYLOAD_LENGTH and goes out as a u32
+    private static ByteBuffer header(byte status, int requestId, long payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+        header.put(status).putInt(requestId).putInt((int) payloadLength).flip();
+        return header;
+    }
+
+    private static ByteBuffer frame(byte status, int requestId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(RESPONSE_HEADER_SIZE + payload.length);
+        frame.put(status).putInt(requestId).putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+}
@@ -0,0 +1,311 @@
+package ca.concordia.server;
+
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Blocking handler for one client, used by the thread-per-connection engine. Requests run inline
+// on this thread until the client sends PIPELINE; after that they are handed to a RequestPipeline
+// and this thread only reads.
+class ClientThread implements Runnable {
+    private final Socket clientSocket;
+    private final CommandHandler handler;
+    private final BinaryProtocol binary;
+    private final Metrics metrics;
+    private final Executor executor;
+    private final int maxLineBytes;
+    private final int maxFrameBytes;
+    private final int pipelineWindow;
+    private final int streamChunkBytes;
+    private final Runnable onClose;
+
+    private PrintWriter writer;
+    private RequestPipeline pipeline;
+    private byte[] uploadChunk; // allocated on the first UPLOAD, then reused
+    private volatile long stalledSince; // while sending, when the client last took reply bytes; otherwise 0
+
+    public ClientThread(Socket socket, CommandHandler handler, BinaryProtocol binary, Metrics metrics, Executor executor,
+                        ServerConfig config, Runnable onClose) {
+        this.clientSocket = socket;
+        this.handler = handler;
+        this.binary = binary;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.maxLineBytes = config.getMaxLineBytes();
+        this.maxFrameBytes = config.getMaxFrameBytes();
+        this.pipelineWindow = config.getPipelineWindow();
+        this.streamChunkBytes = config.getStreamChunkBytes();
+        this.onClose = onClose;
+    }
+
+    public void run() {
+        try (
+            DataInputStream reader = new DataInputStream(new BufferedInputStream(new CountingInput(clientSocket.getInputStream())));
+            PrintWriter writer = new PrintWriter(new CountingOutput(clientSocket.getOutputStream()), true)) {
+                this.writer = writer;
+
+                while (true) {
+                    String line;
+                    try {
+                        line = readLine(reader);
+                    } catch (LineTooLongException e) {
+                        // The rest of the line can't be told apart from the next request, so hang up
+                        dispatch(null, () -> new CommandHandler.Response("ERROR: Line too long.\n", true));
+                        break;
+                    }
+                    if (line == null) {
+                        break;
+                    }
+
+                    CommandHandler.Upload upload = handler.beginUpload(line);
+                    if (upload != null) {
+                        if (!receiveUpload(reader, upload, CommandHandler.orderingKey(line))) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    String request = line;
+                    if (dispatch(CommandHandler.orderingKey(request), () -> handler.handle(request))) {
+                        return;
+                    }
+
+                    if (CommandHandler.isBinarySwitch(line)) {
+                        runBinary(reader);
+                        break;
+                    }
+                }
+
+                // The client may half-close right after its last request, let pipelined replies finish
+                if (pipeline != null) {
+                    pipeline.awaitCapacity(1);
+                }
+            } catch (Exception e) {
+                if (!clientSocket.isClosed()) {
+                    Log.error("Connection failed: " + clientSocket, e);
+                }
+            } finally {
+                try {
+                    clientSocket.close();
+                } catch (Exception e) {
+                    // Ignore
+                }
+                onClose.run();
+            }
+    }
+
+    // Frame loop once the client has sent BINARY. Header and name buffers are reused across frames.
+    private void runBinary(DataInputStream reader) throws IOException, InterruptedException {
+        BinaryProtocol.Header header = new BinaryProtocol.Header();
+        ByteBuffer headerBuffer = ByteBuffer.allocate(BinaryProtocol.REQUEST_HEADER_SIZE);
+        byte[] nameBytes = new byte[256];
+
+        while (true) {
+            try {
+                reader.readFully(headerBuffer.array());
+            } catch (EOFException e) {
+                return;
+            }
+            headerBuffer.clear();
+            header.parse(headerBuffer);
+
+            long frameLength = header.frameLength();
+            if (frameLength < 0 || frameLength > maxFrameBytes) {
+                CommandHandler.Response error = BinaryProtocol.reply(BinaryProtocol.STATUS_BAD_REQUEST,
+                        header.getRequestId(), "Frame too large.", true);
+                dispatch(null, () -> error);
+                return;
+            }
+
+            if (nameBytes.length < header.getNameLength()) {
+                nameBytes = new byte[header.getNameLength()];
+            }
+            reader.readFully(nameBytes, 0, header.getNameLength());
+            String name = new String(nameBytes, 0, header.getNameLength(), StandardCharsets.UTF_8);
+
+            byte[] payload = new byte[header.getPayloadLength()];
+            reader.readFully(payload);
+
+            byte opcode = header.getOpcode();
+            int requestId = header.getRequestId();
+            if (dispatch(BinaryProtocol.orderingKey(opcode, name), () -> binary.handle(opcode, requestId, name, payload))) {
+                return;
+            }
+        }
+    }
+
+    // Copies an UPLOAD body from the socket to the file system one chunk at a time, so the
+    // connection never holds more than a chunk of it. Once pipelined, it first waits for the earlier
+    // requests the upload must follow, with the client's data left in the socket meanwhile. Returns
+    // false if the connection should close.
+    private boolean receiveUpload(InputStream in, CommandHandler.Upload upload, String key)
+            throws IOException, InterruptedException {
+        if (uploadChunk == null) {
+            uploadChunk = new byte[streamChunkBytes];
+        }
+        if (pipeline != null && !pipeline.awaitTurn(key)) {
+            return false;
+        }
+
+        long remaining = upload.getLength();
+        try {
+            while (remaining > 0) {
+                int wanted = (int) Math.min(uploadChunk.length, remaining);
+                int n = in.readNBytes(uploadChunk, 0, wanted);
+                if (n > 0) {
+                    upload.write(ByteBuffer.wrap(uploadChunk, 0, n));
+                    remaining -= n;
+                }
+                if (n < wanted) {
+                    upload.abort();
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+
+        return !dispatch(key, upload::finish);
+    }
+
+    // Runs the request inline, or queues it once pipelining is on. Returns true when the connection should close.
+    private boolean dispatch(String key, Supplier<CommandHandler.Response> request) throws IOException, InterruptedException {
+        if (pipeline != null) {
+            pipeline.awaitCapacity(pipelineWindow * 4);
+            pipeline.submit(key, request);
+            return false;
+        }
+
+        CommandHandler.Response response = request.get();
+        send(response);
+        if (response.getPipelineWindow() > 0) {
+            pipeline = new RequestPipeline(executor, this::sendPipelined, pipelineWindow);
+            pipeline.enablePipelining(response.getPipelineWindow());
+        }
+        return response.shouldClose();
+    }
+
+    // Pipelined replies are written by the workers that produced them, one whole reply at a time
+    private void sendPipelined(CommandHandler.Response response) {
+        try {
+            send(response);
+            if (response.shouldClose()) {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+
+    private void send(CommandHandler.Response response) throws IOException {
+        CommandHandler.Body body = response.getBody();
+        try {
+            synchronized (writer) {
+                stalledSince = System.currentTimeMillis();
+                writer.print(response.getText());
+                writer.flush();
+
+                // Straight to the channel, not through CountingOutput, so transferTo stays zero-copy. The
+                // channel blocks, so every call sends something.
+                while (body != null && !body.isFinished()) {
+                    metrics.addBytesOut(body.writeTo(clientSocket.getChannel()));
+                    stalledSince = System.currentTimeMillis();
+                }
+                stalledSince = 0;
+            }
+        } finally {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+
+    // Called by the engine's watchdog. Hanging up wakes the thread blocked sending, which then closes
+    // the reply's body.
+    void closeIfStalled(long now, long timeoutMillis) {
+        long since = stalledSince;
+        if (since != 0 && now - since > timeoutMillis) {
+            Log.debug(() -> "Closing stalled client: " + clientSocket);
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // Socket streams that count the bytes passing through them. BufferedInputStream and PrintWriter
+    // only ever use the array methods.
+    private class CountingInput extends FilterInputStream {
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                metrics.addBytesIn(n);
+            }
+            return n;
+        }
+    }
+
+    private class CountingOutput extends FilterOutputStream {
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.addBytesOut(len);
+        }
+    }
+
+    private static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Reads one '\n' terminated line as UTF-8 without buffering past it, so binary frames can follow.
+    // A line of maxLineBytes or more is refused like the nio engine does, before it can fill the heap.
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= maxLineBytes) {
+                throw new LineTooLongException();
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1032 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+// Parses one line of the text protocol and runs it against the file system.
+// Shared by every connection engine so they all speak exactly the same protocol.
+public class CommandHandler {
+
+    // Commands counted by name in the metrics, anything else is counted as UNKNOWN
+    private static final Set<String> COMMANDS = Set.of("CREATE", "WRITE", "WRITE-AT", "APPEND", "UPLOAD", "READ",
+            "READB", "READ-RANGE", "DELETE", "MREAD", "MWRITE", "MDELETE", "MKDIR", "COMPRESS", "LIST", "STATS", "PIPELINE",
+            "BINARY", "QUIT");
+
+    private static final int LIST_PAGE_SIZE = 1024; // entries LIST fetches and sends at a time
+
+    private final ShardedFileSystem fsManager;
+    private final int maxPipelineWindow;
+    private final Metrics metrics;
+
+    public CommandHandler(ShardedFileSystem fsManager, int maxPipelineWindow, Metrics metrics) {
+        this.fsManager = fsManager;
+        this.maxPipelineWindow = maxPipelineWindow;
+        this.metrics = metrics;
+    }
+
+    // Raw bytes sent after the text of a response, written straight to the connection's channel.
+    // Engines call writeTo until the body is finished, the nio engine each time the socket is
+    // writable, so a slow client doesn't hold a thread. Each call sends the next piece and returns
+    // how many bytes the channel took, zero only when a non-blocking channel is full or the body is
+    // finished. close is called once, whether or not everything was sent.
+    public interface Body extends AutoCloseable {
+        long writeTo(WritableByteChannel out) throws IOException;
+
+        boolean isFinished();
+
+        @Override
+        default void close() {
+        }
+    }
+
+    // A body already in memory
+    public static class BufferBody implements Body {
+        private final ByteBuffer buffer;
+
+        public BufferBody(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel out) throws IOException {
+            return out.write(buffer);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return !buffer.hasRemaining();
+        }
+    }
+
+    // A reply header followed by part of a file, read from the disk image as the client takes it.
+    // onClose gets whether the reply failed, i.e. didn't all go out.
+    static class TransferBody implements Body {
+        private final ByteBuffer header;
+        private final FileSystemManager.Transfer transfer;
+        private final Consumer<Boolean> onClose;
+        private boolean closed;
+
+        TransferBody(ByteBuffer header, FileSystemManager.Transfer transfer, Consumer<Boolean> onClose) {
+            this.header = header;
+            this.transfer = transfer;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel out) throws IOException {
+            long sent = out.write(header);
+            if (header.hasRemaining()) {
+                return sent;
+            }
+            return sent + transfer.transferTo(out);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return !header.hasRemaining() && transfer.isFinished();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean failed = !isFinished();
+            transfer.close();
+            onClose.accept(failed);
+        }
+    }
+
+    // Result of a single command: the text to send back (newline terminated), an optional
+    // binary body to stream after it, and whether to hang up afterwards
+    public static class Response {
+        private final String text;
+        private final boolean close;
+        private final Body body;
+        private boolean binarySwitch;
+        private int pipelineWindow;
+
+        Response(String text, boolean close) {
+            this(text, close, null);
+        }
+
+        Response(String text, boolean close, Body body) {
+            this.text = text;
+            this.close = close;
+            this.body = body;
+        }
+
+        public String getText() { return text; }
+        public boolean shouldClose() { return close; }
+        public Body getBody() { return body; }
+        public boolean switchesToBinary() { return binarySwitch; }
+        public int getPipelineWindow() { return pipelineWindow; }
+
+        Response withPipelineWindow(int window) {
+            this.pipelineWindow = window;
+            return this;
+        }
+
+        Response withBinarySwitch() {
+            this.binarySwitch = true;
+            return this;
+        }
+
+        // Same response with every text line prefixed, used to tag pipelined replies
+        Response withPrefix(String prefix) {
+            StringBuilder prefixed = new StringBuilder();
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start) + 1;
+                prefixed.append(prefix).append(text, start, end);
+                start = end;
+            }
+            Response response = new Response(prefixed.toString(), close, body);
+            response.binarySwitch = binarySwitch;
+            response.pipelineWindow = pipelineWindow;
+            return response;
+        }
+    }
+
+    public Response handle(String line) {
+        Log.debug(() -> "Received from client: " + line);
+
+        // "#<tag> <command>": every line of the reply starts with "#<tag> " so pipelined replies can be matched up
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            String prefix = (space == -1 ? line : line.substring(0, space)) + " ";
+            String command = space == -1 ? "" : line.substring(space + 1);
+            if (isBinarySwitch(command)) {
+                return new Response(prefix + "ERROR: BINARY cannot be tagged.\n", false);
+            }
+            return handleCommand(command, prefix).withPrefix(prefix);
+        }
+        return handleCommand(line, "");
+    }
+
+    // Same as handle, except that CREATE, MKDIR, WRITE, WRITE-AT, APPEND, READ, DELETE and the batch
+    // commands go through the file system's asynchronous API, so the calling thread is free as soon as
+    // they are submitted. Anything else runs inline and returns a completed future.
+    public CompletableFuture<Response> handleAsync(String line) {
+        String prefix = "";
+        String command = line;
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            prefix = (space == -1 ? line : line.substring(0, space)) + " ";
+            command = space == -1 ? "" : line.substring(space + 1);
+        }
+
+        CompletableFuture<Response> async = isBinarySwitch(command) ? null : startAsync(command);
+        if (async == null) {
+            return CompletableFuture.completedFuture(handle(line));
+        }
+        Log.debug(() -> "Received from client: " + line);
+        String tag = prefix;
+        return tag.isEmpty() ? async : async.thenApply(response -> response.withPrefix(tag));
+    }
+
+    // The exception an asynchronous operation failed with
+    static Throwable cause(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    // The path a command works on, as the file system stores it, or null for commands that must not
+    // overlap with any other
+    public static String orderingKey(String line) {
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            line = space == -1 ? "" : line.substring(space + 1);
+        }
+        String[] parts = line.split(" ", 3);
+        switch (parts[0].toUpperCase()) {
+            case "CREATE":
+            case "MKDIR":
+            case "WRITE":
+            case "READ":
+            case "READB":
+            case "READ-RANGE":
+            case "WRITE-AT":
+            case "APPEND":
+            case "UPLOAD":
+            case "DELETE":
+            case "COMPRESS":
+                String path = parts.length < 2 ? "" : FileSystemManager.canonical(parts[1]);
+                return path.isEmpty() ? null : path;
+            default:
+                return null;
+        }
+    }
+
+    // Runs the command and records its latency. Replies with a body are recorded once the body is
+    // closed.
+    private Response handleCommand(String line, String tagPrefix) {
+        long start = System.nanoTime();
+        String name = isBinarySwitch(line) ? "BINARY" : line.split(" ", 2)[0].toUpperCase();
+        if (!COMMANDS.contains(name)) {
+            name = "UNKNOWN";
+        }
+
+        Response response = runCommand(line, tagPrefix, name, start);
+        if (response.getBody() == null) {
+            metrics.recordCommand(name, System.nanoTime() - start, response.getText().startsWith("ERROR"));
+        }
+        return response;
+    }
+
+    private Response runCommand(String line, String tagPrefix, String name, long start) {
+        String[] parts = line.split(" ", 3); // Max 3 parts for WRITE command
+        String command = isBinarySwitch(line) ? "BINARY" : parts[0].toUpperCase();
+        StringBuilder out = new StringBuilder();
+
+        switch (command) {
+            case "CREATE":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                try {
+                    fsManager.createFile(parts[1]);
+                    println(out, "SUCCESS: File '" + parts[1] + "' created.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "WRITE":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                try {
+                    // Parse the full command line for content
+                    String[] fullParts = line.split(" ");
+                    if (fullParts.length < 3) {
+                        println(out, "ERROR: No content provided.");
+                        break;
+                    }
+                    fsManager.writeFile(fullParts[1], fullParts);
+                    println(out, "SUCCESS: File '" + fullParts[1] + "' written.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "READ":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                try {
+                    println(out, readReply(parts[1], fsManager.readFile(parts[1])));
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "READB":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                return transferFile(parts[1], 0, Long.MAX_VALUE, name, start);
+
+            case "READ-RANGE":
+                // READ-RANGE <file> <offset> <length>, replied to like READB
+                String[] range = line.split(" ");
+                if (range.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                if (range.length < 4) {
+                    println(out, "ERROR: Missing offset or length.");
+                    break;
+                }
+                try {
+                    long offset = Long.parseLong(range[2]);
+                    long length = Long.parseLong(range[3]);
+                    return transferFile(range[1], offset, length, name, start);
+                } catch (NumberFormatException e) {
+                    println(out, "ERROR: Invalid offset or length.");
+                }
+                break;
+
+            case "WRITE-AT":
+                // WRITE-AT <file> <offset> <content>
+                String[] at = line.split(" ", 4);
+                if (at.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                if (at.length < 3) {
+                    println(out, "ERROR: Missing offset.");
+                    break;
+                }
+                if (at.length < 4) {
+                    println(out, "ERROR: No content provided.");
+                    break;
+                }
+                try {
+                    fsManager.writeFile(at[1], Long.parseLong(at[2]), at[3].getBytes(StandardCharsets.UTF_8));
+                    println(out, "SUCCESS: File '" + at[1] + "' written.");
+                } catch (NumberFormatException e) {
+                    println(out, "ERROR: Invalid offset.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "APPEND":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                if (parts.length < 3) {
+                    println(out, "ERROR: No content provided.");
+                    break;
+                }
+                try {
+                    fsManager.appendFile(parts[1], parts[2].getBytes(StandardCharsets.UTF_8));
+                    println(out, "SUCCESS: File '" + parts[1] + "' appended.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "COMPRESS":
+                // COMPRESS <file> [on|off]
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                Boolean compress = compressionMode(parts);
+                if (compress == null) {
+                    println(out, "ERROR: Expected on or off.");
+                    break;
+                }
+                try {
+                    fsManager.setCompressed(parts[1], compress);
+                    println(out, compressReply(parts[1], compress));
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "UPLOAD":
+                // Only malformed uploads get here, well formed ones go through beginUpload
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                } else {
+                    println(out, "ERROR: Missing or invalid length.");
+                }
+                break;
+
+            case "DELETE":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                try {
+                    fsManager.deleteFile(parts[1]);
+                    println(out, "SUCCESS: File '" + parts[1] + "' deleted.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "MREAD": {
+                // MREAD <file> <file> ...: a READ reply line per file, in order, then END OF MREAD
+                String[] names = batchNames(line);
+                if (names.length == 0) {
+                    println(out, "ERROR: Missing filename.");
+                } else {
+                    try {
+                        println(out, readsReply(names, fsManager.readFiles(names)));
+                    } catch (Exception e) {
+                        println(out, "ERROR: " + e.getMessage());
+                    }
+                }
+                println(out, "END OF MREAD");
+                break;
+            }
+
+            case "MWRITE": {
+                // MWRITE <file> <content> | <file> <content> ...: every file is written, or none is
+                if (batchNames(line).length == 0) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                String[][] writes;
+                try {
+                    writes = batchWrites(line);
+                } catch (IllegalArgumentException e) {
+                    println(out, "ERROR: " + e.getMessage());
+                    break;
+                }
+                if (writes == null) {
+                    println(out, "ERROR: No content provided.");
+                    break;
+                }
+                try {
+                    fsManager.writeFiles(writes[0], utf8(writes[1]));
+                    println(out, "SUCCESS: " + writes[0].length + " files written.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+            }
+
+            case "MDELETE": {
+                // MDELETE <file> <file> ...: every file is deleted, or none is
+                String[] names = batchNames(line);
+                if (names.length == 0) {
+                    println(out, "ERROR: Missing filename.");
+                    break;
+                }
+                try {
+                    fsManager.deleteFiles(names);
+                    println(out, "SUCCESS: " + names.length + " files deleted.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+            }
+
+            case "MKDIR":
+                if (parts.length < 2) {
+                    println(out, "ERROR: Missing directory name.");
+                    break;
+                }
+                try {
+                    fsManager.makeDirectory(parts[1]);
+                    println(out, "SUCCESS: Directory '" + parts[1] + "' created.");
+                } catch (Exception e) {
+                    println(out, "ERROR: " + e.getMessage());
+                }
+                break;
+
+            case "LIST": {
+                // LIST [directory [prefix=<p>] [after=<name>] [limit=<n>] [long]]: the root when no directory
+                // is given, subdirectories end with '/'. Streamed a page at a time, see ListBody.
+                ListOptions options = ListOptions.parse(line);
+                if (options == null) {
+                    println(out, "ERROR: Usage: LIST [directory [prefix=<p>] [after=<name>] [limit=<n>] [long]]");
+                    println(out, "END OF LIST");
+                    break;
+                }
+                return new Response("", false, new ListBody(options, tagPrefix, name, start));
+            }
+
+            case "STATS":
+                // Same text as the HTTP endpoint, one metric per line
+                for (String stat : metrics.render().split("\n")) {
+                    println(out, stat);
+                }
+                println(out, "END OF STATS");
+                break;
+
+            case "BINARY":
+                // Everything the client sends after this line is BinaryProtocol frames
+                println(out, "SUCCESS: Switching to binary protocol.");
+                return new Response(out.toString(), false).withBinarySwitch();
+
+            case "PIPELINE":
+                // Later requests may overlap and complete out of order, so they should be tagged
+                int window = maxPipelineWindow;
+                if (parts.length >= 2) {
+                    try {
+                        window = Math.min(Integer.parseInt(parts[1].trim()), maxPipelineWindow);
+                    } catch (NumberFormatException e) {
+                        window = 0;
+                    }
+                }
+                if (window < 1) {
+                    println(out, "ERROR: Invalid pipeline window.");
+                    break;
+                }
+                println(out, "SUCCESS: Pipelining enabled with window " + window + ".");
+                return new Response(out.toString(), false).withPipelineWindow(window);
+
+            case "QUIT":
+                println(out, "SUCCESS: Disconnecting.");
+                return new Response(out.toString(), true);
+
+            default:
+                println(out, "ERROR: Unknown command. Available commands: CREATE, WRITE, WRITE-AT, APPEND, UPLOAD, READ, READB, READ-RANGE, DELETE, MREAD, MWRITE, MDELETE, MKDIR, COMPRESS, LIST, STATS, PIPELINE, BINARY, QUIT");
+                break;
+        }
+
+        return new Response(out.toString(), false);
+    }
+
+    // Starts a file system command on the asynchronous API. Returns null for every other command and
+    // for malformed ones, which runCommand answers inline with its usual errors.
+    private CompletableFuture<Response> startAsync(String line) {
+        long start = System.nanoTime();
+        String[] parts = line.split(" ", 3);
+        String name = parts[0].toUpperCase();
+        CompletableFuture<String> reply;
+
+        switch (name) {
+            case "CREATE":
+                if (parts.length < 2) {
+                    return null;
+                }
+                reply = fsManager.createFileAsync(parts[1]).thenApply(done -> "SUCCESS: File '" + parts[1] + "' created.");
+                break;
+
+            case "MKDIR":
+                if (parts.length < 2) {
+                    return null;
+                }
+                reply = fsManager.makeDirectoryAsync(parts[1])
+                        .thenApply(done -> "SUCCESS: Directory '" + parts[1] + "' created.");
+                break;
+
+            case "WRITE": {
+                String[] fullParts = line.split(" ");
+                if (fullParts.length < 3) {
+                    return null;
+                }
+                reply = fsManager.writeFileAsync(fullParts[1], fullParts)
+                        .thenApply(done -> "SUCCESS: File '" + fullParts[1] + "' written.");
+                break;
+            }
+
+            case "WRITE-AT": {
+                String[] at = line.split(" ", 4);
+                long offset;
+                try {
+                    offset = at.length < 4 ? -1 : Long.parseLong(at[2]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (at.length < 4) {
+                    return null;
+                }
+                reply = fsManager.writeFileAsync(at[1], offset, at[3].getBytes(StandardCharsets.UTF_8))
+                        .thenApply(done -> "SUCCESS: File '" + at[1] + "' written.");
+                break;
+            }
+
+            case "APPEND":
+                if (parts.length < 3) {
+                    return null;
+                }
+                reply = fsManager.appendFileAsync(parts[1], parts[2].getBytes(StandardCharsets.UTF_8))
+                        .thenApply(done -> "SUCCESS: File '" + parts[1] + "' appended.");
+                break;
+
+            case "COMPRESS": {
+                Boolean compress = parts.length < 2 ? null : compressionMode(parts);
+                if (compress == null) {
+                    return null;
+                }
+                reply = fsManager.setCompressedAsync(parts[1], compress).thenApply(done -> compressReply(parts[1], compress));
+                break;
+            }
+
+            case "READ":
+                if (parts.length < 2) {
+                    return null;
+                }
+                reply = fsManager.readFileAsync(parts[1]).thenApply(content -> readReply(parts[1], content));
+                break;
+
+            case "MREAD": {
+                String[] names = batchNames(line);
+                if (names.length == 0) {
+                    return null;
+                }
+                reply = fsManager.readFilesAsync(names).thenApply(data -> readsReply(names, data));
+                break;
+            }
+
+            case "MWRITE": {
+                String[][] writes;
+                try {
+                    writes = batchWrites(line);
+                } catch (IllegalArgumentException e) {
+                    return null; // handle() replies with the error
+                }
+                if (writes == null) {
+                    return null;
+                }
+                reply = fsManager.writeFilesAsync(writes[0], utf8(writes[1]))
+                        .thenApply(done -> "SUCCESS: " + writes[0].length + " files written.");
+                break;
+            }
+
+            case "MDELETE": {
+                String[] names = batchNames(line);
+                if (names.length == 0) {
+                    return null;
+                }
+                reply = fsManager.deleteFilesAsync(names).thenApply(done -> "SUCCESS: " + names.length + " files deleted.");
+                break;
+            }
+
+            case "DELETE":
+                if (parts.length < 2) {
+                    return null;
+                }
+                reply = fsManager.deleteFileAsync(parts[1]).thenApply(done -> "SUCCESS: File '" + parts[1] + "' deleted.");
+                break;
+
+            default:
+                return null;
+        }
+
+        String end = name.equals("MREAD") ? "END OF MREAD" : null;
+        return reply.handle((text, failure) -> {
+            StringBuilder out = new StringBuilder();
+            println(out, failure == null ? text : "ERROR: " + cause(failure).getMessage());
+            if (end != null) {
+                println(out, end);
+            }
+            metrics.recordCommand(name, System.nanoTime() - start, failure != null);
+            return new Response(out.toString(), false);
+        });
+    }
+
+    // "UPLOAD <name> <length>" is followed by exactly <length> raw bytes, which the engine reads off the
+    // connection and feeds to the returned Upload a chunk at a time, see Upload for when. Returns null
+    // for any other line, including malformed uploads, which handle() rejects like any other bad command.
+    public Upload beginUpload(String line) {
+        String prefix = "";
+        String command = line;
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            prefix = (space == -1 ? line : line.substring(0, space)) + " ";
+            command = space == -1 ? "" : line.substring(space + 1);
+        }
+
+        String[] parts = command.trim().split(" ");
+        if (parts.length != 3 || !parts[0].equalsIgnoreCase("UPLOAD")) {
+            return null;
+        }
+        long length;
+        try {
+            length = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (length < 0) {
+            return null;
+        }
+
+        Log.debug(() -> "Received from client: " + line);
+        return new Upload(prefix, parts[1], length);
+    }
+
+    // Receives the body of one UPLOAD. No data is written before the earlier requests on the file have
+    // run (a CREATE in the same packet, a DELETE still running): the nio engine submits start() to the
+    // connection's pipeline under the file's ordering key and holds the body until it runs, the blocking
+    // engine waits for its turn in the pipeline. Space is only allocated when the first data arrives,
+    // so the engine's reading thread never waits on the file system. If the file system refuses the
+    // upload the rest of the body is still consumed (and dropped), keeping the connection in sync.
+    public class Upload {
+        private final String prefix;
+        private final String filename;
+        private final long length;
+        private final long start = System.nanoTime(); // the upload is timed from its command line to finish()
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+        private final CompletableFuture<Response> reply = new CompletableFuture<>();
+        private FileSystemManager.Upload target;
+        private String error;
+
+        private Upload(String prefix, String filename, long length) {
+            this.prefix = prefix;
+            this.filename = filename;
+            this.length = length;
+        }
+
+        public String getFilename() { return filename; }
+        public long getLength() { return length; }
+
+        // The upload's pipeline request: lets the body through, and completes with the reply once
+        // finish() (or abort()) has run
+        public CompletableFuture<Response> start() {
+            started.complete(null);
+            return reply;
+        }
+
+        // Completes once start() has run
+        public CompletableFuture<Void> whenStarted() {
+            return started;
+        }
+
+        // Takes everything from data's position to its limit
+        public void write(ByteBuffer data) {
+            try {
+                if (target == null && error == null) {
+                    target = fsManager.beginUpload(filename, length);
+                }
+                if (target != null) {
+                    target.write(data);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+            data.position(data.limit());
+        }
+
+        // The connection went away before the whole body arrived
+        public void abort() {
+            discard();
+            reply.complete(new Response("", true));
+        }
+
+        // Called once the whole body has been written
+        public Response finish() {
+            StringBuilder out = new StringBuilder();
+            try {
+                if (target == null && error == null) {
+                    target = fsManager.beginUpload(filename, length); // empty body
+                }
+                if (target != null) {
+                    target.commit();
+                    println(out, prefix + "SUCCESS: File '" + filename + "' written.");
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+            if (error != null) {
+                println(out, prefix + "ERROR: " + error);
+            }
+            metrics.recordCommand("UPLOAD", System.nanoTime() - start, error != null);
+            Response response = new Response(out.toString(), false);
+            reply.complete(response);
+            return response;
+        }
+
+        private void fail(Exception e) {
+            discard();
+            error = e.getMessage();
+        }
+
+        private void discard() {
+            if (target != null) {
+                target.abort();
+                target = null;
+            }
+        }
+    }
+
+    // Engines that read ahead must know where the text protocol ends without running the command
+    public static boolean isBinarySwitch(String line) {
+        return line.trim().equalsIgnoreCase("BINARY");
+    }
+
+    // READB reply: "SUCCESS: <n> bytes" then exactly n raw bytes, copied disk-to-socket by the kernel
+    private Response transferFile(String filename, long offset, long length, String command, long start) {
+        FileSystemManager.Transfer transfer;
+        try {
+            transfer = fsManager.openTransfer(filename, offset, length);
+        } catch (Exception e) {
+            return new Response("ERROR: " + e.getMessage() + "\n", false);
+        }
+        return new Response("SUCCESS: " + transfer.getSize() + " bytes\n", false,
+                new TransferBody(ByteBuffer.allocate(0), transfer,
+                        failed -> metrics.recordCommand(command, System.nanoTime() - start, failed)));
+    }
+
+    // What a LIST line asks for
+    private static class ListOptions {
+        private String directory = "";
+        private String prefix = "";
+        private String after;
+        private int limit = Integer.MAX_VALUE;
+        private boolean sizes;
+
+        // Null if the line is malformed
+        static ListOptions parse(String line) {
+            String[] words = line.trim().split(" +");
+            ListOptions options = new ListOptions();
+            if (words.length > 1) {
+                options.directory = words[1];
+            }
+            for (int i = 2; i < words.length; i++) {
+                String word = words[i];
+                if (word.equalsIgnoreCase("long")) {
+                    options.sizes = true;
+                } else if (word.startsWith("prefix=")) {
+                    options.prefix = word.substring(7);
+                } else if (word.startsWith("after=")) {
+                    options.after = word.substring(6);
+                } else if (word.startsWith("limit=")) {
+                    try {
+                        options.limit = Integer.parseInt(word.substring(6));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    if (options.limit < 1) {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+            }
+            return options;
+        }
+    }
+
+    // Sends the listing LIST_PAGE_SIZE entries at a time, each page fetched from the directory index
+    // once the one before it has gone out, so neither the whole directory nor the table lock is held
+    // while the client reads. One line per entry, "<name> <size> <blocks>" with `long`. If the limit
+    // cuts the listing short, "NEXT <name>" gives the after= value that continues it. Always ends with
+    // END OF LIST.
+    private class ListBody implements Body {
+        private final ListOptions options;
+        private final String tagPrefix;
+        private final String command;
+        private final long start;
+        private String cursor;
+        private int remaining;
+        private boolean empty = true;
+        private ByteBuffer page = ByteBuffer.allocate(0); // not sent yet
+        private boolean last; // page ends the listing
+        private boolean failed;
+        private boolean closed;
+
+        ListBody(ListOptions options, String tagPrefix, String command, long start) {
+            this.options = options;
+            this.tagPrefix = tagPrefix;
+            this.command = command;
+            this.start = start;
+            this.cursor = options.after;
+            this.remaining = options.limit;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel out) throws IOException {
+            if (!page.hasRemaining() && !last) {
+                page = StandardCharsets.UTF_8.encode(nextPage());
+            }
+            return out.write(page);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return last && !page.hasRemaining();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                metrics.recordCommand(command, System.nanoTime() - start, failed || !isFinished());
+            }
+        }
+
+        private String nextPage() {
+            int pageSize = Math.min(remaining, LIST_PAGE_SIZE);
+            List<FileSystemManager.ListEntry> entries;
+            try {
+                // One extra entry tells whether anything follows the page
+                entries = fsManager.listFiles(options.directory, options.prefix, cursor, pageSize + 1);
+            } catch (UnsupportedOperationException e) {
+                failed = true;
+                last = true;
+                return tagPrefix + "ERROR: " + e.getMessage() + "\n" + tagPrefix + "END OF LIST\n";
+            }
+
+            StringBuilder lines = new StringBuilder();
+            int count = Math.min(entries.size(), pageSize);
+            for (int i = 0; i < count; i++) {
+                FileSystemManager.ListEntry entry = entries.get(i);
+                lines.append(tagPrefix).append(entry.getName()).append(entry.isDirectory() ? "/" : "");
+                if (options.sizes) {
+                    lines.append(' ').append(entry.getSize()).append(' ').append(entry.getBlocks());
+                }
+                lines.append('\n');
+            }
+            if (count > 0) {
+                cursor = entries.get(count - 1).getName();
+                empty = false;
+            }
+            remaining -= count;
+
+            boolean more = entries.size() > pageSize;
+            if (!more && empty && options.after == null) {
+                lines.append(tagPrefix).append("No files exist.\n");
+            } else if (more && remaining == 0) {
+                lines.append(tagPrefix).append("NEXT ").append(cursor).append('\n');
+            }
+            if (!more || remaining == 0) {
+                lines.append(tagPrefix).append("END OF LIST\n");
+                last = true;
+            }
+            return lines.toString();
+        }
+    }
+
+    // The mode of "COMPRESS <file> [on|off]", on when left out; null when it is neither
+    private static Boolean compressionMode(String[] parts) {
+        if (parts.length < 3 || parts[2].trim().equalsIgnoreCase("on")) {
+            return true;
+        }
+        return parts[2].trim().equalsIgnoreCase("off") ? false : null;
+    }
+
+    private static String compressReply(String filename, boolean compress) {
+        return "SUCCESS: File '" + filename + "' is stored " + (compress ? "compressed." : "uncompressed.");
+    }
+
+    // Reply line of a successful READ
+    private static String readReply(String filename, String content) {
+        return content.isEmpty() ? "SUCCESS: File '" + filename + "' is empty." : "SUCCESS: " + content;
+    }
+
+    // MREAD reply lines, without the END OF MREAD
+    private static String readsReply(String[] filenames, byte[][] data) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < filenames.length; i++) {
+            if (i > 0) {
+                out.append('\n');
+            }
+            out.append(data[i] == null
+                    ? "ERROR: File '" + filenames[i] + "' does not exist."
+                    : readReply(filenames[i], new String(data[i], StandardCharsets.UTF_8)));
+        }
+        return out.toString();
+    }
+
+    // The file names after MREAD or MDELETE
+    private static String[] batchNames(String line) {
+        String[] words = line.trim().split(" +");
+        return Arrays.copyOfRange(words, 1, words.length);
+    }
+
+    // {names, contents} of an MWRITE line, or null if some file has no content. Files are separated by
+    // " | " and everything else is kept as sent, trailing spaces included; "\|" and "\\" stand for a
+    // literal '|' and '\', so content can hold the separator. Any other '|' or backslash is refused
+    // rather than guessed at.
+    private static String[][] batchWrites(String line) {
+        String rest = line.stripLeading();
+        int space = rest.indexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        rest = rest.substring(space + 1);
+
+        List<String> entries = new ArrayList<>();
+        StringBuilder entry = new StringBuilder();
+        for (int i = 0; i < rest.length(); i++) {
+            char c = rest.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == rest.length() || (rest.charAt(i + 1) != '|' && rest.charAt(i + 1) != '\\')) {
+                    throw new IllegalArgumentException("Invalid escape in MWRITE, use \\| for '|' and \\\\ for '\\'.");
+                }
+                entry.append(rest.charAt(++i));
+            } else if (rest.startsWith(" | ", i)) {
+                entries.add(entry.toString());
+                entry.setLength(0);
+                i += 2;
+            } else if (c == '|') {
+                throw new IllegalArgumentException("Unescaped '|' in MWRITE, separate files with \" | \" and write '|' as \\|.");
+            } else {
+                entry.append(c);
+            }
+        }
+        entries.add(entry.toString());
+
+        String[][] writes = new String[2][entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            String file = entries.get(i);
+            int separator = file.indexOf(' ');
+            if (separator <= 0 || separator == file.length() - 1) {
+                return null;
+            }
+            writes[0][i] = file.substring(0, separator);
+            writes[1][i] = file.substring(separator + 1);
+        }
+        return writes;
+    }
+
+    private static byte[][] utf8(String[] contents) {
+        byte[][] bytes = new byte[contents.length][];
+        for (int i = 0; i < contents.length; i++) {
+            bytes[i] = contents[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static void println(StringBuilder out, String line) {
+        out.append(line).append('\n');
+    }
+}
@@ -0,0 +1,15 @@
+package ca.concordia.server;
+
+import java.io.IOException;
+
+// Accepts client connections and drives the protocol for them.
+// Implementations differ only in how they map connections onto threads.
+public interface ConnectionEngine {
+
+    // Binds the listening socket and serves clients until the engine is stopped
+    void start() throws IOException;
+
+    void stop();
+
+    int getActiveConnections();
+}
@@ -1,170 +1,115 @@
 package ca.concordia.server;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+import ca.concordia.metrics.StatsHttpServer;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileServer {
 
-    private static FileSystemManager fsManager;
+    private final ShardedFileSystem fsManager;
     private int port;
-    
+    private final ServerConfig config;
+    private final Metrics metrics;
+    private ConnectionEngine engine;
+    private StatsHttpServer statsServer;
+
     public FileServer(int port, String fileSystemName, int totalSize) throws IOException{
-        FileSystemManager fsManager = new FileSystemManager(fileSystemName, totalSize);
-        FileServer.fsManager = fsManager;
-        this.port = port;
+        this(port, fileSystemName, totalSize, ServerConfig.fromSystemProperties());
     }
 
-    public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port + "...");
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Handling client: " + clientSocket);
+    public FileServer(int port, String fileSystemName, long totalSize, ServerConfig config) throws IOException{
+        this.fsManager = mount(config.getVolumeImages(fileSystemName), totalSize, config);
+        this.port = port;
+        this.config = config;
+        this.metrics = new Metrics(fsManager);
+    }
 
-                ClientThread clientSock = new ClientThread(clientSocket);
-                new Thread(clientSock).start();
+    // One file system per image, each of totalSize bytes, sharing the cache and I/O threads between them
+    private static ShardedFileSystem mount(List<String> images, long totalSize, ServerConfig config)
+            throws IOException {
+        long cacheBytes = config.getCacheBytes() / images.size();
+        int ioThreads = Math.max(1, config.getIoThreads() / images.size());
+        List<FileSystemManager> volumes = new ArrayList<>();
+        try {
+            for (String image : images) {
+                volumes.add(new FileSystemManager(image, totalSize, config.getBlockSize(), config.getMaxFiles(),
+                        FileSystemManager.Durability.valueOf(config.getDurability().toUpperCase()),
+                        cacheBytes, ioThreads, config.isDedup()));
             }
+            if (volumes.size() > 1) {
+                Log.info("Sharding files over " + volumes.size() + " volumes");
+            }
+            return new ShardedFileSystem(volumes);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+            for (FileSystemManager volume : volumes) {
+                try {
+                    volume.close();
+                } catch (IOException closeFailure) {
+                    // Already failing
+                }
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new IOException("Could not rebalance the volumes: " + e.getMessage(), e);
         }
     }
 
-    // ClientThread class
-    private static class ClientThread implements Runnable {
-        private final Socket clientSocket;
-
-        public ClientThread(Socket socket) {
-            this.clientSocket = socket;
-        }
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-        public void run() {
-            try (
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)) {
-                    
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        System.out.println("Received from client: " + line);
-                        String[] parts = line.split(" ", 3); // Max 3 parts for WRITE command
-                        String command = parts[0].toUpperCase();
+    public void start() {
+        CommandHandler handler = new CommandHandler(fsManager, config.getPipelineWindow(), metrics);
+        BinaryProtocol binary = new BinaryProtocol(fsManager, config.getPipelineWindow(), metrics);
 
-                        switch (command) {
-                            case "CREATE":
-                                if (parts.length < 2) {
-                                    writer.println("ERROR: Missing filename.");
-                                    writer.flush();
-                                    break;
-                                }
-                                try {
-                                    fsManager.createFile(parts[1]);
-                                    writer.println("SUCCESS: File '" + parts[1] + "' created.");
-                                    writer.flush();
-                                } catch (Exception e) {
-                                    writer.println("ERROR: " + e.getMessage());
-                                    writer.flush();
-                                }
-                                break;
-                            
-                            case "WRITE":
-                                if (parts.length < 2) {
-                                    writer.println("ERROR: Missing filename.");
-                                    writer.flush();
-                                    break;
-                                }
-                                try {
-                                    // Parse the full command line for content
-                                    String[] fullParts = line.split(" ");
-                                    if (fullParts.length < 3) {
-                                        writer.println("ERROR: No content provided.");
-                                        writer.flush();
-                                        break;
-                                    }
-                                    fsManager.writeFile(fullParts[1], fullParts);
-                                    writer.println("SUCCESS: File '" + fullParts[1] + "' written.");
-                                    writer.flush();
-                                } catch (Exception e) {
-                                    writer.println("ERROR: " + e.getMessage());
-                                    writer.flush();
-                                }
-                                break;
-                            
-                            case "READ":
-                                if (parts.length < 2) {
-                                    writer.println("ERROR: Missing filename.");
-                                    writer.flush();
-                                    break;
-                                }
-                                try {
-                                    String content = fsManager.readFile(parts[1]);
-                                    if (content.isEmpty()) {
-                                        writer.println("SUCCESS: File '" + parts[1] + "' is empty.");
-                                    } else {
-                                        writer.println("SUCCESS: " + content);
-                                    }
-                                    writer.flush();
-                                } catch (Exception e) {
-                                    writer.println("ERROR: " + e.getMessage());
-                                    writer.flush();
-                                }
-                                break;
-                            
-                            case "DELETE":
-                                if (parts.length < 2) {
-                                    writer.println("ERROR: Missing filename.");
-                                    writer.flush();
-                                    break;
-                                }
-                                try {
-                                    fsManager.deleteFile(parts[1]);
-                                    writer.println("SUCCESS: File '" + parts[1] + "' deleted.");
-                                    writer.flush();
-                                } catch (Exception e) {
-                                    writer.println("ERROR: " + e.getMessage());
-                                    writer.flush();
-                                }
-                                break;
+        switch (config.getEngine()) {
+            case ServerConfig.ENGINE_NIO:
+                engine = new NioConnectionEngine(port, config, handler, binary, metrics);
+                break;
+            case ServerConfig.ENGINE_PLATFORM:
+                engine = new ThreadPerConnectionEngine(port, config, handler, binary, metrics, false);
+                break;
+            default:
+                engine = new ThreadPerConnectionEngine(port, config, handler, binary, metrics, true);
+                break;
+        }
+        metrics.setConnectionCount(engine::getActiveConnections);
+        metrics.registerMBean();
 
-                            case "LIST":
-                                String[] list = fsManager.listFiles();
-                                if (list.length == 0) {
-                                    writer.println("No files exist.");
-                                } else {
-                                    for (int i = 0; i < list.length; i++) {
-                                        writer.println(list[i]);
-                                    }
-                                }
-                                writer.println("END OF LIST");
-                                writer.flush();
-                                break;
+        try {
+            if (config.getStatsPort() > 0) {
+                statsServer = new StatsHttpServer(config.getStatsPort(), metrics);
+                statsServer.start();
+                Log.info("Metrics available at http://127.0.0.1:" + statsServer.getPort() + "/metrics");
+            }
+            engine.start();
+        } catch (Exception e) {
+            Log.error("Could not start server on port " + port, e);
+        }
+    }
 
-                            case "QUIT":
-                                writer.println("SUCCESS: Disconnecting.");
-                                writer.flush();
-                                return;
-                                
-                            default:
-                                writer.println("ERROR: Unknown command. Available commands: CREATE, WRITE, READ, DELETE, LIST, QUIT");
-                                writer.flush();
-                                break;
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        clientSocket.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
-                }
+    public void stop() {
+        if (engine != null) {
+            engine.stop();
+        }
+        if (statsServer != null) {
+            statsServer.stop();
+        }
+        metrics.unregisterMBean();
+        try {
+            fsManager.close();
+        } catch (IOException e) {
+            Log.error("Could not close the file system cleanly: " + e.getMessage());
         }
+        Log.flush(1000);
     }
-}
\ No newline at end of file
+}
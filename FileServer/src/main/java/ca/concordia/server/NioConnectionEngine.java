@@ -0,0 +1,489 @@
+package ca.concordia.server;
+
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single selector thread doing all socket I/O, with commands executed on a fixed worker pool.
+// Idle connections cost a buffer and a selection key instead of a whole thread.
+public class NioConnectionEngine implements ConnectionEngine {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_QUEUED_REQUESTS = 256;
+    private static final long SWEEP_MILLIS = 1000; // how often stalled connections are looked for
+
+    private final int port;
+    private final ServerConfig config;
+    private final CommandHandler handler;
+    private final BinaryProtocol binary;
+    private final Metrics metrics;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingUploads = new ConcurrentLinkedQueue<>(); // upload chunk written, resume reading
+
+    private volatile Selector selector;
+    private ExecutorService workers;
+    private long lastSweep;
+
+    public NioConnectionEngine(int port, ServerConfig config, CommandHandler handler, BinaryProtocol binary,
+                               Metrics metrics) {
+        this.port = port;
+        this.config = config;
+        this.handler = handler;
+        this.binary = binary;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.workers = Executors.newFixedThreadPool(config.getWorkerThreads());
+        this.selector = Selector.open();
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Server started (NIO). Listening on port " + port + "...");
+
+            while (selector.isOpen()) {
+                if (config.getWriteTimeoutMillis() > 0) {
+                    selector.select(SWEEP_MILLIS);
+                    closeStalled();
+                } else {
+                    selector.select();
+                }
+
+                Connection ready;
+                while ((ready = pendingFlushes.poll()) != null) {
+                    flush(ready);
+                }
+                while ((ready = pendingUploads.poll()) != null) {
+                    resumeUpload(ready);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        flush(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // stop() closed the selector
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    // --- Selector thread --- //
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (activeConnections.incrementAndGet() > config.getMaxConnections()) {
+                activeConnections.decrementAndGet();
+                channel.write(StandardCharsets.UTF_8.encode("ERROR: Server is at its connection limit, try again later.\n"));
+                channel.close();
+                continue;
+            }
+
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            Socket socket = channel.socket();
+            Log.debug(() -> "Handling client: " + socket);
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            int n;
+            if (connection.upload != null && !connection.uploadWriting && connection.in.position() == 0) {
+                // Nothing else is buffered, so upload data can go straight into the chunk
+                ByteBuffer chunk = connection.uploadChunk;
+                chunk.limit((int) Math.min(chunk.capacity(), chunk.position() + connection.uploadRemaining));
+                n = connection.channel.read(chunk);
+                chunk.limit(chunk.capacity());
+                if (n > 0) {
+                    connection.uploadRemaining -= n;
+                }
+            } else {
+                n = connection.channel.read(connection.in);
+            }
+            if (n == -1) {
+                close(connection);
+                return;
+            }
+            metrics.addBytesIn(n);
+            process(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    // Hands every complete request to the workers, keeps the partial tail for the next read
+    private void process(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        int needed;
+        if (connection.upload != null) {
+            needed = parseUpload(connection, in);
+        } else {
+            needed = connection.binary ? parseFrames(connection, in) : parseLines(connection, in);
+        }
+        if (needed < 0) {
+            return;
+        }
+        in.compact();
+
+        if (needed > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, Math.min(in.capacity() * 2, config.getMaxFrameBytes())));
+            in.flip();
+            bigger.put(in);
+            connection.in = bigger;
+        }
+
+        updateInterest(connection);
+    }
+
+    // Consumes complete lines. Returns the buffer size needed to make progress, or -1 if the connection was dropped.
+    private int parseLines(Connection connection, ByteBuffer in) {
+        int lineStart = in.position();
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = (i > lineStart && in.get(i - 1) == '\r') ? i - 1 : i;
+                byte[] lineBytes = new byte[end - lineStart];
+                in.get(lineStart, lineBytes);
+                String line = new String(lineBytes, StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                in.position(lineStart);
+
+                CommandHandler.Upload upload = handler.beginUpload(line);
+                if (upload != null) {
+                    if (connection.uploadChunk == null) {
+                        connection.uploadChunk = ByteBuffer.allocateDirect(config.getStreamChunkBytes());
+                    }
+                    connection.upload = upload;
+                    connection.uploadRemaining = upload.getLength();
+                    connection.pipeline.submitAsync(CommandHandler.orderingKey(line), upload::start);
+                    return parseUpload(connection, in);
+                }
+                connection.pipeline.submitAsync(CommandHandler.orderingKey(line), () -> handler.handleAsync(line));
+
+                if (CommandHandler.isBinarySwitch(line)) {
+                    connection.binary = true;
+                    return parseFrames(connection, in);
+                }
+            }
+        }
+
+        if (in.remaining() >= config.getMaxLineBytes()) {
+            reject(connection, StandardCharsets.UTF_8.encode("ERROR: Line too long.\n"));
+            return -1;
+        }
+        return in.remaining() + 1;
+    }
+
+    // Consumes complete binary frames, same contract as parseLines
+    private int parseFrames(Connection connection, ByteBuffer in) {
+        while (in.remaining() >= BinaryProtocol.REQUEST_HEADER_SIZE) {
+            BinaryProtocol.Header header = new BinaryProtocol.Header().parse(in.duplicate());
+            long frameLength = header.frameLength();
+            if (frameLength < 0 || frameLength > config.getMaxFrameBytes()) {
+                CommandHandler.Response error = BinaryProtocol.reply(BinaryProtocol.STATUS_BAD_REQUEST,
+                        header.getRequestId(), "Frame too large.", true);
+                connection.pipeline.submit(null, () -> error);
+                connection.inputClosed = true;
+                in.position(in.limit());
+                return 0;
+            }
+            if (in.remaining() < frameLength) {
+                return (int) frameLength;
+            }
+
+            in.position(in.position() + BinaryProtocol.REQUEST_HEADER_SIZE);
+            byte[] nameBytes = new byte[header.getNameLength()];
+            in.get(nameBytes);
+            byte[] payload = new byte[header.getPayloadLength()];
+            in.get(payload);
+
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            connection.pipeline.submitAsync(BinaryProtocol.orderingKey(header.getOpcode(), name),
+                    () -> binary.handleAsync(header.getOpcode(), header.getRequestId(), name, payload));
+        }
+        return BinaryProtocol.REQUEST_HEADER_SIZE;
+    }
+
+    // Moves buffered UPLOAD data into the connection's chunk. A full chunk (or the last one) is written
+    // by a worker while reading pauses, so a connection holds at most one chunk of the body however
+    // large it is. Until the pipeline starts the upload that chunk waits, and so does the client. Same
+    // contract as parseLines, which takes over again once the body is written.
+    private int parseUpload(Connection connection, ByteBuffer in) {
+        if (connection.uploadWriting) {
+            return 0;
+        }
+        ByteBuffer chunk = connection.uploadChunk;
+        int n = (int) Math.min(Math.min(in.remaining(), chunk.remaining()), connection.uploadRemaining);
+        ByteBuffer slice = in.slice();
+        slice.limit(n);
+        chunk.put(slice);
+        in.position(in.position() + n);
+        connection.uploadRemaining -= n;
+
+        if (!chunk.hasRemaining() || (connection.uploadRemaining == 0 && chunk.position() > 0)) {
+            writeChunk(connection);
+            return 0;
+        }
+        if (connection.uploadRemaining > 0) {
+            return 0;
+        }
+
+        CommandHandler.Upload upload = connection.upload;
+        connection.upload = null;
+        upload.whenStarted().thenRunAsync(upload::finish, workers);
+        return parseLines(connection, in);
+    }
+
+    private void writeChunk(Connection connection) {
+        CommandHandler.Upload upload = connection.upload;
+        ByteBuffer chunk = connection.uploadChunk;
+        chunk.flip();
+        connection.uploadWriting = true;
+        upload.whenStarted().thenRunAsync(() -> {
+            upload.write(chunk);
+            pendingUploads.add(connection);
+            selector.wakeup();
+        }, workers);
+    }
+
+    // A worker finished writing the connection's chunk
+    private void resumeUpload(Connection connection) {
+        connection.uploadWriting = false;
+        connection.uploadChunk.clear();
+        if (connection.closed) {
+            abortUpload(connection);
+            return;
+        }
+        process(connection);
+    }
+
+    private void abortUpload(Connection connection) {
+        CommandHandler.Upload upload = connection.upload;
+        connection.upload = null;
+        workers.execute(upload::abort);
+    }
+
+    private void reject(Connection connection, ByteBuffer message) {
+        connection.queue(new CommandHandler.BufferBody(message));
+        connection.closeAfterFlush = true;
+        flush(connection);
+    }
+
+    // Sends queued replies until the socket is full. A file body is read from the disk image as the
+    // socket takes it, so however slow the client, its replies hold no thread, only their place in
+    // the queue.
+    private void flush(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            CommandHandler.Body next;
+            boolean progress = false;
+            while ((next = connection.outbound.peek()) != null) {
+                long sent = next.writeTo(connection.channel);
+                metrics.addBytesOut(sent);
+                progress |= sent > 0;
+                if (next.isFinished()) {
+                    connection.outbound.poll();
+                    connection.outboundCount.decrementAndGet();
+                    next.close();
+                } else if (sent == 0) {
+                    break; // the socket is full
+                }
+            }
+            if (connection.outbound.isEmpty()) {
+                connection.stalledSince = 0;
+            } else if (progress || connection.stalledSince == 0) {
+                connection.stalledSince = System.currentTimeMillis();
+            }
+
+            if (connection.outbound.isEmpty() && connection.closeAfterFlush) {
+                close(connection);
+                return;
+            }
+            updateInterest(connection);
+        } catch (IOException | RuntimeException e) {
+            // Part of the reply may be missing, the stream can't be resynchronized
+            close(connection);
+        }
+    }
+
+    // Hangs up on clients that have taken none of their pending replies for the write timeout. A reply
+    // may be sending a file, whose blocks can't be reused until it is closed.
+    private void closeStalled() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.stalledSince != 0 && now - connection.stalledSince > config.getWriteTimeoutMillis()) {
+                    Log.debug(() -> "Closing stalled client: " + connection.channel.socket());
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    // Stop reading while a client has too many requests or replies queued, resume once workers or the
+    // client catch up
+    private void updateInterest(Connection connection) {
+        int ops = 0;
+        if (!connection.closeAfterFlush && !connection.inputClosed && !connection.uploadWriting
+                && connection.pipeline.outstanding() < MAX_QUEUED_REQUESTS
+                && connection.outboundCount.get() < MAX_QUEUED_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!connection.outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (connection.key.isValid()) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        // Under the lock, so no reply can be queued after the others are dropped
+        synchronized (connection.outbound) {
+            connection.closed = true;
+            CommandHandler.Body body;
+            while ((body = connection.outbound.poll()) != null) {
+                body.close();
+            }
+        }
+        connection.key.cancel();
+        if (connection.upload != null && !connection.uploadWriting) {
+            abortUpload(connection);
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        activeConnections.decrementAndGet();
+    }
+
+    // --- Per-connection state --- //
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final Queue<CommandHandler.Body> outbound = new ConcurrentLinkedQueue<>(); // sent by the selector
+        private final AtomicInteger outboundCount = new AtomicInteger(); // outbound.size() is a full scan
+        private final RequestPipeline pipeline;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private boolean binary;
+        private boolean inputClosed;
+        private boolean closed; // set under the outbound lock
+        private volatile boolean closeAfterFlush;
+        private long stalledSince; // when the client last took reply bytes or replies started waiting, 0 if none wait
+
+        // UPLOAD in progress, selector thread only
+        private CommandHandler.Upload upload;
+        private long uploadRemaining; // body bytes not read yet
+        private ByteBuffer uploadChunk; // allocated on the first UPLOAD, then reused
+        private boolean uploadWriting; // a worker owns uploadChunk
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.pipeline = new RequestPipeline(workers, this::send, config.getPipelineWindow());
+        }
+
+        // Called by workers as requests complete. A reply's text and body are queued together under
+        // the outbound lock so replies finishing at the same time on different workers never
+        // interleave. Nothing is sent here: the selector sends the body as the client reads it.
+        private void send(CommandHandler.Response response) {
+            CommandHandler.Body body = response.getBody();
+            synchronized (outbound) {
+                if (closed) {
+                    if (body != null) {
+                        body.close();
+                    }
+                    return;
+                }
+                if (!response.getText().isEmpty()) {
+                    queue(new CommandHandler.BufferBody(StandardCharsets.UTF_8.encode(response.getText())));
+                }
+                if (body != null) {
+                    queue(body);
+                }
+            }
+            if (response.shouldClose()) {
+                closeAfterFlush = true;
+            }
+            pendingFlushes.add(this);
+            selector.wakeup();
+        }
+
+        private void queue(CommandHandler.Body body) {
+            synchronized (outbound) {
+                outbound.add(body);
+                outboundCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ca.concordia.server;
+
+import ca.concordia.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Schedules the requests of one connection. Until the client sends PIPELINE every request is a
+// barrier, so they run one at a time in arrival order. Once pipelined, up to `window` requests run
+// at once and reply as they finish. Requests on the same path keep their order, as do requests on a
+// directory and on the paths under it, so a MKDIR or a directory DELETE can't trade places with the
+// requests inside it. Requests without a file (LIST, QUIT, mode switches) stay barriers, waiting for
+// everything before them and blocking everything after them. A request may also complete later
+// through a future, in which case it holds its place in the window, but not a worker thread, until
+// the future completes.
+class RequestPipeline {
+
+    // Receives each response on the thread that produced or completed it; must be thread-safe
+    interface Sink {
+        void send(CommandHandler.Response response);
+    }
+
+    private static class Entry {
+        private final String key;
+        private final Supplier<CompletableFuture<CommandHandler.Response>> request;
+        private boolean barrier;
+
+        Entry(String key, Supplier<CompletableFuture<CommandHandler.Response>> request) {
+            this.key = key;
+            this.request = request;
+        }
+    }
+
+    private final Executor executor;
+    private final Sink sink;
+    private final int maxWindow;
+
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private final Set<String> runningKeys = new HashSet<>();
+    private int running;
+    private boolean barrierRunning;
+    private boolean pipelined;
+    private int window = 1;
+    private boolean closed;
+
+    RequestPipeline(Executor executor, Sink sink, int maxWindow) {
+        this.executor = executor;
+        this.sink = sink;
+        this.maxWindow = maxWindow;
+    }
+
+    // key is the file the request touches, or null for a barrier
+    synchronized void submit(String key, Supplier<CommandHandler.Response> request) {
+        submitAsync(key, () -> CompletableFuture.completedFuture(request.get()));
+    }
+
+    // Same, for a request that completes asynchronously; request is called on a worker
+    synchronized void submitAsync(String key, Supplier<CompletableFuture<CommandHandler.Response>> request) {
+        if (closed) {
+            return;
+        }
+        pending.add(new Entry(key, request));
+        schedule();
+    }
+
+    // Requests accepted but not answered yet
+    synchronized int outstanding() {
+        return pending.size() + running;
+    }
+
+    synchronized void enablePipelining(int window) {
+        this.pipelined = true;
+        this.window = Math.min(window, maxWindow);
+    }
+
+    // Blocks the calling reader while the client has too many requests outstanding
+    synchronized void awaitCapacity(int maxOutstanding) throws InterruptedException {
+        while (!closed && outstanding() >= maxOutstanding) {
+            wait();
+        }
+    }
+
+    // Blocks the calling reader until no earlier request that one on key must follow is pending or
+    // running, so the reader can start work on key itself. Returns false if the pipeline closed meanwhile.
+    synchronized boolean awaitTurn(String key) throws InterruptedException {
+        while (!closed && mustWait(key)) {
+            wait();
+        }
+        return !closed;
+    }
+
+    private boolean mustWait(String key) {
+        if (key == null) {
+            return running > 0 || !pending.isEmpty();
+        }
+        if (barrierRunning || overlaps(runningKeys, key)) {
+            return true;
+        }
+        for (Entry entry : pending) {
+            if (entry.key == null || !pipelined || overlaps(entry.key, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        Set<String> blockedKeys = null;
+        Iterator<Entry> it = pending.iterator();
+
+        while (it.hasNext() && running < window && !barrierRunning) {
+            Entry entry = it.next();
+            boolean barrier = !pipelined || entry.key == null;
+
+            if (barrier) {
+                // Only when it is first in line and nothing else is running
+                if (running == 0 && blockedKeys == null) {
+                    it.remove();
+                    entry.barrier = true;
+                    barrierRunning = true;
+                    start(entry);
+                }
+                return;
+            }
+
+            if (overlaps(runningKeys, entry.key) || (blockedKeys != null && overlaps(blockedKeys, entry.key))) {
+                if (blockedKeys == null) {
+                    blockedKeys = new HashSet<>();
+                }
+                blockedKeys.add(entry.key);
+                continue;
+            }
+
+            it.remove();
+            runningKeys.add(entry.key);
+            start(entry);
+        }
+    }
+
+    // Whether key is one of keys, or a directory holding one of them, or inside one of them. Paths are
+    // canonical and the window is small, so a scan is enough.
+    private static boolean overlaps(Set<String> keys, String key) {
+        for (String other : keys) {
+            if (overlaps(other, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlaps(String a, String b) {
+        return a.equals(b) || isInside(a, b) || isInside(b, a);
+    }
+
+    private static boolean isInside(String path, String directory) {
+        return path.length() > directory.length() && path.charAt(directory.length()) == '/' && path.startsWith(directory);
+    }
+
+    private void start(Entry entry) {
+        running++;
+        executor.execute(() -> run(entry));
+    }
+
+    private void run(Entry entry) {
+        CompletableFuture<CommandHandler.Response> future;
+        try {
+            future = entry.request.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (future.isDone()) {
+            future.whenComplete((response, failure) -> finish(entry, response, failure));
+        } else {
+            // Back on a worker: the reply may block on the connection, and the future may be completed
+            // by a thread that must not wait, such as the journal's flusher
+            future.whenCompleteAsync((response, failure) -> finish(entry, response, failure), executor);
+        }
+    }
+
+    private void finish(Entry entry, CommandHandler.Response result, Throwable failure) {
+        CommandHandler.Response response = result;
+        if (failure != null) {
+            // The reply stream can't be trusted any more, drop the connection
+            Log.error("Request failed, closing the connection", CommandHandler.cause(failure));
+            response = new CommandHandler.Response("", true);
+        }
+        sink.send(response);
+
+        synchronized (this) {
+            running--;
+            if (entry.barrier) {
+                barrierRunning = false;
+            } else {
+                runningKeys.remove(entry.key);
+            }
+
+            if (response.getPipelineWindow() > 0) {
+                enablePipelining(response.getPipelineWindow());
+            }
+            if (response.shouldClose()) {
+                closed = true;
+                pending.clear();
+            } else {
+                schedule();
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package ca.concordia.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Server tuning knobs. Every value can be overridden with a -Dfileserver.<name>=<value> system property.
+public class ServerConfig {
+
+    public static final String ENGINE_VIRTUAL = "virtual";
+    public static final String ENGINE_PLATFORM = "platform";
+    public static final String ENGINE_NIO = "nio";
+
+    private String engine = ENGINE_VIRTUAL;
+    private int acceptBacklog = 1024;
+    private int maxConnections = 10000;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int ioThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int maxLineBytes = 1024 * 1024;
+    private int maxFrameBytes = 16 * 1024 * 1024;
+    private int pipelineWindow = 64;
+    private int streamChunkBytes = 64 * 1024;
+    private int writeTimeoutMillis = 60 * 1000; // 0 waits on a client that stops reading forever
+    private int statsPort = 0; // 0 leaves the HTTP metrics endpoint off
+
+    // Geometry used when a new filesystem image is formatted; existing images keep their own
+    private long imageSize = 64L * 1024 * 1024;
+    private int blockSize = 4096;
+    private int maxFiles = 4096;
+    private String durability = "batched";
+    private long cacheBytes = 64L * 1024 * 1024;
+    private boolean dedup = false;
+    private String volumes = "1"; // a count, or the comma-separated image paths
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(System.getProperty("fileserver.engine", config.engine));
+        config.setAcceptBacklog(Integer.getInteger("fileserver.backlog", config.acceptBacklog));
+        config.setMaxConnections(Integer.getInteger("fileserver.maxConnections", config.maxConnections));
+        config.setWorkerThreads(Integer.getInteger("fileserver.workers", config.workerThreads));
+        config.setIoThreads(Integer.getInteger("fileserver.ioThreads", config.ioThreads));
+        config.setMaxLineBytes(Integer.getInteger("fileserver.maxLineBytes", config.maxLineBytes));
+        config.setMaxFrameBytes(Integer.getInteger("fileserver.maxFrameBytes", config.maxFrameBytes));
+        config.setPipelineWindow(Integer.getInteger("fileserver.pipelineWindow", config.pipelineWindow));
+        config.setStreamChunkBytes(Integer.getInteger("fileserver.streamChunkBytes", config.streamChunkBytes));
+        config.setWriteTimeoutMillis(Integer.getInteger("fileserver.writeTimeoutMillis", config.writeTimeoutMillis));
+        config.setStatsPort(Integer.getInteger("fileserver.statsPort", config.statsPort));
+        config.setImageSize(Long.getLong("fileserver.imageSize", config.imageSize));
+        config.setBlockSize(Integer.getInteger("fileserver.blockSize", config.blockSize));
+        config.setMaxFiles(Integer.getInteger("fileserver.maxFiles", config.maxFiles));
+        config.setDurability(System.getProperty("fileserver.durability", config.durability));
+        config.setCacheBytes(Long.getLong("fileserver.cacheBytes", config.cacheBytes));
+        config.setDedup(Boolean.parseBoolean(System.getProperty("fileserver.dedup", String.valueOf(config.dedup))));
+        config.setVolumes(System.getProperty("fileserver.volumes", config.volumes));
+        return config;
+    }
+
+    // Getters and Setters
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String engine) {
+        String value = engine.trim().toLowerCase();
+        if (!value.equals(ENGINE_VIRTUAL) && !value.equals(ENGINE_PLATFORM) && !value.equals(ENGINE_NIO)) {
+            throw new IllegalArgumentException("Unknown connection engine: " + engine);
+        }
+        this.engine = value;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        if (acceptBacklog < 1) {
+            throw new IllegalArgumentException("Accept backlog must be positive.");
+        }
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be positive.");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Worker thread count must be positive.");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    // Threads running the file system's asynchronous operations, see FileSystemManager
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("I/O thread count must be positive.");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    public void setMaxLineBytes(int maxLineBytes) {
+        if (maxLineBytes < 64) {
+            throw new IllegalArgumentException("Max line length must be at least 64 bytes.");
+        }
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        if (maxFrameBytes < BinaryProtocol.REQUEST_HEADER_SIZE) {
+            throw new IllegalArgumentException("Max frame size is smaller than a frame header.");
+        }
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    public void setPipelineWindow(int pipelineWindow) {
+        if (pipelineWindow < 1) {
+            throw new IllegalArgumentException("Pipeline window must be positive.");
+        }
+        this.pipelineWindow = pipelineWindow;
+    }
+
+    // Size of the buffers UPLOAD and READB data is moved through, see NioConnectionEngine
+    public int getStreamChunkBytes() {
+        return streamChunkBytes;
+    }
+
+    public void setStreamChunkBytes(int streamChunkBytes) {
+        if (streamChunkBytes < 1024) {
+            throw new IllegalArgumentException("Stream chunk size must be at least 1024 bytes.");
+        }
+        this.streamChunkBytes = streamChunkBytes;
+    }
+
+    public int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public void setWriteTimeoutMillis(int writeTimeoutMillis) {
+        if (writeTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Write timeout cannot be negative.");
+        }
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    // Loopback port serving /metrics, see StatsHttpServer
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    public void setStatsPort(int statsPort) {
+        if (statsPort < 0 || statsPort > 65535) {
+            throw new IllegalArgumentException("Stats port must be between 0 and 65535.");
+        }
+        this.statsPort = statsPort;
+    }
+
+    public long getImageSize() {
+        return imageSize;
+    }
+
+    public void setImageSize(long imageSize) {
+        if (imageSize < 1) {
+            throw new IllegalArgumentException("Image size must be positive.");
+        }
+        this.imageSize = imageSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 64 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two of at least 64 bytes.");
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public void setMaxFiles(int maxFiles) {
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("Max files must be positive.");
+        }
+        this.maxFiles = maxFiles;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String durability) {
+        String value = durability.trim().toLowerCase();
+        if (!value.equals("sync") && !value.equals("batched") && !value.equals("async")) {
+            throw new IllegalArgumentException("Unknown durability mode: " + durability);
+        }
+        this.durability = value;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public void setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+        }
+        this.cacheBytes = cacheBytes;
+    }
+
+    // Whole-file writes share blocks whose contents are already stored, see FileSystemManager
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    // Images the files are sharded over, see ShardedFileSystem: either how many, named after the
+    // server's image ("filesystem.dat", "filesystem-1.dat", ...), or a list of paths, e.g. one per disk.
+    // Volumes may be appended later, never removed.
+    public String getVolumes() {
+        return volumes;
+    }
+
+    public void setVolumes(String volumes) {
+        String value = volumes.trim();
+        if (value.matches("\\d+")) {
+            if (Integer.parseInt(value) < 1) {
+                throw new IllegalArgumentException("Volume count must be positive.");
+            }
+        } else {
+            for (String path : value.split(",", -1)) {
+                if (path.isBlank()) {
+                    throw new IllegalArgumentException("Volume list has an empty path: " + volumes);
+                }
+            }
+        }
+        this.volumes = value;
+    }
+
+    // The image of each volume, in volume order
+    public List<String> getVolumeImages(String fileSystemName) {
+        List<String> images = new ArrayList<>();
+        if (volumes.matches("\\d+")) {
+            int dot = fileSystemName.lastIndexOf('.');
+            String base = dot > 0 ? fileSystemName.substring(0, dot) : fileSystemName;
+            String extension = dot > 0 ? fileSystemName.substring(dot) : "";
+            images.add(fileSystemName);
+            for (int i = 1; i < Integer.parseInt(volumes); i++) {
+                images.add(base + "-" + i + extension);
+            }
+        } else {
+            for (String path : volumes.split(",")) {
+                images.add(path.trim());
+            }
+        }
+        return images;
+    }
+}
@@ -0,0 +1,143 @@
+package ca.concordia.server;
+
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One blocking ClientThread per connection, run on virtual threads when the JVM provides them
+public class ThreadPerConnectionEngine implements ConnectionEngine {
+
+    private static final long SWEEP_MILLIS = 1000; // how often stalled clients are looked for
+
+    private final int port;
+    private final ServerConfig config;
+    private final CommandHandler handler;
+    private final BinaryProtocol binary;
+    private final Metrics metrics;
+    private final boolean virtualThreads;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final Set<ClientThread> clients = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+
+    public ThreadPerConnectionEngine(int port, ServerConfig config, CommandHandler handler, BinaryProtocol binary,
+                                     Metrics metrics, boolean virtualThreads) {
+        this.port = port;
+        this.config = config;
+        this.handler = handler;
+        this.binary = binary;
+        this.metrics = metrics;
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.executor = virtualThreads ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+        Log.info("Server started. Listening on port " + port + "...");
+        if (config.getWriteTimeoutMillis() > 0) {
+            Thread watchdog = new Thread(this::closeStalled, "stalled-client-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Socket clientSocket = channel.socket();
+
+                if (activeConnections.incrementAndGet() > config.getMaxConnections()) {
+                    activeConnections.decrementAndGet();
+                    reject(clientSocket);
+                    continue;
+                }
+
+                Log.debug(() -> "Handling client: " + clientSocket);
+                ClientThread client = new ClientThread(clientSocket, handler, binary, metrics, executor, config,
+                        activeConnections::decrementAndGet);
+                clients.add(client);
+                executor.execute(() -> {
+                    try {
+                        client.run();
+                    } finally {
+                        clients.remove(client);
+                    }
+                });
+            }
+        } catch (ClosedChannelException e) {
+            // stop() closed the listening socket
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    // Hangs up on clients that have taken none of a reply for the write timeout, see ClientThread.send
+    private void closeStalled() {
+        while (serverChannel.isOpen()) {
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (ClientThread client : clients) {
+                client.closeIfStalled(now, config.getWriteTimeoutMillis());
+            }
+        }
+    }
+
+    private static void reject(Socket clientSocket) {
+        try (PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            writer.println("ERROR: Server is at its connection limit, try again later.");
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // Virtual threads are a preview API on JDK 19 and final from 21, so look them up reflectively
+    // and fall back to platform threads when they are unavailable.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("Virtual threads unavailable, using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSystemTests {
+
+    private static final long IMAGE_SIZE = 1024 * 1024;
+    private static final int BLOCK_SIZE = 128;
+
+    @TempDir
+    Path dir;
+
+    private final List<FileSystemManager> mounted = new ArrayList<>();
+
+    @AfterEach
+    void closeAll() throws IOException {
+        for (FileSystemManager fs : mounted) {
+            fs.close();
+        }
+    }
+
+    private FileSystemManager mount(String image, boolean deduplicate) throws IOException {
+        FileSystemManager fs = new FileSystemManager(dir.resolve(image).toString(), IMAGE_SIZE, BLOCK_SIZE, 64,
+                FileSystemManager.Durability.SYNC, 0, 2, deduplicate);
+        mounted.add(fs);
+        return fs;
+    }
+
+    private FileSystemManager remount(FileSystemManager fs, String image, boolean deduplicate) throws IOException {
+        mounted.remove(fs);
+        fs.close();
+        return mount(image, deduplicate);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // --- Basic operations --- //
+
+    @Test
+    void testCreateFile() throws Exception {
+        FileSystemManager fs = mount("fs.dat", false);
+        fs.createFile("a.txt");
+
+        assertEquals(List.of("a.txt"), Arrays.asList(fs.listFiles()));
+        assertEquals("", fs.readFile("a.txt"));
+        assertThrows(UnsupportedOperationException.class, () -> fs.createFile("a.txt"));
+    }
+
+    @Test
+    void testWriteAndReadFile() throws Exception {
+        FileSystemManager fs = mount("fs.dat", false);
+        fs.createFile("a.txt");
+        fs.writeFile("a.txt", "hello world".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("hello world", fs.readFile("a.txt"));
+        assertThrows(UnsupportedOperationException.class, () -> fs.readFile("missing.txt"));
+    }
+
+    @Test
+    void testWriteAndReadLongFile() throws Exception {
+        FileSystemManager fs = mount("fs.dat", false);
+        byte[] data = randomBytes(200 * 1024, 1);
+        fs.createFile("long.bin");
+        fs.writeFile("long.bin", data);
+        assertArrayEquals(data, fs.readFileBytes("long.bin"));
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 5000), fs.readFileBytes("long.bin", 1000, 4000));
+
+        fs = remount(fs, "fs.dat", false);
+        assertArrayEquals(data, fs.readFileBytes("long.bin"));
+    }
+
+    @Test
+    void testTooLongFilename() throws Exception {
+        FileSystemManager fs = mount("fs.dat", false);
+        String longest = "n".repeat(64);
+        fs.createFile(longest);
+
+        assertThrows(IllegalArgumentException.class, () -> fs.createFile(longest + "n"));
+        assertEquals(List.of(longest), Arrays.asList(fs.listFiles()));
+    }
+
+    @Test
+    void testDeleteFile() throws Exception {
+        FileSystemManager fs = mount("fs.dat", false);
+        long free = fs.getFreeBlockCount();
+        fs.createFile("a.txt");
+        fs.writeFile("a.txt", randomBytes(10 * BLOCK_SIZE, 2));
+        fs.deleteFile("a.txt");
+
+        assertEquals(0, fs.listFiles().length);
+        assertThrows(UnsupportedOperationException.class, () -> fs.readFile("a.txt"));
+        assertThrows(UnsupportedOperationException.class, () -> fs.deleteFile("a.txt"));
+
+        // Frees are only handed back once no reader can see them, a remount has none
+        FileSystemManager again = remount(fs, "fs.dat", false);
+        assertEquals(free, again.getFreeBlockCount());
+    }
+
+    // --- Migration --- //
+
+    @Test
+    void testMigratesTrackedLegacyImage() throws Exception {
+        Path image = dir.resolve("legacy.dat");
+        Files.copy(Paths.get("filesystem.dat"), image);
+        assertEquals(1280, Files.size(image));
+
+        FileSystemManager fs = mount("legacy.dat", false);
+        assertEquals(0, fs.getFileCount());
+        assertEquals(IMAGE_SIZE, Files.size(image));
+        fs.createFile("a.txt");
+        fs.writeFile("a.txt", "after migration".getBytes(StandardCharsets.UTF_8));
+
+        // Mounted again it is a current image, not migrated a second time
+        fs = remount(fs, "legacy.dat", false);
+        assertEquals("after migration", fs.readFile("a.txt"));
+    }
+
+    @Test
+    void testMigratesLegacyFiles() throws Exception {
+        // 5 entries of name[11], size i16, first block i16, then 10 next pointers i32, 128-byte blocks
+        ByteBuffer legacy = ByteBuffer.allocate(1280);
+        byte[] first = randomBytes(200, 3); // blocks 2 then 5
+        byte[] second = "short".getBytes(StandardCharsets.UTF_8); // block 7
+        putLegacyEntry(legacy, 0, "first.bin", first.length, 2);
+        putLegacyEntry(legacy, 1, "second.txt", second.length, 7);
+        for (int block = 0; block < 10; block++) {
+            legacy.putInt(75 + block * 4, -1);
+        }
+        legacy.putInt(75 + 2 * 4, 5);
+        legacy.put(2 * 128, first, 0, 128);
+        legacy.put(5 * 128, first, 128, first.length - 128);
+        legacy.put(7 * 128, second);
+        Files.write(dir.resolve("legacy.dat"), legacy.array());
+
+        FileSystemManager fs = mount("legacy.dat", false);
+        assertEquals(2, fs.getFileCount());
+        assertArrayEquals(first, fs.readFileBytes("first.bin"));
+        assertArrayEquals(second, fs.readFileBytes("second.txt"));
+    }
+
+    private static void putLegacyEntry(ByteBuffer legacy, int index, String name, int size, int firstBlock) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        legacy.put(index * 15, bytes);
+        legacy.putShort(index * 15 + 11, (short) size);
+        legacy.putShort(index * 15 + 13, (short) firstBlock);
+    }
+
+    // --- Deduplication --- //
+
+    @Test
+    void testDedupRefcountsOnRewriteAndDelete() throws Exception {
+        FileSystemManager fs = mount("dedup.dat", true);
+        long free = fs.getFreeBlockCount();
+        byte[] shared = randomBytes(8 * BLOCK_SIZE, 4);
+        fs.createFile("a.bin");
+        fs.createFile("b.bin");
+        fs.writeFile("a.bin", shared);
+        fs.writeFile("b.bin", shared);
+
+        assertEquals(8, fs.getSharedBlockCount());
+        assertEquals(free - 8, fs.getFreeBlockCount());
+
+        // Rewriting one copy drops its references, the other keeps the blocks
+        byte[] other = randomBytes(8 * BLOCK_SIZE, 5);
+        fs.writeFile("a.bin", other);
+        assertEquals(0, fs.getSharedBlockCount());
+        assertArrayEquals(shared, fs.readFileBytes("b.bin"));
+        assertArrayEquals(other, fs.readFileBytes("a.bin"));
+
+        fs = remount(fs, "dedup.dat", true);
+        assertEquals(free - 16, fs.getFreeBlockCount());
+        assertArrayEquals(shared, fs.readFileBytes("b.bin"));
+
+        // Sharing again, then deleting both copies, frees every block exactly once
+        fs.writeFile("a.bin", shared);
+        assertEquals(8, fs.getSharedBlockCount());
+        fs.deleteFile("b.bin");
+        assertEquals(0, fs.getSharedBlockCount());
+        assertArrayEquals(shared, fs.readFileBytes("a.bin"));
+        fs.deleteFile("a.bin");
+
+        fs = remount(fs, "dedup.dat", true);
+        assertEquals(free, fs.getFreeBlockCount());
+        assertFalse(fs.exists("a.bin"));
+        assertTrue(fs.isDeduplicating());
+    }
+}
@@ -0,0 +1,125 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JournalTests {
+
+    private static final int MAGIC = 0x4A524E4C;
+    private static final int REVOKE = -1;
+
+    @TempDir
+    Path dir;
+
+    // A transaction as Journal writes it, offsets paired with their bytes (null for a revoke)
+    private static byte[] transaction(long lsn, Object... records) {
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        out.putInt(MAGIC);
+        out.putLong(lsn);
+        out.putInt(records.length / 2);
+        for (int i = 0; i < records.length; i += 2) {
+            out.putLong((Long) records[i]);
+            String data = (String) records[i + 1];
+            if (data == null) {
+                out.putInt(REVOKE);
+            } else {
+                out.putInt(data.length());
+                out.put(data.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 4, out.position() - 4);
+        out.putInt((int) crc.getValue());
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer out = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+        return out.array();
+    }
+
+    // Replays wal over a zeroed 1 KiB image, then checks the next transaction continues the LSNs
+    private byte[] replay(byte[] wal, long nextLsn) throws IOException {
+        File image = dir.resolve("fs.dat").toFile();
+        Files.write(image.toPath(), new byte[1024]);
+        Files.write(dir.resolve("fs.dat.wal"), wal);
+
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            Journal journal = new Journal(image, file.getChannel(), FileSystemManager.Durability.SYNC, true);
+            assertEquals(0, Files.size(dir.resolve("fs.dat.wal")));
+            assertEquals(nextLsn, journal.append(List.of(), null));
+            journal.close();
+        }
+        return Files.readAllBytes(image.toPath());
+    }
+
+    private static String at(byte[] image, int offset, int length) {
+        return new String(image, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void testReplaysCommittedTransactions() throws IOException {
+        byte[] image = replay(concat(
+                transaction(1, 0L, "AAAA", 100L, "BBBB"),
+                transaction(2, 200L, "CCCC")), 3);
+
+        assertEquals("AAAA", at(image, 0, 4));
+        assertEquals("BBBB", at(image, 100, 4));
+        assertEquals("CCCC", at(image, 200, 4));
+    }
+
+    @Test
+    void testStopsAtTornTransaction() throws IOException {
+        byte[] torn = transaction(2, 200L, "CCCC", 300L, "DDDD");
+        byte[] image = replay(concat(
+                transaction(1, 0L, "AAAA"),
+                Arrays.copyOf(torn, torn.length - 6)), 2);
+
+        assertEquals("AAAA", at(image, 0, 4));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(image, 200, 204));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(image, 300, 304));
+    }
+
+    @Test
+    void testStopsAtCorruptTransaction() throws IOException {
+        byte[] corrupt = transaction(2, 200L, "CCCC");
+        corrupt[corrupt.length - 8] ^= 1; // a data byte, so the CRC no longer matches
+        byte[] image = replay(concat(
+                transaction(1, 0L, "AAAA"),
+                corrupt,
+                transaction(3, 300L, "DDDD")), 2);
+
+        assertEquals("AAAA", at(image, 0, 4));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(image, 200, 204));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(image, 300, 304));
+    }
+
+    @Test
+    void testSkipsRevokedWrites() throws IOException {
+        byte[] image = replay(concat(
+                transaction(1, 0L, "AAAA", 100L, "BBBB"),
+                transaction(2, 100L, null),
+                transaction(3, 200L, "CCCC")), 4);
+
+        assertEquals("AAAA", at(image, 0, 4));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(image, 100, 104));
+        assertEquals("CCCC", at(image, 200, 4));
+    }
+}
@@ -0,0 +1,107 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.FileSystemManager.ListEntry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedFileSystemTests {
+
+    private static final int FILES = 60;
+
+    @TempDir
+    Path dir;
+
+    private ShardedFileSystem fs;
+
+    @AfterEach
+    void close() throws IOException {
+        if (fs != null) {
+            fs.close();
+        }
+    }
+
+    private ShardedFileSystem mount(int volumeCount) throws Exception {
+        List<FileSystemManager> volumes = new ArrayList<>();
+        for (int i = 0; i < volumeCount; i++) {
+            volumes.add(new FileSystemManager(dir.resolve("fs-" + i + ".dat").toString(), 1024 * 1024, 128, 256,
+                    FileSystemManager.Durability.SYNC, 0, 2));
+        }
+        return new ShardedFileSystem(volumes);
+    }
+
+    private void remount(int volumeCount) throws Exception {
+        fs.close();
+        fs = null;
+        fs = mount(volumeCount);
+    }
+
+    private static String path(int i) {
+        return i % 2 == 0 ? "file" + i : "docs/file" + i;
+    }
+
+    private static byte[] contents(int i) {
+        return ("contents of file " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // path -> index of the volume holding it
+    private static Map<String, Integer> placement(ShardedFileSystem fs) {
+        Map<String, Integer> placement = new HashMap<>();
+        for (int volume = 0; volume < fs.getVolumes().size(); volume++) {
+            for (String directory : new String[]{"", "docs"}) {
+                for (ListEntry entry : fs.getVolumes().get(volume).listFiles(directory, "", null, Integer.MAX_VALUE)) {
+                    if (!entry.isDirectory()) {
+                        placement.put(directory.isEmpty() ? entry.getName() : directory + "/" + entry.getName(), volume);
+                    }
+                }
+            }
+        }
+        return placement;
+    }
+
+    @Test
+    void testRebalancesWhenAVolumeIsAdded() throws Exception {
+        fs = mount(2);
+        fs.makeDirectory("docs");
+        for (int i = 0; i < FILES; i++) {
+            fs.createFile(path(i));
+            fs.writeFile(path(i), contents(i));
+        }
+        Map<String, Integer> before = placement(fs);
+        assertEquals(FILES, before.size());
+        remount(3);
+        Map<String, Integer> after = placement(fs);
+        HashRing ring = new HashRing(3);
+        int moved = 0;
+        for (int i = 0; i < FILES; i++) {
+            String path = path(i);
+            assertEquals(ring.volumeFor(path), after.get(path), path + " is not on its volume");
+            assertEquals(new String(contents(i), StandardCharsets.UTF_8), fs.readFile(path));
+            // Consistent hashing: a file only ever moves to the new volume
+            if (!after.get(path).equals(before.get(path))) {
+                assertEquals(2, after.get(path));
+                moved++;
+            }
+        }
+        assertEquals(FILES, after.size());
+        assertTrue(moved > 0, "no file moved to the new volume");
+        assertTrue(fs.getVolumes().get(2).isDirectory("docs"));
+        assertEquals(FILES / 2, fs.listFiles("docs").length);
+
+        // Mounting the same volumes again finds nothing to move
+        remount(3);
+        assertEquals(after, placement(fs));
+    }
+}
@@ -0,0 +1,149 @@
+package ca.concordia.filesystem.datastructures;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockBitmapTests {
+
+    private static final int BLOCKS = 200; // not a multiple of 64, so the last word is partial
+    private static final int FIRST_DATA_BLOCK = 3;
+
+    // What a flush writes, as a fresh bitmap reads it back on mount
+    private static BlockBitmap onDisk(BlockBitmap bitmap) {
+        ByteBuffer words = ByteBuffer.allocate(bitmap.getWordCount() * 8);
+        bitmap.write(words, 0, bitmap.getWordCount());
+        words.flip();
+        BlockBitmap mounted = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        mounted.read(words);
+        return mounted;
+    }
+
+    private static int countFree(BlockBitmap bitmap) {
+        int free = 0;
+        for (int block = 0; block < BLOCKS; block++) {
+            free += bitmap.isFree(block) ? 1 : 0;
+        }
+        return free;
+    }
+
+    private static void markAll(BitSet blocks, List<Extent> extents) {
+        for (Extent extent : extents) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                assertFalse(blocks.get(block), "block " + block + " handed out twice");
+                blocks.set(block);
+            }
+        }
+    }
+
+    @Test
+    void testAllocatesEveryDataBlockOnce() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK, bitmap.getFreeCount());
+
+        BitSet handedOut = new BitSet();
+        List<Extent> extents;
+        while ((extents = bitmap.allocate(7)) != null) {
+            markAll(handedOut, extents);
+            assertEquals(countFree(bitmap), bitmap.getFreeCount());
+        }
+        markAll(handedOut, bitmap.allocate(bitmap.getFreeCount()));
+
+        assertEquals(0, bitmap.getFreeCount());
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK, handedOut.cardinality());
+        assertEquals(FIRST_DATA_BLOCK, handedOut.nextSetBit(0));
+    }
+
+    @Test
+    void testFailedAllocationTakesNothing() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        assertNotNull(bitmap.allocate(BLOCKS - FIRST_DATA_BLOCK - 5));
+
+        assertNull(bitmap.allocate(6));
+        assertEquals(5, bitmap.getFreeCount());
+        assertEquals(5, countFree(bitmap));
+    }
+
+    @Test
+    void testFreeMakesBlocksReusable() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        List<Extent> first = bitmap.allocate(10);
+        bitmap.allocate(10);
+        bitmap.free(first.get(0).getStart(), 10);
+        bitmap.free(first.get(0).getStart(), 10); // freeing twice counts once
+
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK - 10, bitmap.getFreeCount());
+        assertEquals(bitmap.getFreeCount(), countFree(bitmap));
+        assertEquals(bitmap.getFreeCount(), onDisk(bitmap).getFreeCount());
+    }
+
+    @Test
+    void testDeferredFreesWaitForRelease() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        int start = bitmap.allocate(10).get(0).getStart();
+        int free = bitmap.getFreeCount();
+        bitmap.freeDeferred(start, 10);
+
+        // Free on disk, but not allocatable until released
+        assertEquals(free + 10, onDisk(bitmap).getFreeCount());
+        assertEquals(free, bitmap.getFreeCount());
+        BitSet handedOut = new BitSet();
+        markAll(handedOut, bitmap.allocate(free));
+        assertTrue(handedOut.get(start, start + 10).isEmpty());
+        assertNull(bitmap.allocate(1));
+
+        bitmap.release(start, 10);
+        assertEquals(10, bitmap.getFreeCount());
+        List<Extent> reused = bitmap.allocate(10);
+        assertEquals(1, reused.size());
+        assertEquals(start, reused.get(0).getStart());
+    }
+
+    @Test
+    void testReservedBlocksStayFreeOnDiskUntilPublished() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        List<Extent> reserved = bitmap.reserve(20, -1);
+        int free = bitmap.getFreeCount();
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK - 20, free);
+
+        // A crash before publish leaks nothing, and nobody else gets the blocks meanwhile
+        assertEquals(free + 20, onDisk(bitmap).getFreeCount());
+        BitSet handedOut = new BitSet();
+        markAll(handedOut, reserved);
+        markAll(handedOut, bitmap.allocate(free));
+
+        Extent extent = reserved.get(0);
+        bitmap.publish(extent.getStart(), extent.getLength());
+        assertEquals(0, onDisk(bitmap).getFreeCount());
+    }
+
+    @Test
+    void testFreeingReservedBlocksUnreservesThem() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        Extent extent = bitmap.reserve(20, -1).get(0);
+        bitmap.free(extent.getStart(), extent.getLength());
+
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK, bitmap.getFreeCount());
+        bitmap.markUsed(extent.getStart(), extent.getLength());
+        assertEquals(BLOCKS - FIRST_DATA_BLOCK - 20, onDisk(bitmap).getFreeCount());
+    }
+
+    @Test
+    void testGoalExtendsTheSameRun() {
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS, FIRST_DATA_BLOCK);
+        Extent first = bitmap.allocate(4).get(0);
+        List<Extent> grown = bitmap.allocate(6, first.getEnd());
+
+        assertEquals(1, grown.size());
+        assertEquals(first.getEnd(), grown.get(0).getStart());
+        assertEquals(6, grown.get(0).getLength());
+    }
+}
@@ -0,0 +1,131 @@
+package ca.concordia.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerTests {
+
+    private static final int CLIENTS = 1000;
+
+    @TempDir
+    Path dir;
+
+    private FileServer server;
+    private int port;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    // Serves dir/filesystem.dat on a free port, returning once connections are accepted
+    private void start() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig();
+        config.setImageSize(16L * 1024 * 1024);
+        config.setMaxFiles(CLIENTS + 16);
+        config.setCacheBytes(0);
+        server = new FileServer(port, dir.resolve("filesystem.dat").toString(), config.getImageSize(), config);
+        Thread thread = new Thread(server::start, "test-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void restart() throws Exception {
+        server.stop();
+        server = null;
+        start();
+    }
+
+    // One reply line per command
+    private List<String> send(String... commands) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> replies = new ArrayList<>();
+            for (String command : commands) {
+                out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                replies.add(in.readLine());
+            }
+            return replies;
+        }
+    }
+
+    @Test
+    void testHandlesHundredsOfClientsQuickly() throws Exception {
+        start();
+        ExecutorService clients = Executors.newFixedThreadPool(100);
+        try {
+            List<Future<List<String>>> replies = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                String name = "client" + i;
+                replies.add(clients.submit(() -> send("CREATE " + name, "WRITE " + name + " from " + name,
+                        "READ " + name, "QUIT")));
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                List<String> reply = replies.get(i).get(60, TimeUnit.SECONDS);
+                assertEquals("SUCCESS: from client" + i, reply.get(2));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertEquals(List.of("SUCCESS: from client0"), send("READ client0"));
+    }
+
+    @Test
+    void testMalformedInputDoesNotCrashServer() throws Exception {
+        start();
+        List<String> replies = send("", "FROBNICATE x", "CREATE", "WRITE", "WRITE missing", "READ-RANGE a b c",
+                "MWRITE a x|b y", "CREATE " + "n".repeat(100), "\u0000ÿ\u0001");
+        for (String reply : replies) {
+            assertTrue(reply != null && reply.startsWith("ERROR"), "unexpected reply " + reply);
+        }
+        assertEquals(List.of("SUCCESS: File 'ok' created."), send("CREATE ok"));
+    }
+
+    @Test
+    void testServerRestartPersistence() throws Exception {
+        start();
+        assertEquals(List.of("SUCCESS: File 'kept' created.", "SUCCESS: File 'kept' written."),
+                send("CREATE kept", "WRITE kept survives a restart"));
+
+        restart();
+        assertEquals(List.of("SUCCESS: survives a restart"), send("READ kept"));
+    }
+}
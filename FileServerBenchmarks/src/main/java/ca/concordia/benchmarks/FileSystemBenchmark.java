@@ -0,0 +1,130 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// FileSystemManager on its own, no sockets. Each trial formats a fresh image in a temp directory,
+// fills fillPercent of the inode table with one-block files, and adds READ_FILES files of fileSize
+// bytes for the read benchmark. Every benchmark thread gets its own file to overwrite and its own
+// name to create and delete, so threads only contend inside the file system.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    private static final int MAX_FILES = 1024;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int READ_FILES = 16;
+    private static final int MAX_THREADS = 64; // inodes kept free for the per-thread files
+
+    @Param({"64", "4096", "1048576"})
+    public int fileSize;
+
+    @Param({"0", "50", "95"})
+    public int fillPercent;
+
+    @Param({"BATCHED"})
+    public String durability;
+
+    @Param({"67108864"})
+    public long cacheBytes;
+
+    FileSystemManager fs;
+    byte[] data;
+    private File directory;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("fs-bench").toFile();
+        // Room for every file, plus a second copy of each per-thread file while it is rewritten
+        long imageSize = (long) (READ_FILES + 2 * MAX_THREADS) * (fileSize + BLOCK_SIZE) + 64L * 1024 * 1024;
+        fs = new FileSystemManager(new File(directory, "bench.dat").getPath(), imageSize, BLOCK_SIZE, MAX_FILES,
+                FileSystemManager.Durability.valueOf(durability), cacheBytes);
+
+        data = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        int fill = (MAX_FILES - READ_FILES - 2 * MAX_THREADS) * fillPercent / 100;
+        byte[] small = new byte[64];
+        for (int i = 0; i < fill; i++) {
+            fs.createFile("f" + i);
+            fs.writeFile("f" + i, small);
+        }
+        for (int i = 0; i < READ_FILES; i++) {
+            fs.createFile("r" + i);
+            fs.writeFile("r" + i, data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadFiles {
+        String writeName;
+        String createName;
+
+        @Setup(Level.Trial)
+        public void setUp(FileSystemBenchmark bench) throws Exception {
+            int index = bench.threads.getAndIncrement();
+            if (index >= MAX_THREADS) {
+                throw new IllegalStateException("At most " + MAX_THREADS + " benchmark threads are supported.");
+            }
+            writeName = "w" + index;
+            createName = "c" + index;
+            bench.fs.createFile(writeName);
+            bench.fs.writeFile(writeName, bench.data);
+        }
+    }
+
+    @Benchmark
+    public byte[] readFile() throws Exception {
+        return fs.readFileBytes("r" + ThreadLocalRandom.current().nextInt(READ_FILES));
+    }
+
+    @Benchmark
+    public void writeFile(ThreadFiles files) throws Exception {
+        fs.writeFile(files.writeName, data);
+    }
+
+    // A create on its own would run out of inodes, so each operation creates a file and deletes it again
+    @Benchmark
+    public void createAndDeleteFile(ThreadFiles files) throws Exception {
+        fs.createFile(files.createName);
+        fs.deleteFile(files.createName);
+    }
+
+    @Benchmark
+    public String[] listFiles() {
+        return fs.listFiles();
+    }
+}
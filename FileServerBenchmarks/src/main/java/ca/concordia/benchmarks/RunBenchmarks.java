@@ -0,0 +1,29 @@
+package ca.concordia.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks once per thread count (JMH only takes one per run) and writes each run's
+// results to results-t<threads>.json, so runs of different commits can be compared. Thread counts
+// come from -Dbench.threads (default 1,4,16); the arguments are ordinary JMH options, for example
+// a benchmark regex or -p fileSize=4096.
+public class RunBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String outputDirectory = System.getProperty("bench.output", ".");
+
+        for (String threads : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(outputDirectory + "/results-t" + count + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End to end: a FileServer on loopback and one connection per benchmark thread speaking the text
+// protocol, so the numbers include the engine, the command parsing and the socket round trip.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketBenchmark {
+
+    @Param({ServerConfig.ENGINE_VIRTUAL, ServerConfig.ENGINE_NIO})
+    public String engine;
+
+    @Param({"64", "4096", "65536"})
+    public int fileSize;
+
+    @Param({"batched"})
+    public String durability;
+
+    private FileServer server;
+    private Thread serverThread;
+    private File directory;
+    int port;
+    byte[] writeCommandTail; // " <content>\n" for WRITE, content is printable so it stays on one line
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("server-bench").toFile();
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setDurability(durability);
+        config.setMaxLineBytes(Math.max(config.getMaxLineBytes(), fileSize + 1024));
+        server = new FileServer(port, new File(directory, "bench.dat").getPath(), 256L * 1024 * 1024, config);
+        serverThread = new Thread(server::start, "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening();
+
+        byte[] content = new byte[fileSize];
+        Arrays.fill(content, (byte) 'x');
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        tail.write(' ');
+        tail.write(content);
+        tail.write('\n');
+        writeCommandTail = tail.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(5000);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private void awaitListening() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (ConnectException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // One connection and one file per benchmark thread
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        InputStream in;
+        OutputStream out;
+        String filename;
+
+        @Setup(Level.Trial)
+        public void setUp(SocketBenchmark bench) throws Exception {
+            socket = new Socket("127.0.0.1", bench.port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            filename = "b" + bench.threads.getAndIncrement();
+            request("CREATE " + filename);
+            bench.write(this);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            out.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            socket.close();
+        }
+
+        // Sends one command line and returns the reply line
+        String request(String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            out.flush();
+            return expectSuccess(readLine());
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Server closed the connection.");
+                }
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        static String expectSuccess(String reply) throws IOException {
+            if (!reply.startsWith("SUCCESS")) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+            return reply;
+        }
+    }
+
+    @Benchmark
+    public String write(Connection connection) throws IOException {
+        connection.out.write(("WRITE " + connection.filename).getBytes(StandardCharsets.UTF_8));
+        connection.out.write(writeCommandTail);
+        connection.out.flush();
+        return Connection.expectSuccess(connection.readLine());
+    }
+
+    // READB: "SUCCESS: <n> bytes" then the raw bytes
+    @Benchmark
+    public byte[] read(Connection connection) throws IOException {
+        String header = connection.request("READB " + connection.filename);
+        int size = Integer.parseInt(header.split(" ")[1]);
+        byte[] data = connection.in.readNBytes(size);
+        if (data.length != size) {
+            throw new IOException("Server closed the connection.");
+        }
+        return data;
+    }
+
+    @Benchmark
+    public String createAndDelete(Connection connection) throws IOException {
+        String name = "t" + connection.filename;
+        connection.request("CREATE " + name);
+        return connection.request("DELETE " + name);
+    }
+}